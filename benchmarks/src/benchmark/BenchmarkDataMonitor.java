@@ -0,0 +1,31 @@
+package benchmark;
+
+import java.nio.channels.SocketChannel;
+
+import model.Client;
+import model.DataMonitor;
+
+/**
+ * A data monitor that isn't connected to a server and lets
+ * benchmarks dispatch already parsed messages, so the cost of
+ * dispatch can be measured apart from parsing.
+ * @author Damiene Stewart
+ */
+public class BenchmarkDataMonitor extends DataMonitor {
+	
+	/**
+	 * Construct a new benchmark data monitor.
+	 * @param theClient the client object.
+	 */
+	public BenchmarkDataMonitor(Client theClient) {
+		super(theClient, (SocketChannel) null);
+	}
+	
+	/**
+	 * Act on a parsed message, as if it had just been read.
+	 * @param theData the parsed message.
+	 */
+	public void dispatch(Object theData) {
+		processSocketData(theData, getWriter());
+	}
+}
@@ -0,0 +1,46 @@
+package benchmark;
+
+import java.nio.channels.SocketChannel;
+
+import model.Client;
+import model.GameLobbyMonitor;
+
+/**
+ * A game lobby monitor that isn't connected to a server and
+ * lets benchmarks dispatch already decoded messages, so the
+ * cost of dispatch can be measured apart from decoding.
+ * @author Damiene Stewart
+ */
+public class BenchmarkLobbyMonitor extends GameLobbyMonitor {
+	
+	/**
+	 * Construct a new benchmark lobby monitor.
+	 * @param theClient the client object.
+	 */
+	public BenchmarkLobbyMonitor(Client theClient) {
+		super(theClient, (SocketChannel) null, 0);
+	}
+	
+	/**
+	 * Act on a decoded message, as if it had just been read.
+	 * @param theData the decoded message.
+	 */
+	public void dispatch(Object theData) {
+		processSocketData(theData, getWriter());
+	}
+	
+	/**
+	 * Return how many messages the monitor has written.
+	 * @return the number of messages.
+	 */
+	public long getMessageCount() {
+		return getChannelWriter().getMessageCount();
+	}
+	
+	/**
+	 * Discard everything written so far.
+	 */
+	public void discardOutput() {
+		getChannelWriter().flush();
+	}
+}
@@ -0,0 +1,362 @@
+package benchmark;
+
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import model.ChannelWriter;
+import model.Client;
+import model.DataMonitor;
+import model.FrameTokenizer;
+import model.GameLobbyMonitor;
+import model.LobbyFrame;
+
+/**
+ * JMH benchmarks for the protocol hot paths: decoding lobby
+ * messages, dispatching them, encoding replies and handling
+ * data server messages. Where it helps, the org.json way of
+ * doing the same work is measured alongside as a reference.
+ *
+ * Every result is handed to a Blackhole so the JIT can't
+ * remove the work being measured.
+ * @author Damiene Stewart
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ProtocolBenchmarks {
+
+	/**
+	 * Operations between discarding buffered replies.
+	 */
+	private static final int DISCARD_INTERVAL = 256;
+
+	/**
+	 * Lobby messages as they arrive during a race: mostly
+	 * position updates, with pings, the odd clock update and a death.
+	 */
+	private static final String[] LOBBY_MESSAGES = {
+		"[\"18\",1,15234,-420,812,-35]",
+		"[\"18\",1,15298,-431,809,-12]",
+		"[\"16\",48213]",
+		"[\"18\",1,15361,-436,806,4]",
+		"[\"18\",1,15429,-433,811,21]",
+		"[\"17\",1508923845123456789]",
+		"[\"18\",1,15496,-424,815,37]",
+		"[\"13\",1,3000,2,7,0,4]",
+	};
+
+	/**
+	 * The lobby messages without line breaks.
+	 */
+	private byte[][] myLobbyLines;
+
+	/**
+	 * The lobby messages as read from a socket.
+	 */
+	private byte[][] myLobbyInput;
+
+	/**
+	 * The client the monitors belong to.
+	 */
+	private Client myClient;
+
+	/**
+	 * Frame the tokenizer reads into.
+	 */
+	private LobbyFrame myFrame;
+
+	/**
+	 * Lobby monitor that is handed decoded messages.
+	 */
+	private BenchmarkLobbyMonitor myDispatcher;
+
+	/**
+	 * The lobby messages, decoded.
+	 */
+	private LobbyFrame[] myFrames;
+
+	/**
+	 * A decoded message with an opcode nothing is done for.
+	 */
+	private LobbyFrame myUnknown;
+
+	/**
+	 * Data monitor that is handed parsed messages.
+	 */
+	private BenchmarkDataMonitor myDataDispatcher;
+
+	/**
+	 * A parsed data message nothing is done for.
+	 */
+	private JSONObject myKeepAlive;
+
+	/**
+	 * Writer without a channel, for encoding.
+	 */
+	private ChannelWriter myWriter;
+
+	/**
+	 * Lobby monitor that is fed whole messages.
+	 */
+	private GameLobbyMonitor myLobby;
+
+	/**
+	 * Data monitor that is fed whole messages.
+	 */
+	private DataMonitor myData;
+
+	/**
+	 * An m:51 challenge as read from a socket.
+	 */
+	private byte[] myChallenge;
+
+	/**
+	 * An m:35 invite as read from a socket.
+	 */
+	private byte[] myInvite;
+
+	/**
+	 * An m:1 list of 500 friends as read from a socket.
+	 */
+	private byte[] myFriends;
+
+	/**
+	 * Number of operations run so far, used to pick the next message.
+	 */
+	private int myIteration;
+
+	/**
+	 * Build the messages and monitors.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() {
+		myLobbyLines = encodeAll(LOBBY_MESSAGES, false);
+		myLobbyInput = encodeAll(LOBBY_MESSAGES, true);
+		myClient = new Client(theLoggedIn -> { });
+
+		myFrame = new LobbyFrame();
+		myDispatcher = new BenchmarkLobbyMonitor(myClient);
+		myFrames = new LobbyFrame[myLobbyLines.length];
+		for (int i = 0; i < myFrames.length; i++) {
+			myFrames[i] = new LobbyFrame();
+			FrameTokenizer.tokenize(myLobbyLines[i], 0, myLobbyLines[i].length, myFrames[i]);
+		}
+
+		myUnknown = new LobbyFrame();
+		byte[] unknownLine = encode("[\"99\",1]", false);
+		FrameTokenizer.tokenize(unknownLine, 0, unknownLine.length, myUnknown);
+		myDataDispatcher = new BenchmarkDataMonitor(myClient);
+		myKeepAlive = new JSONObject("{\"m\":37}");
+
+		myWriter = new ChannelWriter(null);
+		myLobby = new GameLobbyMonitor(myClient, (SocketChannel) null, 0);
+		myData = new DataMonitor(myClient, (SocketChannel) null);
+		myChallenge = encode("{\"m\":51}", true);
+		myInvite = encode("{\"m\":35,\"a\":\"10.0.0.12\",\"p\":\"5a1f3c\",\"s\":48213}", true);
+		myFriends = encode(createFriendList(500), true);
+		myIteration = 0;
+	}
+
+	/**
+	 * Decode a lobby message with the frame tokenizer.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void parseTokenizer(Blackhole theHole) {
+		byte[] line = myLobbyLines[myIteration++ & (myLobbyLines.length - 1)];
+		theHole.consume(FrameTokenizer.tokenize(line, 0, line.length, myFrame));
+		theHole.consume(myFrame.getLong(1));
+	}
+
+	/**
+	 * Decode a lobby message with org.json.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void parseOrgJson(Blackhole theHole) {
+		byte[] line = myLobbyLines[myIteration++ & (myLobbyLines.length - 1)];
+		theHole.consume(new JSONArray(new String(line, StandardCharsets.UTF_8)).getLong(1));
+	}
+
+	/**
+	 * Act on a decoded position update, echo included.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void dispatchPosition(Blackhole theHole) {
+		myDispatcher.dispatch(myFrames[0]);
+		discard(theHole);
+	}
+
+	/**
+	 * Act on the decoded lobby messages in turn.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void dispatchMix(Blackhole theHole) {
+		myDispatcher.dispatch(myFrames[myIteration & (myFrames.length - 1)]);
+		discard(theHole);
+	}
+
+	/**
+	 * Dispatch alone: a lobby opcode nothing is done for.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void dispatchLobbyUnhandled(Blackhole theHole) {
+		myDispatcher.dispatch(myUnknown);
+		theHole.consume(myUnknown);
+	}
+
+	/**
+	 * Dispatch alone: a data message nothing is done for.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void dispatchDataUnhandled(Blackhole theHole) {
+		myDataDispatcher.dispatch(myKeepAlive);
+		theHole.consume(myKeepAlive);
+	}
+
+	/**
+	 * Encode an echo straight into the channel buffer.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void encodeEcho(Blackhole theHole) {
+		int iteration = myIteration++;
+		myWriter.writeArray(3, 1508923845123L + iteration, 15234, -420, 812, -35);
+		theHole.consume(myWriter.getQueuedBytes());
+		if ((iteration & (DISCARD_INTERVAL - 1)) == 0) {
+			myWriter.flush();
+		}
+	}
+
+	/**
+	 * Encode an echo with org.json.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void encodeOrgJson(Blackhole theHole) {
+		JSONArray echo = new JSONArray()
+				.put(3)
+				.put(1508923845123L + myIteration++)
+				.put(15234)
+				.put(-420)
+				.put(812)
+				.put(-35);
+		theHole.consume(echo.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The whole lobby read path: split lines, decode, dispatch, encode.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void lobbyFeed(Blackhole theHole) {
+		byte[] input = myLobbyInput[myIteration++ & (myLobbyInput.length - 1)];
+		myLobby.feed(input, 0, input.length);
+		theHole.consume(myLobby.getClock());
+	}
+
+	/**
+	 * Handle an m:51 challenge.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void dataChallenge(Blackhole theHole) {
+		myData.feed(myChallenge, 0, myChallenge.length);
+		theHole.consume(myData);
+	}
+
+	/**
+	 * Handle an m:35 invite from a friend who isn't followed.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void dataInvite(Blackhole theHole) {
+		myData.feed(myInvite, 0, myInvite.length);
+		theHole.consume(myClient.getLobbyStatus());
+	}
+
+	/**
+	 * Handle an m:1 list of 500 friends.
+	 * @param theHole consumes the result.
+	 */
+	@Benchmark
+	public void dataFriendList500(Blackhole theHole) {
+		myData.feed(myFriends, 0, myFriends.length);
+		theHole.consume(myClient.getFriendList());
+	}
+
+	/**
+	 * Count an operation on the dispatching monitor, and discard
+	 * its buffered replies every so often.
+	 * @param theHole consumes the number of replies written.
+	 */
+	private void discard(Blackhole theHole) {
+		theHole.consume(myDispatcher.getMessageCount());
+		if ((myIteration++ & (DISCARD_INTERVAL - 1)) == 0) {
+			myDispatcher.discardOutput();
+		}
+	}
+
+	/**
+	 * Build an m:1 friend list message.
+	 * @param theCount the number of friends.
+	 * @return the message.
+	 */
+	private static String createFriendList(int theCount) {
+		JSONArray list = new JSONArray();
+		for (int i = 0; i < theCount; i++) {
+			list.put(new JSONObject()
+					.put("p", String.format(Locale.ROOT, "%08x", i * 2654435761L & 0xffffffffL))
+					.put("n", "Runner" + i));
+		}
+		return new JSONObject().put("m", 1).put("f", list).toString();
+	}
+
+	/**
+	 * Encode messages.
+	 * @param theMessages the messages.
+	 * @param theLineBreak true to end each with a line break.
+	 * @return the encoded messages.
+	 */
+	private static byte[][] encodeAll(String[] theMessages, boolean theLineBreak) {
+		byte[][] encoded = new byte[theMessages.length][];
+		for (int i = 0; i < theMessages.length; i++) {
+			encoded[i] = encode(theMessages[i], theLineBreak);
+		}
+		return encoded;
+	}
+
+	/**
+	 * Encode a message.
+	 * @param theMessage the message.
+	 * @param theLineBreak true to end it with a line break.
+	 * @return the encoded message.
+	 */
+	private static byte[] encode(String theMessage, boolean theLineBreak) {
+		return (theLineBreak ? theMessage + '\n' : theMessage).getBytes(StandardCharsets.UTF_8);
+	}
+}
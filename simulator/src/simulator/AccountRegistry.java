@@ -0,0 +1,158 @@
+package simulator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The accounts the simulator has logged in, and the races it
+ * has invited them to. Any email address can log in; the data
+ * server only accepts tokens handed out by this registry, so
+ * a bot restoring a session from an earlier run is rejected
+ * and has to log in again, as it would be by the real server.
+ * Safe to use from any thread.
+ * @author Damiene Stewart
+ */
+public class AccountRegistry {
+
+	/**
+	 * Accounts by email address.
+	 */
+	private final Map<String, Account> myAccountsByEmail;
+
+	/**
+	 * Accounts by login token.
+	 */
+	private final Map<String, Account> myAccountsByToken;
+
+	/**
+	 * Data sessions by the token of the race they were invited to.
+	 */
+	private final Map<Integer, DataSession> myInvites;
+
+	/**
+	 * The next player ID.
+	 */
+	private final AtomicInteger myNextID;
+
+	/**
+	 * The next race token.
+	 */
+	private final AtomicInteger myNextRace;
+
+	/**
+	 * Construct a new, empty registry.
+	 */
+	public AccountRegistry() {
+		myAccountsByEmail = new ConcurrentHashMap<String, Account>();
+		myAccountsByToken = new ConcurrentHashMap<String, Account>();
+		myInvites = new ConcurrentHashMap<Integer, DataSession>();
+		myNextID = new AtomicInteger(1);
+		myNextRace = new AtomicInteger(1);
+	}
+
+	/**
+	 * Log an account in. An account keeps its ID for the life of
+	 * the simulator and gets a new token with every login.
+	 * @param theEmail the account's email address.
+	 * @return the account.
+	 */
+	public Account login(String theEmail) {
+		Account account = myAccountsByEmail.computeIfAbsent(theEmail.toLowerCase(),
+				theKey -> new Account("sim-" + myNextID.getAndIncrement()));
+
+		String token = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		synchronized (account) {
+			if (account.myToken != null) {
+				myAccountsByToken.remove(account.myToken);
+			}
+			account.myToken = token;
+		}
+		myAccountsByToken.put(token, account);
+
+		return account;
+	}
+
+	/**
+	 * Find the account a token was handed to.
+	 * @param theToken the token.
+	 * @param theID the player ID the token was presented with.
+	 * @return the account, or null if the token is unknown or
+	 * belongs to someone else.
+	 */
+	public Account authenticate(String theToken, String theID) {
+		Account account = myAccountsByToken.get(theToken);
+		return account != null && account.getID().equals(theID) ? account : null;
+	}
+
+	/**
+	 * Reserve a race for a data session's bot.
+	 * @param theSession the session inviting the bot.
+	 * @return the race's token.
+	 */
+	public int invite(DataSession theSession) {
+		int race = myNextRace.getAndIncrement();
+		myInvites.put(race, theSession);
+		return race;
+	}
+
+	/**
+	 * Claim a race when the bot joins it.
+	 * @param theRace the race's token.
+	 * @return the data session that sent the invite, or null if
+	 * the race is unknown or was already joined.
+	 */
+	public DataSession join(int theRace) {
+		return myInvites.remove(theRace);
+	}
+
+	/**
+	 * Forget every race a data session was invited to.
+	 * @param theSession the session.
+	 */
+	public void forget(DataSession theSession) {
+		myInvites.values().removeIf(theSession::equals);
+	}
+
+	/**
+	 * One account.
+	 */
+	public static final class Account {
+
+		/**
+		 * The account's player ID.
+		 */
+		private final String myID;
+
+		/**
+		 * The account's current token.
+		 */
+		private volatile String myToken;
+
+		/**
+		 * Construct a new account.
+		 * @param theID the account's player ID.
+		 */
+		private Account(String theID) {
+			myID = theID;
+			myToken = null;
+		}
+
+		/**
+		 * Return the account's player ID.
+		 * @return the ID.
+		 */
+		public String getID() {
+			return myID;
+		}
+
+		/**
+		 * Return the account's current token.
+		 * @return the token.
+		 */
+		public String getToken() {
+			return myToken;
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package simulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One line based connection to a bot, served by a ServerLoop.
+ * Subclasses act on each line the bot sends and write their
+ * replies with the write methods; everything written is sent
+ * when flush() is called. All methods are called on the loop
+ * thread.
+ * @author Damiene Stewart
+ */
+public abstract class Connection {
+
+	/**
+	 * Initial size, in bytes, of the read and write buffers.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Most bytes that may wait to be sent before the bot is
+	 * considered too slow and dropped.
+	 */
+	private static final int MAX_PENDING = 1024 * 1024;
+
+	/**
+	 * The loop serving this connection.
+	 */
+	protected final ServerLoop myLoop;
+
+	/**
+	 * The connection's channel.
+	 */
+	private final SocketChannel myChannel;
+
+	/**
+	 * The channel's selection key.
+	 */
+	private SelectionKey myKey;
+
+	/**
+	 * Buffer that incoming data is read into.
+	 */
+	private ByteBuffer myReadBuffer;
+
+	/**
+	 * Buffer that outgoing data is written to.
+	 */
+	private ByteBuffer myWriteBuffer;
+
+	/**
+	 * Digits of a number being written, least significant first.
+	 */
+	private final byte[] myDigits;
+
+	/**
+	 * False once the connection has been closed.
+	 */
+	private boolean myOpen;
+
+	/**
+	 * Construct a new connection.
+	 * @param theLoop the loop serving the connection.
+	 * @param theChannel the connection's channel.
+	 */
+	public Connection(ServerLoop theLoop, SocketChannel theChannel) {
+		myLoop = theLoop;
+		myChannel = theChannel;
+		myReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		myWriteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		myDigits = new byte[20];
+		myOpen = true;
+	}
+
+	/**
+	 * Called once the connection is being served, before any
+	 * data has been read.
+	 */
+	protected abstract void opened();
+
+	/**
+	 * Act on one line sent by the bot.
+	 * @param theBytes the buffer holding the line.
+	 * @param theStart index of the line's first byte.
+	 * @param theEnd index one past the line's last byte.
+	 */
+	protected abstract void processLine(byte[] theBytes, int theStart, int theEnd);
+
+	/**
+	 * Called once when the connection is closed, by either end.
+	 */
+	protected abstract void closed();
+
+	/**
+	 * Returns true until the connection is closed.
+	 * @return true if the connection is open.
+	 */
+	public boolean isOpen() {
+		return myOpen;
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	public void close() {
+		if (!myOpen) {
+			return;
+		}
+
+		myOpen = false;
+		try {
+			myChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		closed();
+	}
+
+	/**
+	 * Append a pre-encoded message.
+	 * @param theBytes the message.
+	 */
+	protected void write(byte[] theBytes) {
+		if (ensureCapacity(theBytes.length)) {
+			myWriteBuffer.put(theBytes);
+		}
+	}
+
+	/**
+	 * Append a string.
+	 * @param theText the text.
+	 */
+	protected void write(String theText) {
+		write(theText.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Append a number in decimal without creating any objects.
+	 * @param theValue the number.
+	 */
+	protected void writeNumber(long theValue) {
+		if (!ensureCapacity(myDigits.length)) {
+			return;
+		}
+
+		if (theValue < 0) {
+			myWriteBuffer.put((byte) '-');
+		}
+
+		int count = 0;
+		long value = theValue;
+		do {
+			myDigits[count++] = (byte) ('0' + Math.abs(value % 10));
+			value /= 10;
+		} while (value != 0);
+
+		while (count > 0) {
+			myWriteBuffer.put(myDigits[--count]);
+		}
+	}
+
+	/**
+	 * Send everything written so far, as far as the channel
+	 * will take it right now. The rest is sent once the channel
+	 * becomes writable.
+	 */
+	protected void flush() {
+		if (!myOpen || myKey == null || (myKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+			return;
+		}
+
+		handleWrite();
+	}
+
+	/**
+	 * Register the channel with the loop's selector and call opened().
+	 * @param theSelector the loop's selector.
+	 * @throws ClosedChannelException if the channel was closed first.
+	 */
+	void attach(Selector theSelector) throws ClosedChannelException {
+		myKey = myChannel.register(theSelector, SelectionKey.OP_READ, this);
+		opened();
+		flush();
+	}
+
+	/**
+	 * Read whatever data is available and process every
+	 * complete line.
+	 */
+	void handleRead() {
+		int read;
+		try {
+			read = myChannel.read(myReadBuffer);
+		} catch (IOException e) {
+			read = -1;
+		}
+
+		if (read < 0) {
+			close();
+			return;
+		}
+
+		myReadBuffer.flip();
+		byte[] bytes = myReadBuffer.array();
+		int start = 0;
+		int end = myReadBuffer.limit();
+
+		for (int i = 0; i < end && myOpen; i++) {
+			if (bytes[i] == '\n') {
+				int lineEnd = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+				if (lineEnd > start) {
+					processLine(bytes, start, lineEnd);
+				}
+				start = i + 1;
+			}
+		}
+
+		flush();
+		myReadBuffer.position(start);
+		myReadBuffer.compact();
+
+		if (!myReadBuffer.hasRemaining()) {
+			if (myReadBuffer.capacity() >= MAX_PENDING) {
+				close();
+				return;
+			}
+
+			ByteBuffer bigger = ByteBuffer.allocate(myReadBuffer.capacity() * 2);
+			myReadBuffer.flip();
+			bigger.put(myReadBuffer);
+			myReadBuffer = bigger;
+		}
+	}
+
+	/**
+	 * Write as much buffered data as the channel will take.
+	 */
+	void handleWrite() {
+		if (!myOpen) {
+			return;
+		}
+
+		myWriteBuffer.flip();
+		try {
+			myChannel.write(myWriteBuffer);
+		} catch (IOException e) {
+			myWriteBuffer.clear();
+			close();
+			return;
+		}
+
+		boolean pending = myWriteBuffer.hasRemaining();
+		myWriteBuffer.compact();
+		myKey.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Make room for more outgoing data, dropping the connection
+	 * if the bot has stopped reading.
+	 * @param theLength number of bytes about to be written.
+	 * @return false if the connection is closed.
+	 */
+	private boolean ensureCapacity(int theLength) {
+		if (!myOpen) {
+			return false;
+		}
+
+		if (myWriteBuffer.remaining() >= theLength) {
+			return true;
+		}
+
+		int needed = myWriteBuffer.position() + theLength;
+		if (needed > MAX_PENDING) {
+			myLoop.slowConnection();
+			myWriteBuffer.clear();
+			close();
+			return false;
+		}
+
+		int capacity = myWriteBuffer.capacity();
+		while (capacity < needed) {
+			capacity *= 2;
+		}
+
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		myWriteBuffer.flip();
+		bigger.put(myWriteBuffer);
+		myWriteBuffer = bigger;
+		return true;
+	}
+}
@@ -0,0 +1,18 @@
+package simulator;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Creates the connection that serves an accepted channel.
+ * @author Damiene Stewart
+ */
+public interface ConnectionFactory {
+
+	/**
+	 * Create a connection. Called on the loop that will serve it.
+	 * @param theLoop the loop serving the connection.
+	 * @param theChannel the accepted channel.
+	 * @return the connection.
+	 */
+	Connection create(ServerLoop theLoop, SocketChannel theChannel);
+}
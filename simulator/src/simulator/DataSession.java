@@ -0,0 +1,157 @@
+package simulator;
+
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import model.ChannelWriter;
+
+/**
+ * The data server's side of one bot's data connection. Sends
+ * the m:51 challenge, checks the bot's m:1 reply against the
+ * tokens handed out at login, sends the m:1 friend list and
+ * then invites the bot to races with m:35, one at a time.
+ * Answers m:37 keepalive pings.
+ * @author Damiene Stewart
+ */
+public class DataSession extends Connection {
+
+	/**
+	 * The challenge sent when a bot connects.
+	 */
+	private static final byte[] CHALLENGE = ChannelWriter.encode("{\"m\":51}");
+
+	/**
+	 * The keepalive reply.
+	 */
+	private static final byte[] PING = ChannelWriter.encode("{\"m\":37}");
+
+	/**
+	 * The simulator this session belongs to.
+	 */
+	private final Simulator mySimulator;
+
+	/**
+	 * The bot's account, once it has answered the challenge.
+	 */
+	private AccountRegistry.Account myAccount;
+
+	/**
+	 * Number of invites sent.
+	 */
+	private int myInvites;
+
+	/**
+	 * Construct a new data session.
+	 * @param theLoop the loop serving the session.
+	 * @param theChannel the bot's channel.
+	 * @param theSimulator the simulator.
+	 */
+	public DataSession(ServerLoop theLoop, SocketChannel theChannel, Simulator theSimulator) {
+		super(theLoop, theChannel);
+		mySimulator = theSimulator;
+		myAccount = null;
+		myInvites = 0;
+	}
+
+	/**
+	 * Called when a race this session invited the bot to has
+	 * ended. May be called from any thread.
+	 */
+	public void raceEnded() {
+		myLoop.execute(this::scheduleInvite);
+	}
+
+	@Override
+	protected void opened() {
+		write(CHALLENGE);
+	}
+
+	@Override
+	protected void processLine(byte[] theBytes, int theStart, int theEnd) {
+		JSONObject data;
+		try {
+			data = new JSONObject(new String(theBytes, theStart, theEnd - theStart, StandardCharsets.UTF_8));
+		} catch (JSONException e) {
+			close();
+			return;
+		}
+
+		switch (data.optInt("m")) {
+		case 1:
+			login(data);
+			break;
+
+		case 37:
+			write(PING);
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	@Override
+	protected void closed() {
+		if (myAccount != null) {
+			myLoop.dataSessionChanged(-1);
+			mySimulator.getAccounts().forget(this);
+		}
+	}
+
+	/**
+	 * Check the bot's reply to the challenge. A bot with an
+	 * unknown token is disconnected, as the real server does.
+	 * @param theData the reply.
+	 */
+	private void login(JSONObject theData) {
+		if (myAccount != null) {
+			return;
+		}
+
+		myAccount = mySimulator.getAccounts().authenticate(theData.optString("a"), theData.optString("p"));
+		if (myAccount == null) {
+			close();
+			return;
+		}
+
+		myLoop.dataSessionChanged(1);
+		write(mySimulator.getFriendList());
+		scheduleInvite();
+	}
+
+	/**
+	 * Invite the bot to its next race after the invite delay,
+	 * unless it has had all of its races.
+	 */
+	private void scheduleInvite() {
+		int races = mySimulator.getOptions().getRaces();
+		if (!isOpen() || (races > 0 && myInvites >= races)) {
+			return;
+		}
+
+		myLoop.schedule(this::invite, mySimulator.getOptions().getInviteDelay());
+	}
+
+	/**
+	 * Invite the bot to a race hosted by the host player.
+	 */
+	private void invite() {
+		if (!isOpen()) {
+			return;
+		}
+
+		myInvites++;
+		int race = mySimulator.getAccounts().invite(this);
+		write(new JSONObject()
+				.put("m", 35)
+				.put("a", mySimulator.getOptions().getHost())
+				.put("p", mySimulator.getOptions().getHostPlayer())
+				.put("s", race)
+				.toString());
+		write("\n");
+		flush();
+	}
+}
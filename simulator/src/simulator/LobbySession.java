@@ -0,0 +1,424 @@
+package simulator;
+
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import model.ChannelWriter;
+import model.FrameTokenizer;
+import model.LobbyFrame;
+
+/**
+ * The game server's side of one bot's lobby connection. Sends
+ * "39", waits for the bot to join a race it was invited to,
+ * sends the server clock ("17") and the count down ("5"), then
+ * streams the host player's positions ("18") and pings ("16")
+ * at the configured rates until the race is ended with "28" or
+ * "7". Every echo and pong is matched to the position or ping
+ * it answers and its round trip time recorded, and the time in
+ * every echo is checked against the server's clock. Clock frames
+ * and pings can be held back at random to simulate jitter.
+ * @author Damiene Stewart
+ */
+public class LobbySession extends Connection {
+
+	/**
+	 * Number of recent positions that echoes can be matched to.
+	 */
+	private static final int POSITION_WINDOW = 1024;
+
+	/**
+	 * Number of recent pings that pongs can be matched to.
+	 */
+	private static final int PING_WINDOW = 64;
+
+	/**
+	 * Sent when the bot connects.
+	 */
+	private static final byte[] JOIN_REQUEST = ChannelWriter.encode("[\"39\",\"sim\"]");
+
+	/**
+	 * Starts the count down.
+	 */
+	private static final byte[] COUNTDOWN = ChannelWriter.encode("[\"5\"]");
+
+	/**
+	 * Start of a position.
+	 */
+	private static final byte[] POSITION_HEAD = "[\"18\",1,".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Start of a ping.
+	 */
+	private static final byte[] PING_HEAD = "[\"16\",".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Start of a clock update.
+	 */
+	private static final byte[] CLOCK_HEAD = "[\"17\",\"".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * End of a clock update.
+	 */
+	private static final byte[] CLOCK_TAIL = ChannelWriter.encode("\"]");
+
+	/**
+	 * End of a message.
+	 */
+	private static final byte[] MESSAGE_TAIL = ChannelWriter.encode("]");
+
+	/**
+	 * Separates the elements of a message.
+	 */
+	private static final byte[] COMMA = ",".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * The simulator this session belongs to.
+	 */
+	private final Simulator mySimulator;
+
+	/**
+	 * Reused for every message the bot sends.
+	 */
+	private final LobbyFrame myFrame;
+
+	/**
+	 * When recent positions were sent, by sequence number.
+	 */
+	private final long[] myPositionTimes;
+
+	/**
+	 * Sequence numbers of recent positions.
+	 */
+	private final int[] myPositionNumbers;
+
+	/**
+	 * When recent pings were sent, by sequence number.
+	 */
+	private final long[] myPingTimes;
+
+	/**
+	 * Sequence numbers of recent pings.
+	 */
+	private final int[] myPingNumbers;
+
+	/**
+	 * Sends the next position.
+	 */
+	private final Runnable myPositionTask;
+
+	/**
+	 * Sends the next ping.
+	 */
+	private final Runnable myPingTask;
+
+	/**
+	 * Sends the next clock frame.
+	 */
+	private final Runnable myClockTask;
+
+	/**
+	 * The data session that invited the bot to this race.
+	 */
+	private DataSession myInviter;
+
+	/**
+	 * True while the race is running.
+	 */
+	private boolean myRacing;
+
+	/**
+	 * Sequence number of the last position sent.
+	 */
+	private int myPosition;
+
+	/**
+	 * Sequence number of the last ping sent.
+	 */
+	private int myPing;
+
+	/**
+	 * When the next position is due, from System.nanoTime().
+	 */
+	private long myNextPosition;
+
+	/**
+	 * Construct a new lobby session.
+	 * @param theLoop the loop serving the session.
+	 * @param theChannel the bot's channel.
+	 * @param theSimulator the simulator.
+	 */
+	public LobbySession(ServerLoop theLoop, SocketChannel theChannel, Simulator theSimulator) {
+		super(theLoop, theChannel);
+		mySimulator = theSimulator;
+		myFrame = new LobbyFrame();
+		myPositionTimes = new long[POSITION_WINDOW];
+		myPositionNumbers = new int[POSITION_WINDOW];
+		myPingTimes = new long[PING_WINDOW];
+		myPingNumbers = new int[PING_WINDOW];
+		myPositionTask = this::sendPosition;
+		myPingTask = this::sendPing;
+		myClockTask = this::sendClock;
+		myInviter = null;
+		myRacing = false;
+		myPosition = 0;
+		myPing = 0;
+	}
+
+	@Override
+	protected void opened() {
+		write(JOIN_REQUEST);
+	}
+
+	@Override
+	protected void processLine(byte[] theBytes, int theStart, int theEnd) {
+		if (FrameTokenizer.tokenize(theBytes, theStart, theEnd, myFrame)) {
+			switch (myFrame.getOpcode()) {
+			case 3:
+				echoReceived(myFrame.getInt(2));
+				checkClock(myFrame.getLong(1));
+				break;
+
+			case 4:
+				pongReceived(myFrame.getInt(1));
+				break;
+
+			default:
+				// Count down replies and rejoin requests need no answer.
+				break;
+			}
+		} else if (theBytes[theStart] == '{') {
+			try {
+				JSONObject data = new JSONObject(
+						new String(theBytes, theStart, theEnd - theStart, StandardCharsets.UTF_8));
+				if (data.optInt("m") == 5) {
+					startRace(data.getInt("g"));
+				}
+			} catch (JSONException e) {
+				close();
+			}
+		}
+	}
+
+	@Override
+	protected void closed() {
+		finishRace();
+	}
+
+	/**
+	 * Start the race the bot joined. A bot joining a race it
+	 * wasn't invited to is disconnected.
+	 * @param theRace the race's token.
+	 */
+	private void startRace(int theRace) {
+		if (myInviter != null) {
+			return;
+		}
+
+		myInviter = mySimulator.getAccounts().join(theRace);
+		if (myInviter == null) {
+			close();
+			return;
+		}
+
+		myRacing = true;
+		myLoop.lobbyChanged(1);
+
+		// The first clock frame goes ahead of the count down unheld.
+		long now = System.nanoTime();
+		writeClock(mySimulator.getServerTime(now));
+		write(COUNTDOWN);
+
+		long clockPeriod = mySimulator.getOptions().getClockPeriod();
+		if (clockPeriod > 0) {
+			myLoop.schedule(myClockTask, clockPeriod);
+		}
+
+		// Spread the lobbies' positions over the period.
+		long period = mySimulator.getOptions().getPositionPeriod();
+		myNextPosition = now + ThreadLocalRandom.current().nextLong(period);
+		myLoop.scheduleAt(myPositionTask, myNextPosition);
+
+		long pingPeriod = mySimulator.getOptions().getPingPeriod();
+		if (pingPeriod > 0) {
+			myLoop.scheduleAt(myPingTask, now + ThreadLocalRandom.current().nextLong(pingPeriod));
+		}
+
+		long length = mySimulator.getOptions().getRaceLength();
+		if (length > 0) {
+			myLoop.schedule(this::endRace, length);
+		}
+	}
+
+	/**
+	 * Send the host player's next position.
+	 */
+	private void sendPosition() {
+		if (!myRacing) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		int number = ++myPosition;
+		int slot = number & (POSITION_WINDOW - 1);
+		myPositionNumbers[slot] = number;
+		myPositionTimes[slot] = now;
+
+		// The x position carries the sequence number back in the echo.
+		write(POSITION_HEAD);
+		writeNumber(number);
+		write(COMMA);
+		writeNumber(200 + number % 50);
+		write(COMMA);
+		writeNumber(800);
+		write(COMMA);
+		writeNumber(number % 20 - 10);
+		write(MESSAGE_TAIL);
+		flush();
+		myLoop.positionSent();
+
+		long period = mySimulator.getOptions().getPositionPeriod();
+		myNextPosition += period;
+		if (now - myNextPosition > period) {
+			// Fell behind; skip the missed positions rather than bursting.
+			myNextPosition = now + period;
+		}
+		myLoop.scheduleAt(myPositionTask, myNextPosition);
+	}
+
+	/**
+	 * Send the next ping.
+	 */
+	private void sendPing() {
+		if (!myRacing) {
+			return;
+		}
+
+		long jitter = mySimulator.getOptions().getClockJitter();
+		if (jitter > 0) {
+			myLoop.schedule(this::writePing, ThreadLocalRandom.current().nextLong(jitter));
+		} else {
+			writePing();
+		}
+
+		myLoop.schedule(myPingTask, mySimulator.getOptions().getPingPeriod());
+	}
+
+	/**
+	 * Write the next ping.
+	 */
+	private void writePing() {
+		if (!myRacing) {
+			return;
+		}
+
+		int number = ++myPing;
+		int slot = number & (PING_WINDOW - 1);
+		myPingNumbers[slot] = number;
+		myPingTimes[slot] = System.nanoTime();
+
+		write(PING_HEAD);
+		writeNumber(number);
+		write(MESSAGE_TAIL);
+		flush();
+	}
+
+	/**
+	 * Send the server's clock again and schedule the next one.
+	 */
+	private void sendClock() {
+		if (!myRacing) {
+			return;
+		}
+
+		long time = mySimulator.getServerTime(System.nanoTime());
+		long jitter = mySimulator.getOptions().getClockJitter();
+		if (jitter > 0) {
+			// The frame is stamped now and held back, as if queued on the way.
+			myLoop.schedule(() -> writeClock(time), ThreadLocalRandom.current().nextLong(jitter));
+		} else {
+			writeClock(time);
+		}
+
+		myLoop.schedule(myClockTask, mySimulator.getOptions().getClockPeriod());
+	}
+
+	/**
+	 * Write a clock frame.
+	 * @param theTime the server's time in nanoseconds.
+	 */
+	private void writeClock(long theTime) {
+		if (!myRacing) {
+			return;
+		}
+
+		write(CLOCK_HEAD);
+		writeNumber(theTime);
+		write(CLOCK_TAIL);
+		flush();
+	}
+
+	/**
+	 * Record the round trip of an echoed position.
+	 * @param theNumber the echoed x position, which is the
+	 * sequence number unless the bot predicted the position.
+	 */
+	private void echoReceived(int theNumber) {
+		int slot = theNumber & (POSITION_WINDOW - 1);
+		if (myPositionNumbers[slot] == theNumber) {
+			myLoop.echoReceived(System.nanoTime() - myPositionTimes[slot]);
+		} else {
+			// A predicted position; it can't be matched to what it answers.
+			myLoop.echoReceived(-1);
+		}
+	}
+
+	/**
+	 * Record how far the time in an echo is from the server's clock.
+	 * @param theTime the echo's time in milliseconds.
+	 */
+	private void checkClock(long theTime) {
+		myLoop.clockChecked(theTime * 1000000L - mySimulator.getServerTime(System.nanoTime()));
+	}
+
+	/**
+	 * Record the round trip of a ping.
+	 * @param theNumber the ping's sequence number.
+	 */
+	private void pongReceived(int theNumber) {
+		int slot = theNumber & (PING_WINDOW - 1);
+		if (myPingNumbers[slot] == theNumber) {
+			myLoop.pongReceived(System.nanoTime() - myPingTimes[slot]);
+		}
+	}
+
+	/**
+	 * Tell the bot the race is over. The bot closes the
+	 * connection in response.
+	 */
+	private void endRace() {
+		if (!myRacing) {
+			return;
+		}
+
+		write("[\"" + mySimulator.getOptions().getEndOpcode() + "\"]\n");
+		flush();
+		finishRace();
+	}
+
+	/**
+	 * Stop the race and let the inviting data session know.
+	 */
+	private void finishRace() {
+		if (!myRacing) {
+			return;
+		}
+
+		myRacing = false;
+		myLoop.lobbyChanged(-1);
+		myInviter.raceEnded();
+	}
+}
@@ -0,0 +1,113 @@
+package simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Answers m:3 login requests the way the real login server does:
+ * {"m":3,"a":token,"p":id} on success and {"m":3,"r":1} for a
+ * bad password. Any email address is accepted; an empty password
+ * or the password "wrong" is refused. Replies are gzipped when
+ * the bot accepts it.
+ * @author Damiene Stewart
+ */
+public class LoginHandler implements HttpHandler {
+
+	/**
+	 * Password that is always refused.
+	 */
+	private static final String WRONG_PASSWORD = "wrong";
+
+	/**
+	 * The accounts.
+	 */
+	private final AccountRegistry myAccounts;
+
+	/**
+	 * Construct a new login handler.
+	 * @param theAccounts the accounts.
+	 */
+	public LoginHandler(AccountRegistry theAccounts) {
+		myAccounts = theAccounts;
+	}
+
+	@Override
+	public void handle(HttpExchange theExchange) throws IOException {
+		JSONObject reply = new JSONObject().put("m", 3);
+		int status = 200;
+
+		try {
+			JSONObject request = new JSONObject(new String(readBody(theExchange), StandardCharsets.UTF_8));
+			String email = request.getString("e");
+			String password = request.getString("w");
+
+			if (request.getInt("m") != 3) {
+				status = 400;
+			} else if (password.isEmpty() || password.equals(WRONG_PASSWORD)) {
+				reply.put("r", 1);
+			} else {
+				AccountRegistry.Account account = myAccounts.login(email);
+				reply.put("a", account.getToken()).put("p", account.getID());
+			}
+		} catch (JSONException e) {
+			status = 400;
+		}
+
+		byte[] body = reply.toString().getBytes(StandardCharsets.UTF_8);
+		String encoding = theExchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (encoding != null && encoding.contains("gzip")) {
+			body = gzip(body);
+			theExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+
+		theExchange.getResponseHeaders().set("Content-Type", "application/json");
+		theExchange.sendResponseHeaders(status, body.length);
+		try (OutputStream output = theExchange.getResponseBody()) {
+			output.write(body);
+		}
+	}
+
+	/**
+	 * Read a request's body.
+	 * @param theExchange the request.
+	 * @return the body.
+	 * @throws IOException if the body can't be read.
+	 */
+	private static byte[] readBody(HttpExchange theExchange) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[512];
+
+		try (InputStream input = theExchange.getRequestBody()) {
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				body.write(buffer, 0, read);
+			}
+		}
+
+		return body.toByteArray();
+	}
+
+	/**
+	 * Compress a reply.
+	 * @param theBody the reply.
+	 * @return the compressed reply.
+	 * @throws IOException never, in practice.
+	 */
+	private static byte[] gzip(byte[] theBody) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream output = new GZIPOutputStream(compressed)) {
+			output.write(theBody);
+		}
+		return compressed.toByteArray();
+	}
+}
@@ -0,0 +1,538 @@
+package simulator;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import model.LatencyHistogram;
+
+/**
+ * One simulator event loop. Serves any number of data and
+ * lobby connections from a single thread, runs their timers,
+ * and keeps the statistics for the connections it serves.
+ * Statistics are only written by the loop's thread and may
+ * be read from any thread.
+ * @author Damiene Stewart
+ */
+public class ServerLoop implements Runnable {
+
+	/**
+	 * The selector that all of the loop's channels share.
+	 */
+	private final Selector mySelector;
+
+	/**
+	 * Tasks handed to the loop from other threads.
+	 */
+	private final Queue<Runnable> myTasks;
+
+	/**
+	 * Pending timers, soonest first. Only used on the loop thread.
+	 */
+	private final PriorityQueue<Timer> myTimers;
+
+	/**
+	 * The thread running this loop.
+	 */
+	private final Thread myThread;
+
+	/**
+	 * Time from sending a position to receiving its echo.
+	 */
+	private final LatencyHistogram myEchoLatency;
+
+	/**
+	 * Time from sending a ping to receiving its pong.
+	 */
+	private final LatencyHistogram myPongLatency;
+
+	/**
+	 * Difference between the time echoes carry and the server's
+	 * clock when they arrive.
+	 */
+	private final LatencyHistogram myClockError;
+
+	/**
+	 * Flag indicating whether or not the loop should continue.
+	 */
+	private volatile boolean myContinue;
+
+	/**
+	 * Number of lobbies currently racing on this loop.
+	 */
+	private volatile int myLobbies;
+
+	/**
+	 * Number of data connections that have logged in on this loop.
+	 */
+	private volatile int myDataSessions;
+
+	/**
+	 * Number of positions sent.
+	 */
+	private volatile long myPositionsSent;
+
+	/**
+	 * Number of echoes received.
+	 */
+	private volatile long myEchoesReceived;
+
+	/**
+	 * Number of pongs received.
+	 */
+	private volatile long myPongsReceived;
+
+	/**
+	 * Number of races started.
+	 */
+	private volatile long myRaces;
+
+	/**
+	 * Number of connections dropped for not reading their data.
+	 */
+	private volatile long mySlowConnections;
+
+	/**
+	 * Construct a new loop. The loop's thread is not started
+	 * until start() is called.
+	 * @param theName the name of the loop's thread.
+	 * @throws IOException if the selector could not be opened.
+	 */
+	public ServerLoop(String theName) throws IOException {
+		mySelector = Selector.open();
+		myTasks = new ConcurrentLinkedQueue<Runnable>();
+		myTimers = new PriorityQueue<Timer>();
+		myThread = new Thread(this, theName);
+		myEchoLatency = new LatencyHistogram();
+		myPongLatency = new LatencyHistogram();
+		myClockError = new LatencyHistogram();
+		myContinue = true;
+	}
+
+	/**
+	 * Start the loop's thread.
+	 */
+	public void start() {
+		myThread.start();
+	}
+
+	/**
+	 * Signal that the loop should stop.
+	 */
+	public void shutdown() {
+		myContinue = false;
+		mySelector.wakeup();
+	}
+
+	/**
+	 * Run a task on the loop's thread. If the caller is already
+	 * on the loop thread the task is run immediately.
+	 * @param theTask the task to run.
+	 */
+	public void execute(Runnable theTask) {
+		if (Thread.currentThread() == myThread) {
+			theTask.run();
+		} else {
+			myTasks.add(theTask);
+			mySelector.wakeup();
+		}
+	}
+
+	/**
+	 * Run a task on the loop's thread after a delay. Must be
+	 * called on the loop thread.
+	 * @param theTask the task.
+	 * @param theDelay the delay in nanoseconds.
+	 */
+	public void schedule(Runnable theTask, long theDelay) {
+		scheduleAt(theTask, System.nanoTime() + theDelay);
+	}
+
+	/**
+	 * Run a task on the loop's thread at a given time. Must be
+	 * called on the loop thread.
+	 * @param theTask the task.
+	 * @param theDeadline when to run it, from System.nanoTime().
+	 */
+	public void scheduleAt(Runnable theTask, long theDeadline) {
+		myTimers.add(new Timer(theDeadline, theTask));
+	}
+
+	/**
+	 * Accept connections on a listening channel. Each accepted
+	 * connection is handed to the next of the given loops in turn.
+	 * @param theServer the listening channel.
+	 * @param theLoops the loops to share the connections between.
+	 * @param theFactory creates a connection for an accepted channel.
+	 */
+	public void listen(ServerSocketChannel theServer, ServerLoop[] theLoops, ConnectionFactory theFactory) {
+		execute(() -> {
+			try {
+				theServer.configureBlocking(false);
+				theServer.register(mySelector, SelectionKey.OP_ACCEPT,
+						new Listener(theServer, theLoops, theFactory));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Start serving an accepted channel.
+	 * @param theChannel the channel.
+	 * @param theFactory creates the channel's connection.
+	 */
+	void add(SocketChannel theChannel, ConnectionFactory theFactory) {
+		execute(() -> {
+			Connection connection = theFactory.create(this, theChannel);
+			try {
+				connection.attach(mySelector);
+			} catch (ClosedChannelException e) {
+				connection.close();
+			}
+		});
+	}
+
+	/**
+	 * Return the echo latencies measured on this loop.
+	 * @return time from position to echo.
+	 */
+	public LatencyHistogram getEchoLatency() {
+		return myEchoLatency;
+	}
+
+	/**
+	 * Return the ping latencies measured on this loop.
+	 * @return time from ping to pong.
+	 */
+	public LatencyHistogram getPongLatency() {
+		return myPongLatency;
+	}
+
+	/**
+	 * Return how far the time in echoes was from the server's
+	 * clock, either way.
+	 * @return the clock errors.
+	 */
+	public LatencyHistogram getClockError() {
+		return myClockError;
+	}
+
+	/**
+	 * Return the number of lobbies currently racing.
+	 * @return the number of lobbies.
+	 */
+	public int getLobbies() {
+		return myLobbies;
+	}
+
+	/**
+	 * Return the number of logged in data connections.
+	 * @return the number of data sessions.
+	 */
+	public int getDataSessions() {
+		return myDataSessions;
+	}
+
+	/**
+	 * Return the number of positions sent.
+	 * @return the positions sent.
+	 */
+	public long getPositionsSent() {
+		return myPositionsSent;
+	}
+
+	/**
+	 * Return the number of echoes received.
+	 * @return the echoes received.
+	 */
+	public long getEchoesReceived() {
+		return myEchoesReceived;
+	}
+
+	/**
+	 * Return the number of pongs received.
+	 * @return the pongs received.
+	 */
+	public long getPongsReceived() {
+		return myPongsReceived;
+	}
+
+	/**
+	 * Return the number of races started.
+	 * @return the races started.
+	 */
+	public long getRaces() {
+		return myRaces;
+	}
+
+	/**
+	 * Return the number of connections dropped for falling behind.
+	 * @return the slow connections.
+	 */
+	public long getSlowConnections() {
+		return mySlowConnections;
+	}
+
+	/**
+	 * Count a change in the number of racing lobbies.
+	 * @param theDelta +1 when a race starts, -1 when it ends.
+	 */
+	void lobbyChanged(int theDelta) {
+		myLobbies += theDelta;
+		if (theDelta > 0) {
+			myRaces++;
+		}
+	}
+
+	/**
+	 * Count a change in the number of logged in data connections.
+	 * @param theDelta +1 on login, -1 on close.
+	 */
+	void dataSessionChanged(int theDelta) {
+		myDataSessions += theDelta;
+	}
+
+	/**
+	 * Count a position sent.
+	 */
+	void positionSent() {
+		myPositionsSent++;
+	}
+
+	/**
+	 * Count an echo and record its latency.
+	 * @param theLatency nanoseconds since the position was sent,
+	 * or -1 if the echo couldn't be matched to a position.
+	 */
+	void echoReceived(long theLatency) {
+		myEchoesReceived++;
+		if (theLatency >= 0) {
+			myEchoLatency.record(theLatency);
+		}
+	}
+
+	/**
+	 * Count a pong and record its latency.
+	 * @param theLatency nanoseconds since the ping was sent.
+	 */
+	void pongReceived(long theLatency) {
+		myPongsReceived++;
+		myPongLatency.record(theLatency);
+	}
+
+	/**
+	 * Record how far an echo's time was from the server's clock.
+	 * @param theError the difference in nanoseconds, either way.
+	 */
+	void clockChecked(long theError) {
+		myClockError.record(Math.abs(theError));
+	}
+
+	/**
+	 * Count a connection dropped for falling behind.
+	 */
+	void slowConnection() {
+		mySlowConnections++;
+	}
+
+	/**
+	 * Run the loop.
+	 */
+	@Override
+	public void run() {
+		while (myContinue) {
+			try {
+				Timer next = myTimers.peek();
+				if (next == null) {
+					mySelector.select();
+				} else {
+					long wait = TimeUnit.NANOSECONDS.toMillis(next.myDeadline - System.nanoTime());
+					if (wait > 0) {
+						mySelector.select(wait);
+					} else {
+						mySelector.selectNow();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			runTasks();
+			processSelectedKeys();
+			runTimers();
+		}
+
+		for (SelectionKey key : mySelector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		try {
+			mySelector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Run all tasks handed to the loop since the last pass.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = myTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Run every timer that is due.
+	 */
+	private void runTimers() {
+		long now = System.nanoTime();
+		Timer timer;
+		while ((timer = myTimers.peek()) != null && timer.myDeadline - now <= 0) {
+			myTimers.poll();
+			try {
+				timer.myTask.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Accept on every ready listener and hand every other ready
+	 * channel to its connection.
+	 */
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> keys = mySelector.selectedKeys().iterator();
+
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+
+			if (key.attachment() instanceof Listener) {
+				((Listener) key.attachment()).accept();
+				continue;
+			}
+
+			Connection connection = (Connection) key.attachment();
+			try {
+				if (key.isValid() && key.isReadable()) {
+					connection.handleRead();
+				}
+
+				if (key.isValid() && key.isWritable()) {
+					connection.handleWrite();
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * A task due at a given time.
+	 */
+	private static final class Timer implements Comparable<Timer> {
+
+		/**
+		 * When the task is due, from System.nanoTime().
+		 */
+		private final long myDeadline;
+
+		/**
+		 * The task.
+		 */
+		private final Runnable myTask;
+
+		/**
+		 * Construct a new timer.
+		 * @param theDeadline when the task is due.
+		 * @param theTask the task.
+		 */
+		private Timer(long theDeadline, Runnable theTask) {
+			myDeadline = theDeadline;
+			myTask = theTask;
+		}
+
+		@Override
+		public int compareTo(Timer theOther) {
+			return Long.signum(myDeadline - theOther.myDeadline);
+		}
+	}
+
+	/**
+	 * A listening channel and where its connections go.
+	 */
+	private static final class Listener {
+
+		/**
+		 * The listening channel.
+		 */
+		private final ServerSocketChannel myServer;
+
+		/**
+		 * The loops sharing the accepted connections.
+		 */
+		private final ServerLoop[] myLoops;
+
+		/**
+		 * Creates a connection for an accepted channel.
+		 */
+		private final ConnectionFactory myFactory;
+
+		/**
+		 * The loop that gets the next connection.
+		 */
+		private int myNext;
+
+		/**
+		 * Construct a new listener.
+		 * @param theServer the listening channel.
+		 * @param theLoops the loops sharing the connections.
+		 * @param theFactory creates a connection for an accepted channel.
+		 */
+		private Listener(ServerSocketChannel theServer, ServerLoop[] theLoops, ConnectionFactory theFactory) {
+			myServer = theServer;
+			myLoops = theLoops;
+			myFactory = theFactory;
+			myNext = 0;
+		}
+
+		/**
+		 * Accept every pending connection.
+		 */
+		private void accept() {
+			try {
+				SocketChannel channel;
+				while ((channel = myServer.accept()) != null) {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					myLoops[myNext].add(channel, myFactory);
+					myNext = (myNext + 1) % myLoops.length;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
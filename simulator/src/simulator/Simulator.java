@@ -0,0 +1,271 @@
+package simulator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpServer;
+
+import model.ChannelWriter;
+import model.LatencyHistogram;
+
+/**
+ * A local stand-in for the game's servers, for repeatable load
+ * and latency testing on one machine. Serves the HTTP login,
+ * the data port and the game lobby port, invites every bot
+ * that logs in to races hosted by one host player, and streams
+ * that player's positions into every lobby at a fixed rate.
+ * Throughput and echo and ping round trip times, as seen from
+ * the server's side, are reported periodically.
+ *
+ * Usage: Simulator [--option value]... (see SimulatorOptions)
+ * @author Damiene Stewart
+ */
+public class Simulator {
+
+	/**
+	 * The simulator's settings.
+	 */
+	private final SimulatorOptions myOptions;
+
+	/**
+	 * The accounts and races.
+	 */
+	private final AccountRegistry myAccounts;
+
+	/**
+	 * The friend list sent to every bot, encoded once.
+	 */
+	private final byte[] myFriendList;
+
+	/**
+	 * The event loops serving the data and lobby connections.
+	 */
+	private final ServerLoop[] myLoops;
+
+	/**
+	 * The wall clock, in nanoseconds, when the simulator started.
+	 */
+	private final long myClockBase;
+
+	/**
+	 * When the simulator started, from System.nanoTime().
+	 */
+	private final long myClockStart;
+
+	/**
+	 * The login server.
+	 */
+	private HttpServer myLoginServer;
+
+	/**
+	 * Construct a new simulator. Nothing is started until
+	 * start() is called.
+	 * @param theOptions the simulator's settings.
+	 * @throws IOException if an event loop can't be created.
+	 */
+	public Simulator(SimulatorOptions theOptions) throws IOException {
+		myOptions = theOptions;
+		myAccounts = new AccountRegistry();
+		myFriendList = encodeFriendList(theOptions);
+		myClockBase = System.currentTimeMillis() * 1000000L;
+		myClockStart = System.nanoTime();
+		myLoops = new ServerLoop[theOptions.getThreads()];
+		for (int i = 0; i < myLoops.length; i++) {
+			myLoops[i] = new ServerLoop("Simulator-" + i);
+		}
+	}
+
+	/**
+	 * Run the simulator until killed.
+	 * @param theArgs the command-line options.
+	 * @throws IOException if a server can't be started.
+	 * @throws InterruptedException if interrupted while running.
+	 */
+	public static void main(String... theArgs) throws IOException, InterruptedException {
+		SimulatorOptions options = SimulatorOptions.parse(theArgs);
+
+		if (options.getAccountsFile() != null) {
+			writeAccounts(options);
+		}
+
+		Simulator simulator = new Simulator(options);
+		simulator.start();
+
+		System.out.println("Simulator listening on " + options.getHost() + ". Point the bot at it with:");
+		System.out.println("  -Dfunrun.login.address=http://" + options.getHost() + ":" + options.getLoginPort()
+				+ " -Dfunrun.host=" + options.getHost()
+				+ " -Dfunrun.data.port=" + options.getDataPort()
+				+ " -Dfunrun.game.port=" + options.getGamePort());
+
+		Runtime.getRuntime().addShutdownHook(new Thread(simulator::shutdown));
+		simulator.report();
+	}
+
+	/**
+	 * Start the servers.
+	 * @throws IOException if a port can't be bound.
+	 */
+	public void start() throws IOException {
+		for (ServerLoop loop : myLoops) {
+			loop.start();
+		}
+
+		ServerSocketChannel data = ServerSocketChannel.open();
+		data.bind(new InetSocketAddress(myOptions.getHost(), myOptions.getDataPort()), 1024);
+		myLoops[0].listen(data, myLoops, (theLoop, theChannel) -> new DataSession(theLoop, theChannel, this));
+
+		ServerSocketChannel game = ServerSocketChannel.open();
+		game.bind(new InetSocketAddress(myOptions.getHost(), myOptions.getGamePort()), 1024);
+		myLoops[0].listen(game, myLoops, (theLoop, theChannel) -> new LobbySession(theLoop, theChannel, this));
+
+		myLoginServer = HttpServer.create(new InetSocketAddress(myOptions.getHost(), myOptions.getLoginPort()), 1024);
+		myLoginServer.createContext("/", new LoginHandler(myAccounts));
+		myLoginServer.setExecutor(Executors.newFixedThreadPool(4));
+		myLoginServer.start();
+	}
+
+	/**
+	 * Stop the servers.
+	 */
+	public void shutdown() {
+		if (myLoginServer != null) {
+			myLoginServer.stop(0);
+		}
+
+		for (ServerLoop loop : myLoops) {
+			loop.shutdown();
+		}
+	}
+
+	/**
+	 * Return the simulator's settings.
+	 * @return the options.
+	 */
+	SimulatorOptions getOptions() {
+		return myOptions;
+	}
+
+	/**
+	 * Return the accounts and races.
+	 * @return the registry.
+	 */
+	AccountRegistry getAccounts() {
+		return myAccounts;
+	}
+
+	/**
+	 * Return the server's clock, with the configured skew and drift.
+	 * @param theTime the local time, from System.nanoTime().
+	 * @return the server's time in nanoseconds.
+	 */
+	long getServerTime(long theTime) {
+		long elapsed = theTime - myClockStart;
+		return myClockBase + myOptions.getClockSkew() + elapsed
+				+ (long) (elapsed * myOptions.getClockDrift());
+	}
+
+	/**
+	 * Return the friend list sent to every bot.
+	 * @return the encoded m:1 message.
+	 */
+	byte[] getFriendList() {
+		return myFriendList;
+	}
+
+	/**
+	 * Print a report every report interval, forever. Rates are
+	 * over the last interval; latencies are since the start.
+	 * @throws InterruptedException if interrupted.
+	 */
+	private void report() throws InterruptedException {
+		long interval = myOptions.getReportInterval();
+		long elapsed = 0;
+		long positions = 0;
+		long echoes = 0;
+		long pongs = 0;
+
+		while (true) {
+			Thread.sleep(interval * 1000);
+			elapsed += interval;
+
+			int bots = 0;
+			int lobbies = 0;
+			long races = 0;
+			long slow = 0;
+			long positionsNow = 0;
+			long echoesNow = 0;
+			long pongsNow = 0;
+			LatencyHistogram echoLatency = new LatencyHistogram();
+			LatencyHistogram pongLatency = new LatencyHistogram();
+			LatencyHistogram clockError = new LatencyHistogram();
+
+			for (ServerLoop loop : myLoops) {
+				bots += loop.getDataSessions();
+				lobbies += loop.getLobbies();
+				races += loop.getRaces();
+				slow += loop.getSlowConnections();
+				positionsNow += loop.getPositionsSent();
+				echoesNow += loop.getEchoesReceived();
+				pongsNow += loop.getPongsReceived();
+				echoLatency.add(loop.getEchoLatency());
+				pongLatency.add(loop.getPongLatency());
+				clockError.add(loop.getClockError());
+			}
+
+			System.out.println(String.format(Locale.ROOT,
+					"%5ds bots %d lobbies %d races %d slow %d | positions/s %.0f echoes/s %.0f pongs/s %.0f",
+					elapsed, bots, lobbies, races, slow,
+					(positionsNow - positions) / (double) interval,
+					(echoesNow - echoes) / (double) interval,
+					(pongsNow - pongs) / (double) interval));
+			System.out.println("       echo " + echoLatency);
+			System.out.println("       pong " + pongLatency);
+			System.out.println("      clock " + clockError);
+
+			positions = positionsNow;
+			echoes = echoesNow;
+			pongs = pongsNow;
+		}
+	}
+
+	/**
+	 * Encode the friend list: the host player first, then filler
+	 * friends up to the configured size.
+	 * @param theOptions the simulator's settings.
+	 * @return the encoded m:1 message.
+	 */
+	private static byte[] encodeFriendList(SimulatorOptions theOptions) {
+		JSONArray friends = new JSONArray();
+		friends.put(new JSONObject().put("p", theOptions.getHostPlayer()).put("n", "Host"));
+		for (int i = 1; i < theOptions.getFriends(); i++) {
+			friends.put(new JSONObject().put("p", "friend-" + i).put("n", "Friend " + i));
+		}
+
+		return ChannelWriter.encode(new JSONObject().put("m", 1).put("f", friends).toString());
+	}
+
+	/**
+	 * Write an accounts file for BotFleet, with every bot
+	 * following the host player.
+	 * @param theOptions the simulator's settings.
+	 * @throws IOException if the file can't be written.
+	 */
+	private static void writeAccounts(SimulatorOptions theOptions) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 1; i <= theOptions.getBots(); i++) {
+			lines.add("bot" + i + "@sim.local password " + theOptions.getHostPlayer());
+		}
+
+		Files.write(theOptions.getAccountsFile(), lines, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,409 @@
+package simulator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The simulator's settings, read from the command line.
+ * @author Damiene Stewart
+ */
+public class SimulatorOptions {
+
+	/**
+	 * Address the servers listen on and that invites point at.
+	 */
+	private String myHost;
+
+	/**
+	 * Port of the HTTP login server.
+	 */
+	private int myLoginPort;
+
+	/**
+	 * Port of the data server.
+	 */
+	private int myDataPort;
+
+	/**
+	 * Port of the game lobby server.
+	 */
+	private int myGamePort;
+
+	/**
+	 * Number of event loop threads.
+	 */
+	private int myThreads;
+
+	/**
+	 * Positions sent per second in each lobby.
+	 */
+	private double myPositionRate;
+
+	/**
+	 * Pings sent per second in each lobby.
+	 */
+	private double myPingRate;
+
+	/**
+	 * Length of a race in seconds, or 0 for races that never end.
+	 */
+	private double myRaceLength;
+
+	/**
+	 * Races each bot is invited to, or 0 for no limit.
+	 */
+	private int myRaces;
+
+	/**
+	 * Time, in milliseconds, from login or the end of a race to
+	 * the next invite.
+	 */
+	private long myInviteDelay;
+
+	/**
+	 * Number of friends in each bot's friend list.
+	 */
+	private int myFriends;
+
+	/**
+	 * ID of the player who hosts every race.
+	 */
+	private String myHostPlayer;
+
+	/**
+	 * Opcode that ends a race, 28 or 7.
+	 */
+	private int myEndOpcode;
+
+	/**
+	 * Time, in seconds, between reports.
+	 */
+	private long myReportInterval;
+
+	/**
+	 * Accounts file to write before starting, or null.
+	 */
+	private Path myAccountsFile;
+
+	/**
+	 * Number of accounts to write.
+	 */
+	private int myBots;
+
+	/**
+	 * Milliseconds the server's clock is ahead of the local one.
+	 */
+	private long myClockSkew;
+
+	/**
+	 * Parts per million the server's clock runs faster than the
+	 * local one.
+	 */
+	private double myClockDrift;
+
+	/**
+	 * Most milliseconds a clock frame or ping is held back before
+	 * it is sent, picked at random for each.
+	 */
+	private long myClockJitter;
+
+	/**
+	 * Clock frames sent per second in each lobby after the first,
+	 * or 0 for only the first.
+	 */
+	private double myClockRate;
+
+	/**
+	 * Construct the default options.
+	 */
+	public SimulatorOptions() {
+		myHost = "127.0.0.1";
+		myLoginPort = 6389;
+		myDataPort = 6689;
+		myGamePort = 6789;
+		myThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		myPositionRate = 20;
+		myPingRate = 1;
+		myRaceLength = 60;
+		myRaces = 0;
+		myInviteDelay = 1000;
+		myFriends = 10;
+		myHostPlayer = "sim-host";
+		myEndOpcode = 28;
+		myReportInterval = 5;
+		myAccountsFile = null;
+		myBots = 100;
+		myClockSkew = 0;
+		myClockDrift = 0;
+		myClockJitter = 0;
+		myClockRate = 0;
+	}
+
+	/**
+	 * Read options from the command line.
+	 * @param theArgs pairs of option and value.
+	 * @return the options.
+	 */
+	public static SimulatorOptions parse(String... theArgs) {
+		SimulatorOptions options = new SimulatorOptions();
+
+		if (theArgs.length % 2 != 0)
+			throw new IllegalArgumentException("The option: " + theArgs[theArgs.length - 1] + " has no value.");
+
+		for (int i = 0; i < theArgs.length; i += 2) {
+			String value = theArgs[i + 1];
+
+			switch (theArgs[i]) {
+			case "--host":
+				options.myHost = value;
+				break;
+			case "--login-port":
+				options.myLoginPort = Integer.parseInt(value);
+				break;
+			case "--data-port":
+				options.myDataPort = Integer.parseInt(value);
+				break;
+			case "--game-port":
+				options.myGamePort = Integer.parseInt(value);
+				break;
+			case "--threads":
+				options.myThreads = Integer.parseInt(value);
+				break;
+			case "--rate":
+				options.myPositionRate = Double.parseDouble(value);
+				break;
+			case "--ping-rate":
+				options.myPingRate = Double.parseDouble(value);
+				break;
+			case "--race":
+				options.myRaceLength = Double.parseDouble(value);
+				break;
+			case "--races":
+				options.myRaces = Integer.parseInt(value);
+				break;
+			case "--invite-delay":
+				options.myInviteDelay = Long.parseLong(value);
+				break;
+			case "--friends":
+				options.myFriends = Integer.parseInt(value);
+				break;
+			case "--host-player":
+				options.myHostPlayer = value;
+				break;
+			case "--end":
+				options.myEndOpcode = Integer.parseInt(value);
+				break;
+			case "--report":
+				options.myReportInterval = Long.parseLong(value);
+				break;
+			case "--accounts":
+				options.myAccountsFile = Paths.get(value);
+				break;
+			case "--bots":
+				options.myBots = Integer.parseInt(value);
+				break;
+			case "--clock-skew":
+				options.myClockSkew = Long.parseLong(value);
+				break;
+			case "--clock-drift":
+				options.myClockDrift = Double.parseDouble(value);
+				break;
+			case "--clock-jitter":
+				options.myClockJitter = Long.parseLong(value);
+				break;
+			case "--clock-rate":
+				options.myClockRate = Double.parseDouble(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + theArgs[i]);
+			}
+		}
+
+		options.validate();
+		return options;
+	}
+
+	/**
+	 * Check that the options make sense together.
+	 */
+	private void validate() {
+		if (myThreads < 1)
+			throw new IllegalArgumentException("The threads: " + myThreads + " is invalid.");
+		if (myPositionRate <= 0)
+			throw new IllegalArgumentException("The rate: " + myPositionRate + " is invalid.");
+		if (myPingRate < 0)
+			throw new IllegalArgumentException("The ping rate: " + myPingRate + " is invalid.");
+		if (myRaceLength < 0)
+			throw new IllegalArgumentException("The race length: " + myRaceLength + " is invalid.");
+		if (myFriends < 1)
+			throw new IllegalArgumentException("The friends: " + myFriends + " is invalid.");
+		if (myEndOpcode != 28 && myEndOpcode != 7)
+			throw new IllegalArgumentException("The end opcode: " + myEndOpcode + " is invalid.");
+		if (myReportInterval < 1)
+			throw new IllegalArgumentException("The report interval: " + myReportInterval + " is invalid.");
+		if (myClockJitter < 0)
+			throw new IllegalArgumentException("The clock jitter: " + myClockJitter + " is invalid.");
+		if (myClockRate < 0)
+			throw new IllegalArgumentException("The clock rate: " + myClockRate + " is invalid.");
+	}
+
+	/**
+	 * Return the address the servers listen on.
+	 * @return the host.
+	 */
+	public String getHost() {
+		return myHost;
+	}
+
+	/**
+	 * Return the login server's port.
+	 * @return the port.
+	 */
+	public int getLoginPort() {
+		return myLoginPort;
+	}
+
+	/**
+	 * Return the data server's port.
+	 * @return the port.
+	 */
+	public int getDataPort() {
+		return myDataPort;
+	}
+
+	/**
+	 * Return the game lobby server's port.
+	 * @return the port.
+	 */
+	public int getGamePort() {
+		return myGamePort;
+	}
+
+	/**
+	 * Return the number of event loop threads.
+	 * @return the threads.
+	 */
+	public int getThreads() {
+		return myThreads;
+	}
+
+	/**
+	 * Return the time between positions in a lobby.
+	 * @return the period in nanoseconds.
+	 */
+	public long getPositionPeriod() {
+		return (long) (1e9 / myPositionRate);
+	}
+
+	/**
+	 * Return the time between pings in a lobby.
+	 * @return the period in nanoseconds, or 0 for no pings.
+	 */
+	public long getPingPeriod() {
+		return myPingRate == 0 ? 0 : (long) (1e9 / myPingRate);
+	}
+
+	/**
+	 * Return the length of a race.
+	 * @return the length in nanoseconds, or 0 for races that never end.
+	 */
+	public long getRaceLength() {
+		return (long) (myRaceLength * 1e9);
+	}
+
+	/**
+	 * Return the number of races each bot is invited to.
+	 * @return the races, or 0 for no limit.
+	 */
+	public int getRaces() {
+		return myRaces;
+	}
+
+	/**
+	 * Return the time before an invite.
+	 * @return the delay in nanoseconds.
+	 */
+	public long getInviteDelay() {
+		return myInviteDelay * 1000000L;
+	}
+
+	/**
+	 * Return the number of friends in each friend list.
+	 * @return the friends.
+	 */
+	public int getFriends() {
+		return myFriends;
+	}
+
+	/**
+	 * Return the ID of the player hosting every race.
+	 * @return the host player's ID.
+	 */
+	public String getHostPlayer() {
+		return myHostPlayer;
+	}
+
+	/**
+	 * Return the opcode that ends a race.
+	 * @return 28, or 7 to end the race and ask for a rejoin.
+	 */
+	public int getEndOpcode() {
+		return myEndOpcode;
+	}
+
+	/**
+	 * Return the time between reports.
+	 * @return the interval in seconds.
+	 */
+	public long getReportInterval() {
+		return myReportInterval;
+	}
+
+	/**
+	 * Return the accounts file to write.
+	 * @return the file, or null.
+	 */
+	public Path getAccountsFile() {
+		return myAccountsFile;
+	}
+
+	/**
+	 * Return the number of accounts to write.
+	 * @return the bots.
+	 */
+	public int getBots() {
+		return myBots;
+	}
+
+	/**
+	 * Return how far the server's clock is ahead of the local one.
+	 * @return the skew in nanoseconds.
+	 */
+	public long getClockSkew() {
+		return myClockSkew * 1000000L;
+	}
+
+	/**
+	 * Return how much faster the server's clock runs.
+	 * @return the drift as a fraction of elapsed time.
+	 */
+	public double getClockDrift() {
+		return myClockDrift / 1e6;
+	}
+
+	/**
+	 * Return the most a clock frame or ping is held back.
+	 * @return the jitter in nanoseconds.
+	 */
+	public long getClockJitter() {
+		return myClockJitter * 1000000L;
+	}
+
+	/**
+	 * Return the time between clock frames in a lobby.
+	 * @return the period in nanoseconds, or 0 for only the first.
+	 */
+	public long getClockPeriod() {
+		return myClockRate == 0 ? 0 : (long) (1e9 / myClockRate);
+	}
+}
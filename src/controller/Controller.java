@@ -1,9 +1,24 @@
 package controller;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import model.Client;
+import model.ClientListener;
+import model.Config;
+import model.Connector;
+import model.EventLog;
 import model.Friend;
+import model.FriendListener;
+import model.FriendRegistry;
+import model.LogLevel;
+import model.PerformanceSnapshot;
+import model.Scheduler;
 import view.EchoBotGUI;
 
 /**
@@ -11,7 +26,30 @@ import view.EchoBotGUI;
  * both the GUI and the Client.
  * @author Damiene Stewart
  */
-public class Controller {
+public class Controller implements ClientListener, FriendListener {
+	
+	/**
+	 * Key of updates that replace the whole friend list.
+	 */
+	private static final Object FRIENDS_KEY = new Object();
+	
+	/**
+	 * Key of updates that show a performance snapshot.
+	 */
+	private static final Object DASHBOARD_KEY = new Object();
+	
+	/**
+	 * Most single friend updates that may be waiting; past this
+	 * the whole list is reloaded instead, which takes one key.
+	 */
+	private static final int MAX_FRIEND_UPDATES = UpdateBus.DEFAULT_CAPACITY / 4;
+	
+	/**
+	 * Orders friends by name, ignoring case, then by ID.
+	 */
+	private static final Comparator<Friend> FRIEND_ORDER =
+			Comparator.comparing(Friend::getUserName, String.CASE_INSENSITIVE_ORDER)
+					.thenComparing(Friend::getPlayerID);
 	
 	/**
 	 * A reference to the GUI class (view).
@@ -23,6 +61,29 @@ public class Controller {
 	 */
 	private Client myClient;
 	
+	/**
+	 * The bot's friends in name order, kept in step with the
+	 * model. Only changed on the Java FX application thread.
+	 */
+	private ObservableList<Friend> myFriends;
+	
+	/**
+	 * Carries the model's changes to the view.
+	 */
+	private UpdateBus myUpdates;
+	
+	/**
+	 * Samples the client's performance for the dashboard, or
+	 * null until the bot has logged in.
+	 */
+	private ScheduledFuture<?> mySampler;
+	
+	/**
+	 * The last performance snapshot taken. Only used by the
+	 * sampling task.
+	 */
+	private PerformanceSnapshot mySnapshot;
+	
 	/**
 	 * Constructs an instance of the controller class.
 	 * @param theGUI the GUI reference.
@@ -30,39 +91,171 @@ public class Controller {
 	public Controller(EchoBotGUI theGUI) {
 		myGUI = theGUI;
 		myClient = new Client(this);
+		myFriends = FXCollections.observableArrayList();
+		myUpdates = new UpdateBus(UpdateBus.DEFAULT_CAPACITY);
+		myClient.getFriends().addListener(this);
 	}
 	
 	/**
-	 * Login function initiated from the GUI.
+	 * Login function initiated from the GUI. The login runs in
+	 * the background so the GUI stays responsive, and any failure
+	 * ends in an alert.
 	 * @param theEmail the bot's email.
 	 * @param thePassword the bot's password.
 	 */
 	public void login(String theEmail, String thePassword) {
-		if (myClient.login(theEmail, thePassword)) {
-			myClient.startDataMonitor();
-		} else {
-			myGUI.showLoginAlert(myClient.getLoginErrorMessage());
-		}
+		myClient.login(theEmail, thePassword).thenAccept(theLoggedIn -> {
+			if (theLoggedIn) {
+				myClient.startDataMonitor();
+			} else {
+				myUpdates.postEvent(() -> myGUI.showLoginAlert(myClient.getLoginErrorMessage()));
+			}
+		}).exceptionally(theError -> {
+			EventLog.getInstance().log(LogLevel.ERROR, "The login failed", theError);
+			myUpdates.postEvent(() -> myGUI.showLoginAlert("Unable to log in."));
+			return null;
+		});
 	}
 	
 	/**
 	 * Toggle whether the user has progressed to a logged in stage or not.
+	 * Called from the data monitor, so the GUI is updated on the
+	 * Java FX application thread.
 	 * @param theLoggedInStatus true if user has successfully logged in, false otherwise.
 	 */
+	@Override
 	public void setLoggedIn(boolean theLoggedInStatus) {
 		if (theLoggedInStatus) {
-			myGUI.showMainScene();
+			myUpdates.postEvent(() -> myGUI.showMainScene());
+			startSampling();
 		} else {
 			// TODO Logged out. Display reason for log out.
 		}
 	}
 	
 	/**
-	 * Return the friend list from the client (model).
-	 * @return the list of the bot's friends.
+	 * Return the friend list from the client (model). The list
+	 * follows later changes to the model's friends.
+	 * @return the bot's friends, in name order.
 	 */
-	public List<Friend> getFriendList() {
-		return myClient.getFriendList();
+	public ObservableList<Friend> getFriends() {
+		return myFriends;
+	}
+	
+	/**
+	 * Return the bus carrying the model's changes to the view.
+	 * @return the update bus.
+	 */
+	public UpdateBus getUpdateBus() {
+		return myUpdates;
+	}
+	
+	/**
+	 * Replace the shown friends. The friends are copied and
+	 * sorted on the calling network thread, outside the bus's
+	 * lock, so that the Java FX application thread only swaps
+	 * the list's contents. The copy is only posted if the
+	 * registry hasn't changed since, and copied again otherwise:
+	 * the waiting changes to single friends it drops are then
+	 * all older than the copy, any newer change is posted after
+	 * it, and a stale copy never replaces a newer one.
+	 * @param theRegistry the model's friends.
+	 */
+	@Override
+	public void friendsReplaced(FriendRegistry theRegistry) {
+		while (true) {
+			long version;
+			List<Friend> friends;
+			synchronized (theRegistry) {
+				version = theRegistry.getVersion();
+				friends = theRegistry.getFriends();
+			}
+			Collections.sort(friends, FRIEND_ORDER);
+
+			synchronized (myUpdates) {
+				if (theRegistry.getVersion() == version) {
+					myUpdates.postSuperseding(FRIENDS_KEY, Controller::isFriendKey, () -> myFriends.setAll(friends));
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Show an added friend, or a friend's new name.
+	 * @param theFriend the friend as it is now.
+	 */
+	@Override
+	public void friendUpdated(Friend theFriend) {
+		postFriendUpdate(theFriend.getPlayerID(), () -> {
+			removeShownFriend(theFriend.getPlayerID());
+			int index = Collections.binarySearch(myFriends, theFriend, FRIEND_ORDER);
+			myFriends.add(index < 0 ? -index - 1 : index, theFriend);
+		});
+	}
+	
+	/**
+	 * Stop showing a removed friend.
+	 * @param theFriend the friend that was removed.
+	 */
+	@Override
+	public void friendRemoved(Friend theFriend) {
+		postFriendUpdate(theFriend.getPlayerID(), () -> removeShownFriend(theFriend.getPlayerID()));
+	}
+	
+	/**
+	 * Post a change to one friend, keyed by the friend, so only
+	 * the latest change to each friend is applied. When too many
+	 * are waiting the whole list is reloaded instead.
+	 * @param thePlayerID the friend's ID.
+	 * @param theUpdate the change.
+	 */
+	private void postFriendUpdate(String thePlayerID, Runnable theUpdate) {
+		if (myUpdates.getPending() < MAX_FRIEND_UPDATES) {
+			myUpdates.post(thePlayerID, theUpdate);
+		} else {
+			friendsReplaced(myClient.getFriends());
+		}
+	}
+	
+	/**
+	 * Returns true if an update key is a single friend's.
+	 * @param theKey the key.
+	 * @return true if it is a player ID.
+	 */
+	private static boolean isFriendKey(Object theKey) {
+		// Changes to single friends are keyed by player ID.
+		return theKey instanceof String;
+	}
+	
+	/**
+	 * Start sampling the client's performance for the dashboard
+	 * on the shared timer, at a fixed low rate, so the network
+	 * threads never do more than bump their counters.
+	 */
+	private synchronized void startSampling() {
+		if (mySampler != null) {
+			return;
+		}
+		
+		mySampler = Scheduler.getInstance().scheduleAtFixedRate(() -> {
+			PerformanceSnapshot snapshot = PerformanceSnapshot.take(myClient, mySnapshot);
+			mySnapshot = snapshot;
+			myUpdates.post(DASHBOARD_KEY, () -> myGUI.showPerformance(snapshot, myUpdates));
+		}, Config.DASHBOARD_INTERVAL, Config.DASHBOARD_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Remove a friend from the shown friends.
+	 * @param thePlayerID the friend's ID.
+	 */
+	private void removeShownFriend(String thePlayerID) {
+		for (int i = 0; i < myFriends.size(); i++) {
+			if (myFriends.get(i).getPlayerID().equals(thePlayerID)) {
+				myFriends.remove(i);
+				return;
+			}
+		}
 	}
 	
 	/**
@@ -73,11 +266,27 @@ public class Controller {
 	public void setFriend(Friend theFriend) {
 		myClient.setMyFriend(theFriend);
 	}
+	
+	/**
+	 * Set the friends that the bot should respond to requests
+	 * from, in place of those followed so far. The lobby the
+	 * bot is in, if any, is left alone.
+	 * @param theFriends the friends to follow.
+	 */
+	public void setFriends(List<Friend> theFriends) {
+		myClient.getInvitePolicy().followOnly(theFriends);
+	}
 
 	/**
 	 * Initiate shutdown procedure.
 	 */
 	public void shutdown() {
+		synchronized (this) {
+			if (mySampler != null) {
+				mySampler.cancel(false);
+			}
+		}
 		myClient.shutdown();
+		Connector.getInstance().shutdown();
 	}
 }
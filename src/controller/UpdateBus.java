@@ -0,0 +1,293 @@
+package controller;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.concurrent.atomic.LongAdder;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import model.EventLog;
+import model.LogLevel;
+
+/**
+ * Carries updates from the model's threads to the view. Each
+ * update is posted under a key, and an update posted while
+ * another with the same key is waiting replaces it, keeping
+ * its place in line. Waiting updates are applied together on
+ * the Java FX application thread at most once per frame, by an
+ * animation timer that only runs while updates are waiting.
+ *
+ * An update may also replace every waiting update whose key
+ * it supersedes, going to the back of the line, so that a newer
+ * update of the whole of something isn't followed by older
+ * updates of its parts. Events, such as a change of scene, are
+ * posted without a key: each is applied in turn, never replaced
+ * and never dropped.
+ *
+ * At most a fixed number of keys may be waiting; an update
+ * under a new key is dropped while the bus is full. Posted,
+ * merged, dropped and applied updates are counted.
+ * @author Damiene Stewart
+ */
+public class UpdateBus {
+
+	/**
+	 * Number of keys that may be waiting unless told otherwise.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Most keys that may be waiting.
+	 */
+	private final int myCapacity;
+
+	/**
+	 * The waiting updates, in the order their keys were first
+	 * posted. Guarded by this bus, which callers may hold to post
+	 * an update together with reading what it shows.
+	 */
+	private final Map<Object, Runnable> myPending;
+
+	/**
+	 * Applies the waiting updates once per frame.
+	 */
+	private final AnimationTimer myTimer;
+
+	/**
+	 * Updates posted.
+	 */
+	private final LongAdder myPosted;
+
+	/**
+	 * Updates replaced by a newer one with the same key.
+	 */
+	private final LongAdder myMerged;
+
+	/**
+	 * Updates dropped because the bus was full.
+	 */
+	private final LongAdder myDropped;
+
+	/**
+	 * Updates applied.
+	 */
+	private final LongAdder myApplied;
+
+	/**
+	 * Number of batches applied.
+	 */
+	private volatile long myBatches;
+
+	/**
+	 * True while the timer is running or about to start. Guarded
+	 * by this bus.
+	 */
+	private boolean myRunning;
+
+	/**
+	 * Construct a new bus.
+	 * @param theCapacity the most keys that may be waiting.
+	 */
+	public UpdateBus(int theCapacity) {
+		if (theCapacity < 1)
+			throw new IllegalArgumentException("The capacity: " + theCapacity + " is invalid.");
+
+		myCapacity = theCapacity;
+		myPending = new LinkedHashMap<Object, Runnable>();
+		myPosted = new LongAdder();
+		myMerged = new LongAdder();
+		myDropped = new LongAdder();
+		myApplied = new LongAdder();
+		myBatches = 0;
+		myRunning = false;
+		myTimer = new AnimationTimer() {
+			@Override
+			public void handle(long theNow) {
+				applyPending();
+			}
+		};
+	}
+
+	/**
+	 * Post an update. May be called from any thread.
+	 * @param theKey identifies what the update changes.
+	 * @param theUpdate changes the view; run on the Java FX
+	 * application thread.
+	 * @return false if the update was dropped because the bus
+	 * was full.
+	 */
+	public boolean post(Object theKey, Runnable theUpdate) {
+		myPosted.increment();
+
+		synchronized (this) {
+			if (myPending.containsKey(theKey)) {
+				myPending.put(theKey, theUpdate);
+				myMerged.increment();
+				return true;
+			}
+
+			if (myPending.size() >= myCapacity) {
+				myDropped.increment();
+				return false;
+			}
+
+			myPending.put(theKey, theUpdate);
+		}
+
+		startTimer();
+		return true;
+	}
+
+	/**
+	 * Post an update that supersedes other waiting updates. The
+	 * waiting update with the same key and every one whose key
+	 * matches are removed, and the update goes to the back of
+	 * the line. May be called from any thread.
+	 * @param theKey identifies what the update changes.
+	 * @param theSuperseded matches the keys of waiting updates
+	 * that this update makes out of date.
+	 * @param theUpdate changes the view; run on the Java FX
+	 * application thread.
+	 * @return false if the update was dropped because the bus
+	 * was full.
+	 */
+	public boolean postSuperseding(Object theKey, Predicate<Object> theSuperseded, Runnable theUpdate) {
+		myPosted.increment();
+
+		synchronized (this) {
+			int removed = 0;
+			for (Iterator<Object> keys = myPending.keySet().iterator(); keys.hasNext();) {
+				Object key = keys.next();
+				if (key.equals(theKey) || theSuperseded.test(key)) {
+					keys.remove();
+					removed++;
+				}
+			}
+			myMerged.add(removed);
+
+			if (myPending.size() >= myCapacity) {
+				myDropped.increment();
+				return false;
+			}
+
+			myPending.put(theKey, theUpdate);
+		}
+
+		startTimer();
+		return true;
+	}
+
+	/**
+	 * Post an event. Events are applied in turn with the other
+	 * updates, but are never replaced by a later update and are
+	 * posted even when the bus is full. May be called from any
+	 * thread.
+	 * @param theEvent changes the view; run on the Java FX
+	 * application thread.
+	 */
+	public void postEvent(Runnable theEvent) {
+		myPosted.increment();
+
+		synchronized (this) {
+			// A key of its own, which nothing else is posted under.
+			myPending.put(new Object(), theEvent);
+		}
+
+		startTimer();
+	}
+
+	/**
+	 * Return the number of keys waiting.
+	 * @return the waiting updates.
+	 */
+	public synchronized int getPending() {
+		return myPending.size();
+	}
+
+	/**
+	 * Return the number of updates posted.
+	 * @return the posted updates.
+	 */
+	public long getPosted() {
+		return myPosted.sum();
+	}
+
+	/**
+	 * Return the number of updates replaced before being applied.
+	 * @return the merged updates.
+	 */
+	public long getMerged() {
+		return myMerged.sum();
+	}
+
+	/**
+	 * Return the number of updates dropped because the bus was full.
+	 * @return the dropped updates.
+	 */
+	public long getDropped() {
+		return myDropped.sum();
+	}
+
+	/**
+	 * Return the number of updates applied.
+	 * @return the applied updates.
+	 */
+	public long getApplied() {
+		return myApplied.sum();
+	}
+
+	/**
+	 * Return the number of batches applied.
+	 * @return the batches.
+	 */
+	public long getBatches() {
+		return myBatches;
+	}
+
+	/**
+	 * Start the timer on the Java FX application thread unless
+	 * it is already running.
+	 */
+	private void startTimer() {
+		synchronized (this) {
+			if (myRunning) {
+				return;
+			}
+			myRunning = true;
+		}
+
+		Platform.runLater(myTimer::start);
+	}
+
+	/**
+	 * Apply every waiting update, or stop the timer if there are
+	 * none. Runs on the Java FX application thread.
+	 */
+	private void applyPending() {
+		Runnable[] batch;
+
+		synchronized (this) {
+			if (myPending.isEmpty()) {
+				myRunning = false;
+				myTimer.stop();
+				return;
+			}
+
+			batch = myPending.values().toArray(new Runnable[myPending.size()]);
+			myPending.clear();
+		}
+
+		for (Runnable update : batch) {
+			try {
+				update.run();
+			} catch (RuntimeException e) {
+				EventLog.getInstance().log(LogLevel.ERROR, "A view update failed", e);
+			}
+		}
+
+		myApplied.add(batch.length);
+		myBatches++;
+	}
+}
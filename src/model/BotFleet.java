@@ -0,0 +1,187 @@
+package model;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hosts any number of independent bot sessions in one process.
+ * The sessions share the network engine's event loops and the
+ * scheduler's timer, so each additional bot costs some buffers
+ * and objects instead of a process, a JavaFX toolkit and a set
+ * of threads.
+ * @author Damiene Stewart
+ */
+public class BotFleet {
+	
+	/**
+	 * The sessions in the fleet.
+	 */
+	private List<BotSession> mySessions;
+	
+	/**
+	 * Construct a new, empty fleet.
+	 */
+	public BotFleet() {
+		mySessions = new CopyOnWriteArrayList<BotSession>();
+	}
+	
+	/**
+	 * Start a fleet from the command line and report how much
+	 * memory each session costs.
+	 * @param theArgs the accounts file.
+	 * @throws IOException if the accounts file can't be read.
+	 * @throws InterruptedException if interrupted while running.
+	 */
+	public static void main(String... theArgs) throws IOException, InterruptedException {
+		if (theArgs.length != 1) {
+			System.err.println("Usage: BotFleet <accounts file>");
+			return;
+		}
+		
+		BotFleet fleet = new BotFleet();
+		long baseline = usedHeap();
+		
+		fleet.loadAccounts(Paths.get(theArgs[0]));
+		int started = fleet.startAll();
+		
+		System.out.println("Started " + started + " of " + fleet.getSessions().size() + " sessions.");
+		if (started > 0) {
+			System.out.println("Heap per session: " + (usedHeap() - baseline) / started / 1024 + " KB");
+		}
+		
+		// The network threads are daemons; keep running until killed.
+		Runtime.getRuntime().addShutdownHook(new Thread(fleet::shutdown));
+		Thread.currentThread().join();
+	}
+	
+	/**
+	 * Add a session.
+	 * @param theEmail the bot's email address.
+	 * @param thePassword the bot's password.
+	 * @param theFriendID IDs of the friends whose invites are
+	 * accepted, separated by commas, or null to accept none.
+	 * @return the new session.
+	 */
+	public BotSession addAccount(String theEmail, String thePassword, String theFriendID) {
+		BotSession session = new BotSession(theEmail, thePassword, theFriendID);
+		mySessions.add(session);
+		return session;
+	}
+	
+	/**
+	 * Add a session for every account in a file. Each line holds
+	 * an email address, a password and, optionally, the IDs of the
+	 * friends to follow, separated by commas, all separated by
+	 * whitespace. Blank lines and
+	 * lines starting with # are ignored.
+	 * @param theFile the accounts file.
+	 * @return the number of sessions added.
+	 * @throws IOException if the file can't be read.
+	 */
+	public int loadAccounts(Path theFile) throws IOException {
+		int added = 0;
+		
+		for (String line : Files.readAllLines(theFile, StandardCharsets.UTF_8)) {
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+			
+			String[] fields = trimmed.split("\\s+");
+			if (fields.length < 2 || fields.length > 3)
+				throw new IllegalArgumentException("The account line: " + line + " is invalid.");
+			
+			addAccount(fields[0], fields[1], fields.length == 3 ? fields[2] : null);
+			added++;
+		}
+		
+		return added;
+	}
+	
+	/**
+	 * Log in and start every session that isn't logged in yet.
+	 * Logins run concurrently, up to the login service's limit,
+	 * and this waits for all of them. A login that fails with an
+	 * error counts as not started and doesn't stop the others.
+	 * @return the number of sessions started.
+	 */
+	public int startAll() {
+		List<CompletableFuture<Boolean>> logins = new ArrayList<CompletableFuture<Boolean>>();
+		
+		for (BotSession session : mySessions) {
+			if (!session.isLoggedIn()) {
+				logins.add(session.start().handle((theLoggedIn, theError) -> {
+					if (theError != null) {
+						EventLog.getInstance().log(LogLevel.ERROR, null, 0, "A bot could not log in",
+								session.getEmail(), theError);
+						return false;
+					}
+					return theLoggedIn;
+				}));
+			}
+		}
+		
+		int started = 0;
+		for (CompletableFuture<Boolean> login : logins) {
+			if (login.join()) {
+				started++;
+			}
+		}
+		
+		return started;
+	}
+	
+	/**
+	 * Return the sessions in the fleet.
+	 * @return an unmodifiable view of the sessions.
+	 */
+	public List<BotSession> getSessions() {
+		return Collections.unmodifiableList(mySessions);
+	}
+	
+	/**
+	 * Return the sessions that have logged in.
+	 * @return the logged in sessions.
+	 */
+	public List<BotSession> getLoggedInSessions() {
+		List<BotSession> loggedIn = new ArrayList<BotSession>();
+		
+		for (BotSession session : mySessions) {
+			if (session.isLoggedIn()) {
+				loggedIn.add(session);
+			}
+		}
+		
+		return loggedIn;
+	}
+	
+	/**
+	 * Initiate shutdown sequence for every session.
+	 */
+	public void shutdown() {
+		for (BotSession session : mySessions) {
+			session.shutdown();
+		}
+		Connector.getInstance().shutdown();
+	}
+	
+	/**
+	 * Return the heap in use after a garbage collection.
+	 * @return used heap in bytes.
+	 */
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		memory.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,117 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One bot account hosted by a BotFleet. Each session has its
+ * own Client, and with it its own identity, friend list and
+ * monitors, while sharing the process-wide network engine,
+ * scheduler and keepalive service with every other session.
+ * @author Damiene Stewart
+ */
+public class BotSession implements ClientListener {
+	
+	/**
+	 * The bot's email address.
+	 */
+	private String myEmail;
+	
+	/**
+	 * The bot's password.
+	 */
+	private String myPassword;
+	
+	/**
+	 * IDs of the friends whose invites are accepted, separated
+	 * by commas, or null.
+	 */
+	private String myFriendID;
+	
+	/**
+	 * The session's client.
+	 */
+	private Client myClient;
+	
+	/**
+	 * True once the friend list has arrived.
+	 */
+	private volatile boolean myLoggedIn;
+	
+	/**
+	 * Construct a new bot session.
+	 * @param theEmail the bot's email address.
+	 * @param thePassword the bot's password.
+	 * @param theFriendID IDs of the friends whose invites are
+	 * accepted, separated by commas, or null to accept none.
+	 */
+	public BotSession(String theEmail, String thePassword, String theFriendID) {
+		myEmail = theEmail;
+		myPassword = thePassword;
+		myFriendID = theFriendID;
+		myClient = new Client(this);
+		myLoggedIn = false;
+	}
+	
+	/**
+	 * Log in and start monitoring the data connection.
+	 * @return completes with true if login was successful.
+	 */
+	public CompletableFuture<Boolean> start() {
+		return myClient.login(myEmail, myPassword).thenApply(theLoggedIn -> {
+			if (theLoggedIn) {
+				if (myFriendID != null) {
+					List<Friend> friends = new ArrayList<Friend>();
+					for (String id : myFriendID.split(",")) {
+						friends.add(new Friend(id, id));
+					}
+					myClient.getInvitePolicy().followOnly(friends);
+				}
+				myClient.startDataMonitor();
+			}
+			return theLoggedIn;
+		});
+	}
+	
+	@Override
+	public void setLoggedIn(boolean theLoggedInStatus) {
+		myLoggedIn = theLoggedInStatus;
+	}
+	
+	/**
+	 * Returns true once the session's friend list has arrived.
+	 * @return true if the session is logged in.
+	 */
+	public boolean isLoggedIn() {
+		return myLoggedIn;
+	}
+	
+	/**
+	 * Return the bot's email address.
+	 * @return the email address.
+	 */
+	public String getEmail() {
+		return myEmail;
+	}
+	
+	/**
+	 * Return the session's client.
+	 * @return the client.
+	 */
+	public Client getClient() {
+		return myClient;
+	}
+	
+	/**
+	 * Initiate shutdown sequence.
+	 */
+	public void shutdown() {
+		myClient.shutdown();
+	}
+	
+	@Override
+	public String toString() {
+		return myEmail + (myLoggedIn ? " (logged in)" : "");
+	}
+}
@@ -0,0 +1,799 @@
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Writer that buffers outgoing data for a non-blocking
+ * channel. Data is written to the channel by the channel's
+ * event loop, so any thread may write and flush.
+ *
+ * Besides the usual Writer methods, messages can be written
+ * as pre-encoded bytes or as arrays of numbers encoded
+ * straight into the buffer. Nothing reaches the channel
+ * until flush() is called.
+ *
+ * Messages that are only worth sending while they are current,
+ * such as positions, can be written conflated under a key. A
+ * conflated message joins the buffer once everything written
+ * before it has been sent, or as soon as another message is
+ * written after it; until then a newer message with the same key
+ * replaces it. Every message is sent in the order it was written,
+ * and only conflated messages are ever dropped.
+ *
+ * The buffer grows as needed up to Config.WRITE_BUFFER_MAX. Near
+ * that, waiting conflated messages are dropped rather than sent;
+ * a message that still doesn't fit is discarded with everything
+ * unsent, and the writer's owner is told to give up on the
+ * channel instead of buffering more.
+ * @author Damiene Stewart
+ */
+public class ChannelWriter extends Writer {
+
+	/**
+	 * Bytes written for Long.MIN_VALUE, which can't be negated.
+	 */
+	private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Room needed for the largest array written by writeArray().
+	 */
+	private static final int MAX_ARRAY_BYTES = 6 * (LONG_MIN_VALUE.length + 1) + 2;
+
+	/**
+	 * Number of keys conflated messages can be written under.
+	 */
+	public static final int CONFLATION_KEYS = 4;
+
+	/**
+	 * Number of elements in a conflated message.
+	 */
+	private static final int CONFLATED_ELEMENTS = 6;
+
+	/**
+	 * Conflated messages replaced before being sent, by every writer.
+	 */
+	private static final LongAdder ourTotalConflated = new LongAdder();
+
+	/**
+	 * Conflated messages dropped to stay within the buffer's
+	 * largest size, by every writer.
+	 */
+	private static final LongAdder ourTotalDropped = new LongAdder();
+
+	/**
+	 * The channel to write to. Only replaced on the event loop.
+	 */
+	private volatile SocketChannel myChannel;
+
+	/**
+	 * Asked, on the event loop, to replace a channel that could not
+	 * be written to, or null to give up on the channel.
+	 */
+	private BooleanSupplier myFailover;
+
+	/**
+	 * Told once the buffer can't hold another message, or null.
+	 */
+	private Runnable myOverflow;
+
+	/**
+	 * True once the buffer overflowed; everything written since
+	 * is discarded.
+	 */
+	private boolean myOverflowed;
+
+	/**
+	 * Data waiting to be written to the channel.
+	 */
+	private ByteBuffer myBuffer;
+
+	/**
+	 * The event loop the channel is registered with.
+	 */
+	private volatile EventLoop myLoop;
+
+	/**
+	 * The channel's selection key.
+	 */
+	private volatile SelectionKey myKey;
+
+	/**
+	 * Flag indicating whether or not a flush has already been
+	 * handed to the event loop.
+	 */
+	private boolean myFlushPending;
+
+	/**
+	 * Scratch space for encoding a number's digits.
+	 */
+	private final byte[] myDigits;
+
+	/**
+	 * When data was last written to the channel, from System.nanoTime().
+	 */
+	private volatile long myLastWriteTime;
+
+	/**
+	 * Records what is written, or null.
+	 */
+	private TrafficCapture myCapture;
+
+	/**
+	 * The session written data is recorded under.
+	 */
+	private int myCaptureSession;
+
+	/**
+	 * The latest conflated message for each key, or null until
+	 * the first one is written.
+	 */
+	private long[][] myConflated;
+
+	/**
+	 * Which keys have a conflated message waiting to be sent.
+	 */
+	private boolean[] myConflatedPending;
+
+	/**
+	 * When what each key's waiting message answers was read, from
+	 * System.nanoTime(), or 0 if its latency isn't measured.
+	 */
+	private long[] myConflatedReadTime;
+
+	/**
+	 * Gets the latency of the messages written under each key, or null.
+	 */
+	private LatencyHistogram[] myConflatedLatency;
+
+	/**
+	 * Conflated messages this writer replaced before sending.
+	 */
+	private long myConflatedCount;
+
+	/**
+	 * Number of messages written to the buffer.
+	 */
+	private long myMessageCount;
+
+	/**
+	 * Gets a copy of everything flushed without a channel, or null.
+	 */
+	private ByteArrayOutputStream myDiscardCopy;
+
+	/**
+	 * Construct a new channel writer.
+	 * @param theChannel the channel to write to, or null to
+	 * discard everything that is flushed.
+	 */
+	public ChannelWriter(SocketChannel theChannel) {
+		myChannel = theChannel;
+		myBuffer = ByteBuffer.allocate(Config.WRITE_BUFFER_SIZE);
+		myFlushPending = false;
+		myDigits = new byte[LONG_MIN_VALUE.length];
+		myLastWriteTime = System.nanoTime();
+		myCapture = null;
+		myCaptureSession = 0;
+		myConflated = null;
+		myConflatedPending = null;
+		myConflatedReadTime = null;
+		myConflatedLatency = null;
+		myConflatedCount = 0;
+		myMessageCount = 0;
+		myDiscardCopy = null;
+		myFailover = null;
+		myOverflow = null;
+		myOverflowed = false;
+	}
+
+	/**
+	 * Encode a message once so it can be written as bytes
+	 * over and over again.
+	 * @param theMessage the message, without a line break.
+	 * @return the encoded message, line break included.
+	 */
+	public static byte[] encode(String theMessage) {
+		return (theMessage + '\n').getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Called once the channel has been registered with its loop.
+	 * Anything written before then is flushed.
+	 * @param theLoop the event loop.
+	 * @param theKey the channel's selection key.
+	 */
+	void attach(EventLoop theLoop, SelectionKey theKey) {
+		myLoop = theLoop;
+		myKey = theKey;
+		writeToChannel();
+	}
+
+	/**
+	 * Set what to do if writing to the channel fails. If the
+	 * failover returns true it has handed this writer a new channel
+	 * with reconnect(), and the unsent data is kept for it;
+	 * otherwise the data is discarded and the channel closed.
+	 * @param theFailover the failover, or null to always give up.
+	 */
+	synchronized void setFailover(BooleanSupplier theFailover) {
+		myFailover = theFailover;
+	}
+
+	/**
+	 * Set what to do once a message doesn't fit in the buffer even
+	 * at its largest size. It is called once, with the writer's
+	 * lock held, so it must hand the work off rather than do it.
+	 * @param theOverflow the handler, or null to only discard.
+	 */
+	synchronized void setOverflow(Runnable theOverflow) {
+		myOverflow = theOverflow;
+	}
+
+	/**
+	 * Write to a new channel from now on. Nothing is written until
+	 * the channel is attached. Called on the event loop thread.
+	 * @param theChannel the new channel.
+	 */
+	synchronized void reconnect(SocketChannel theChannel) {
+		myChannel = theChannel;
+		myKey = null;
+	}
+
+	/**
+	 * Record everything written to the channel from now on.
+	 * @param theCapture the capture to record to.
+	 * @param theSession the session to record under.
+	 */
+	synchronized void capture(TrafficCapture theCapture, int theSession) {
+		myCapture = theCapture;
+		myCaptureSession = theSession;
+	}
+
+	/**
+	 * Copy everything flushed from now on to a stream instead of
+	 * only discarding it. Only used by writers without a channel.
+	 * @param theCopy the stream to copy to.
+	 */
+	synchronized void copyDiscardedTo(ByteArrayOutputStream theCopy) {
+		myDiscardCopy = theCopy;
+	}
+
+	/**
+	 * Record how long conflated messages written under a key wait:
+	 * the time from reading what they answer until they join the
+	 * buffer behind everything written before them.
+	 * @param theKey the key, from 0 to CONFLATION_KEYS - 1.
+	 * @param theLatency gets the latencies.
+	 */
+	public synchronized void measureConflated(int theKey, LatencyHistogram theLatency) {
+		createConflated(theKey);
+		myConflatedLatency[theKey] = theLatency;
+	}
+
+	@Override
+	public synchronized void write(char[] theChars, int theOffset, int theLength) {
+		if (!put(new String(theChars, theOffset, theLength).getBytes(StandardCharsets.UTF_8))) {
+			return;
+		}
+		for (int i = theOffset; i < theOffset + theLength; i++) {
+			if (theChars[i] == '\n') {
+				myMessageCount++;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void write(String theString, int theOffset, int theLength) {
+		if (!put(theString.substring(theOffset, theOffset + theLength).getBytes(StandardCharsets.UTF_8))) {
+			return;
+		}
+		for (int i = theOffset; i < theOffset + theLength; i++) {
+			if (theString.charAt(i) == '\n') {
+				myMessageCount++;
+			}
+		}
+	}
+
+	/**
+	 * Write a message encoded with encode().
+	 * @param theMessage the encoded message.
+	 */
+	public synchronized void writeBytes(byte[] theMessage) {
+		if (put(theMessage)) {
+			myMessageCount++;
+		}
+	}
+
+	/**
+	 * Write the message [theFirst,theSecond].
+	 * @param theFirst the first element.
+	 * @param theSecond the second element.
+	 */
+	public synchronized void writeArray(long theFirst, long theSecond) {
+		if (!startMessage(MAX_ARRAY_BYTES)) {
+			return;
+		}
+		myBuffer.put((byte) '[');
+		putLong(theFirst);
+		myBuffer.put((byte) ',');
+		putLong(theSecond);
+		myBuffer.put((byte) ']');
+		myBuffer.put((byte) '\n');
+		myMessageCount++;
+	}
+
+	/**
+	 * Write a six element message such as [3,t,x,y,vx,vy].
+	 * @param the0 the first element.
+	 * @param the1 the second element.
+	 * @param the2 the third element.
+	 * @param the3 the fourth element.
+	 * @param the4 the fifth element.
+	 * @param the5 the sixth element.
+	 */
+	public synchronized void writeArray(long the0, long the1, long the2, long the3, long the4, long the5) {
+		if (!startMessage(MAX_ARRAY_BYTES)) {
+			return;
+		}
+		putArray(the0, the1, the2, the3, the4, the5);
+		myMessageCount++;
+	}
+
+	/**
+	 * Write a six element message that may be replaced by a newer
+	 * message with the same key until it is sent.
+	 * @param theKey the key, from 0 to CONFLATION_KEYS - 1.
+	 * @param theReadTime when what the message answers was read,
+	 * from System.nanoTime(), or 0 to keep the time of the message
+	 * it replaces, if any.
+	 * @param the0 the first element.
+	 * @param the1 the second element.
+	 * @param the2 the third element.
+	 * @param the3 the fourth element.
+	 * @param the4 the fifth element.
+	 * @param the5 the sixth element.
+	 */
+	public synchronized void writeConflatedArray(int theKey, long theReadTime, long the0, long the1, long the2,
+			long the3, long the4, long the5) {
+		createConflated(theKey);
+		if (myOverflowed) {
+			return;
+		}
+
+		if (myConflatedPending[theKey]) {
+			myConflatedCount++;
+			ourTotalConflated.increment();
+		}
+
+		long[] message = myConflated[theKey];
+		message[0] = the0;
+		message[1] = the1;
+		message[2] = the2;
+		message[3] = the3;
+		message[4] = the4;
+		message[5] = the5;
+		if (theReadTime != 0 || !myConflatedPending[theKey]) {
+			myConflatedReadTime[theKey] = theReadTime;
+		}
+		myConflatedPending[theKey] = true;
+	}
+
+	/**
+	 * Encode a six element message into the buffer. The caller
+	 * must make sure there is room.
+	 * @param the0 the first element.
+	 * @param the1 the second element.
+	 * @param the2 the third element.
+	 * @param the3 the fourth element.
+	 * @param the4 the fifth element.
+	 * @param the5 the sixth element.
+	 */
+	private void putArray(long the0, long the1, long the2, long the3, long the4, long the5) {
+		myBuffer.put((byte) '[');
+		putLong(the0);
+		myBuffer.put((byte) ',');
+		putLong(the1);
+		myBuffer.put((byte) ',');
+		putLong(the2);
+		myBuffer.put((byte) ',');
+		putLong(the3);
+		myBuffer.put((byte) ',');
+		putLong(the4);
+		myBuffer.put((byte) ',');
+		putLong(the5);
+		myBuffer.put((byte) ']');
+		myBuffer.put((byte) '\n');
+	}
+
+	/**
+	 * Write a message with a single number in it, such as
+	 * {"m":45,"s":1}.
+	 * @param theHead the bytes before the number.
+	 * @param theValue the number.
+	 * @param theTail the bytes after the number, line break included.
+	 */
+	public synchronized void writeNumber(byte[] theHead, long theValue, byte[] theTail) {
+		if (!startMessage(theHead.length + LONG_MIN_VALUE.length + theTail.length)) {
+			return;
+		}
+		myBuffer.put(theHead);
+		putLong(theValue);
+		myBuffer.put(theTail);
+		myMessageCount++;
+	}
+
+	/**
+	 * Hand the buffered data to the channel. When called off
+	 * the event loop the write is scheduled on the loop.
+	 */
+	@Override
+	public void flush() {
+		if (myChannel == null) {
+			synchronized (this) {
+				appendConflated();
+				if (myDiscardCopy != null) {
+					myDiscardCopy.write(myBuffer.array(), 0, myBuffer.position());
+				}
+				myBuffer.clear();
+			}
+			return;
+		}
+
+		EventLoop loop = myLoop;
+		if (loop == null) {
+			return;
+		}
+
+		if (loop.inEventLoop()) {
+			writeToChannel();
+			return;
+		}
+
+		synchronized (this) {
+			if (myFlushPending) {
+				return;
+			}
+			myFlushPending = true;
+		}
+		loop.execute(this::writeToChannel);
+	}
+
+	/**
+	 * Return how many conflated messages this writer replaced
+	 * before they were sent.
+	 * @return the number of conflated messages.
+	 */
+	public synchronized long getConflatedCount() {
+		return myConflatedCount;
+	}
+
+	/**
+	 * Return how many conflated messages every writer in the
+	 * process dropped to stay within the buffer's largest size.
+	 * @return the number of dropped messages.
+	 */
+	public static long getTotalDropped() {
+		return ourTotalDropped.sum();
+	}
+
+	/**
+	 * Return how many messages have been written.
+	 * @return the number of messages.
+	 */
+	public synchronized long getMessageCount() {
+		return myMessageCount;
+	}
+
+	/**
+	 * Return how many bytes are waiting to be sent.
+	 * @return the queued bytes.
+	 */
+	public synchronized int getQueuedBytes() {
+		return myBuffer.position();
+	}
+
+	/**
+	 * Return how many conflated messages every writer in the
+	 * process replaced before they were sent.
+	 * @return the number of conflated messages.
+	 */
+	public static long getTotalConflated() {
+		return ourTotalConflated.sum();
+	}
+
+	/**
+	 * Return when data was last written to the channel.
+	 * @return the time, from System.nanoTime().
+	 */
+	public long getLastWriteTime() {
+		return myLastWriteTime;
+	}
+
+	@Override
+	public void close() {
+		// The monitor owns the channel.
+	}
+
+	/**
+	 * Write as much buffered data as the channel accepts. If the
+	 * channel is backed up the loop is asked to call again once
+	 * it becomes writable. Must be called on the event loop.
+	 */
+	synchronized void writeToChannel() {
+		myFlushPending = false;
+		SelectionKey key = myKey;
+		if (key == null || !key.isValid()) {
+			return;
+		}
+
+		if (!writeBuffer()) {
+			return;
+		}
+
+		// Conflated messages join the buffer only once the backlog
+		// has cleared, so newer ones can replace them until then.
+		if (myBuffer.position() == 0 && appendConflated() && !writeBuffer()) {
+			return;
+		}
+
+		try {
+			if (myBuffer.position() > 0 || hasConflated()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			} else {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		} catch (CancelledKeyException e) {
+			// The monitor was stopped from another thread meanwhile.
+		}
+	}
+
+	/**
+	 * Write as much of the buffer as the channel accepts.
+	 * @return false if the channel has been closed.
+	 */
+	private boolean writeBuffer() {
+		myBuffer.flip();
+		try {
+			if (myChannel.write(myBuffer) > 0) {
+				myLastWriteTime = System.nanoTime();
+				if (myCapture != null) {
+					myCapture.record(TrafficCapture.OUTBOUND, myCaptureSession, myLastWriteTime,
+							myBuffer.array(), 0, myBuffer.position());
+				}
+			}
+		} catch (IOException e) {
+			BooleanSupplier failover = myFailover;
+			if (failover != null) {
+				// Keep what wasn't sent, in case there is a new channel for it.
+				myBuffer.compact();
+				if (failover.getAsBoolean()) {
+					return false;
+				}
+			}
+
+			// The peer is gone. Closing the channel ends the monitor.
+			myBuffer.clear();
+			try {
+				myChannel.close();
+			} catch (IOException e2) {
+				EventLog.getInstance().log(LogLevel.WARN, "Could not close the socket", e2);
+			}
+			return false;
+		}
+		myBuffer.compact();
+		return true;
+	}
+
+	/**
+	 * Move every waiting conflated message into the buffer, and
+	 * record how long the measured ones waited.
+	 * @return true if any message was moved.
+	 */
+	private boolean appendConflated() {
+		if (!hasConflated()) {
+			return false;
+		}
+
+		long now = System.nanoTime();
+		for (int i = 0; i < CONFLATION_KEYS; i++) {
+			if (myConflatedPending[i]) {
+				long[] message = myConflated[i];
+				ensureCapacity(MAX_ARRAY_BYTES);
+				putArray(message[0], message[1], message[2], message[3], message[4], message[5]);
+				myMessageCount++;
+				myConflatedPending[i] = false;
+
+				if (myConflatedLatency[i] != null && myConflatedReadTime[i] != 0) {
+					myConflatedLatency[i].record(now - myConflatedReadTime[i]);
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Make room for the conflated messages of a key.
+	 * @param theKey the key, from 0 to CONFLATION_KEYS - 1.
+	 */
+	private void createConflated(int theKey) {
+		if (theKey < 0 || theKey >= CONFLATION_KEYS)
+			throw new IllegalArgumentException("The key: " + theKey + " is invalid.");
+
+		if (myConflated == null) {
+			myConflated = new long[CONFLATION_KEYS][CONFLATED_ELEMENTS];
+			myConflatedPending = new boolean[CONFLATION_KEYS];
+			myConflatedReadTime = new long[CONFLATION_KEYS];
+			myConflatedLatency = new LatencyHistogram[CONFLATION_KEYS];
+		}
+	}
+
+	/**
+	 * Returns true if a conflated message is waiting to be sent.
+	 * @return true if any key has a message waiting.
+	 */
+	private boolean hasConflated() {
+		if (myConflatedPending == null) {
+			return false;
+		}
+
+		for (boolean pending : myConflatedPending) {
+			if (pending) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Append bytes to the buffer, growing it if necessary.
+	 * @param theBytes the bytes to append.
+	 * @return false if they were discarded.
+	 */
+	private boolean put(byte[] theBytes) {
+		if (!startMessage(theBytes.length)) {
+			return false;
+		}
+		myBuffer.put(theBytes);
+		return true;
+	}
+
+	/**
+	 * Append a number's decimal digits to the buffer. The
+	 * caller must make sure there is room.
+	 * @param theValue the number.
+	 */
+	private void putLong(long theValue) {
+		if (theValue == Long.MIN_VALUE) {
+			myBuffer.put(LONG_MIN_VALUE);
+			return;
+		}
+
+		long value = theValue;
+		if (value < 0) {
+			myBuffer.put((byte) '-');
+			value = -value;
+		}
+
+		int count = 0;
+		do {
+			myDigits[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+
+		while (count > 0) {
+			myBuffer.put(myDigits[--count]);
+		}
+	}
+
+	/**
+	 * Make room for a message that isn't conflated. Waiting
+	 * conflated messages were written first, so they go first,
+	 * unless there is no room left for them, when they are
+	 * dropped. If the message itself doesn't fit, the buffer
+	 * overflows.
+	 * @param theLength the number of bytes needed.
+	 * @return false if the message is to be discarded.
+	 */
+	private boolean startMessage(int theLength) {
+		if (myOverflowed) {
+			return false;
+		}
+
+		// Counting the waiting messages only matters near the limit.
+		if (fits(theLength + CONFLATION_KEYS * MAX_ARRAY_BYTES) || fits(theLength + conflatedBytes())) {
+			appendConflated();
+		} else {
+			dropConflated();
+		}
+
+		if (!fits(theLength)) {
+			overflow();
+			return false;
+		}
+		ensureCapacity(theLength);
+		return true;
+	}
+
+	/**
+	 * Returns true if the buffer can take more bytes without
+	 * growing past Config.WRITE_BUFFER_MAX.
+	 * @param theLength the number of bytes.
+	 * @return true if they fit.
+	 */
+	private boolean fits(int theLength) {
+		return myBuffer.position() + (long) theLength <= Config.WRITE_BUFFER_MAX;
+	}
+
+	/**
+	 * Return the most room the waiting conflated messages need.
+	 * @return the number of bytes.
+	 */
+	private int conflatedBytes() {
+		int bytes = 0;
+		if (myConflatedPending != null) {
+			for (boolean pending : myConflatedPending) {
+				if (pending) {
+					bytes += MAX_ARRAY_BYTES;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Drop every waiting conflated message.
+	 */
+	private void dropConflated() {
+		if (myConflatedPending == null) {
+			return;
+		}
+
+		for (int i = 0; i < CONFLATION_KEYS; i++) {
+			if (myConflatedPending[i]) {
+				myConflatedPending[i] = false;
+				ourTotalDropped.increment();
+			}
+		}
+	}
+
+	/**
+	 * Give up on the channel: discard everything unsent and
+	 * everything written from now on, and tell the owner.
+	 */
+	private void overflow() {
+		myOverflowed = true;
+		myBuffer.clear();
+		if (myBuffer.capacity() > Config.WRITE_BUFFER_SIZE) {
+			myBuffer = ByteBuffer.allocate(Config.WRITE_BUFFER_SIZE);
+		}
+		if (myOverflow != null) {
+			myOverflow.run();
+		}
+	}
+
+	/**
+	 * Grow the buffer if fewer than the given number of
+	 * bytes are free, but not past Config.WRITE_BUFFER_MAX
+	 * unless the bytes need it.
+	 * @param theLength the number of bytes needed.
+	 */
+	private void ensureCapacity(int theLength) {
+		if (myBuffer.remaining() < theLength) {
+			int needed = myBuffer.position() + theLength;
+			ByteBuffer bigger = ByteBuffer.allocate(
+					Math.max(Math.min(myBuffer.capacity() * 2, Config.WRITE_BUFFER_MAX), needed));
+			myBuffer.flip();
+			bigger.put(myBuffer);
+			myBuffer = bigger;
+		}
+	}
+}
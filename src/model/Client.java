@@ -1,24 +1,15 @@
 package model;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.URL;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import controller.Controller;
-
 /**
  * The Client class that interacts with the server
  * and does the majority of the heavy lifting for the
@@ -38,15 +29,77 @@ public class Client {
 	private String myToken;
 	
 	/**
-	 * Stores a string describing any login
-	 * errors that may have occurred.
+	 * The bot's email address, kept for logging in again if a
+	 * restored session is rejected.
 	 */
-	private String myLoginErrorMessage;
+	private String myEmail;
+	
+	/**
+	 * The bot's password.
+	 */
+	private String myPassword;
+	
+	/**
+	 * The salt the password was hashed with for saved sessions,
+	 * or null until the client has logged in. Guarded by this
+	 * client, together with the hash.
+	 */
+	private byte[] mySalt;
+	
+	/**
+	 * The salted hash of the password saved with sessions, or
+	 * null until the client has logged in.
+	 */
+	private byte[] myPasswordHash;
+	
+	/**
+	 * True while a restored session's token has not yet been
+	 * accepted by the data server.
+	 */
+	private volatile boolean myAwaitingConfirmation;
+	
+	/**
+	 * True once the listener has been told the client is logged in.
+	 */
+	private boolean myLoggedIn;
+	
+	/**
+	 * True if the session was restored from a snapshot.
+	 */
+	private volatile boolean myWarmStart;
+	
+	/**
+	 * True once the current token is in a saved snapshot, or
+	 * about to be.
+	 */
+	private volatile boolean mySessionSaved;
+	
+	/**
+	 * The latest snapshot waiting to be saved, or null.
+	 */
+	private final AtomicReference<SessionSnapshot> myPendingSave;
+	
+	/**
+	 * True while a task saving snapshots is queued or running.
+	 */
+	private final AtomicBoolean mySaving;
 	
 	/**
-	 * The lobby status.
+	 * When login started, from System.nanoTime().
 	 */
-	private boolean myLobbyStatus;
+	private long myLoginStartTime;
+	
+	/**
+	 * Time, in milliseconds, from starting to log in until the
+	 * friend list arrived, or -1 until then.
+	 */
+	private volatile long myLoginTime;
+	
+	/**
+	 * Stores a string describing any login
+	 * errors that may have occurred.
+	 */
+	private String myLoginErrorMessage;
 	
 	/**
 	 * The online status of the bot.
@@ -54,101 +107,158 @@ public class Client {
 	private int myStatus;
 	
 	/**
-	 * The friend to accept requests from.
+	 * Decides which friends' invites are accepted.
 	 */
-	private Friend myFriend;
+	private final InvitePolicy myInvitePolicy;
 	
 	/**
 	 * The friend list.
 	 */
-	private ArrayList<Friend> myFriendList;
+	private final FriendRegistry myFriends;
 	
 	/**
-	 * The controller for this model.
+	 * Notified when the client's state changes.
 	 */
-	private Controller myController;
+	private ClientListener myListener;
 	
 	/**
-	 * The data monitoring runnable task..
+	 * The data monitor.
 	 */
-	private Runnable myDataMonitor;
+	private DataMonitor myDataMonitor;
 
 	/**
-	 * The game lobby monitoring task.
+	 * The lobby the bot is in, or null when it is idle. Only the
+	 * thread that swaps in a new lobby may start it, and only the
+	 * lobby itself clears it once it has ended.
 	 */
-	private Runnable myGameLobbyMonitor;
+	private final AtomicReference<GameLobbyMonitor> myGameLobbyMonitor;
 	
 	/**
 	 * Constructs a new client object.
+	 * @param theListener notified when the client's state changes.
 	 */
-	public Client(Controller theController) {
+	public Client(ClientListener theListener) {
 		myID = myToken = "Not present";
 		myStatus = 3;
-		myLobbyStatus = false;
 		myLoginErrorMessage = "";
-		myFriend = null;
-		myDataMonitor = new DataMonitor(this);
-		myFriendList = new ArrayList<Friend>();
-		myController = theController;
+		myInvitePolicy = new InvitePolicy(Config.INVITE_RATE, Config.INVITE_BURST);
+		myFriends = new FriendRegistry();
+		myGameLobbyMonitor = new AtomicReference<GameLobbyMonitor>();
+		myPendingSave = new AtomicReference<SessionSnapshot>();
+		mySaving = new AtomicBoolean();
+		myListener = theListener;
+		myAwaitingConfirmation = false;
+		myLoggedIn = false;
+		myWarmStart = false;
+		myLoginTime = -1;
 	}
 	
 	/**
 	 * Login and retrieve the bot's ID and Login token as
 	 * these are necessary for subsequent interactions with 
-	 * server.
-	 * @param theEmailAddress the bot's email address.
+	 * server. If a snapshot of an earlier session exists and was
+	 * saved with the same password it is restored instead, and
+	 * the cached friend list is shown
+	 * right away; a full login only happens if the data server
+	 * rejects the restored token. Otherwise the login runs on
+	 * the shared login service, so this returns immediately.
+	 * @param theEmail the bot's email address.
 	 * @param thePassword the bot's password.
-	 * @return true if login was successful.
+	 * @return completes with true if login was successful.
 	 */
-	public boolean login(String theEmail, String thePassword) {
-		URL host = null;
-		HttpsURLConnection con = null;
+	public CompletableFuture<Boolean> login(String theEmail, String thePassword) {
+		myEmail = theEmail;
+		myPassword = thePassword;
+		myLoginStartTime = System.nanoTime();
 		
-		try {
-			host = new URL(Config.GAME_HTTPS_ADDRESS);
-			con = (HttpsURLConnection) host.openConnection();
-			
-			con = configureConnection(con);
-			
-			sendLoginRequest(new DataOutputStream(con.getOutputStream()), 
-					configureLoginJSONData(theEmail, thePassword));
-			
-			JSONObject responseData = readLoginResponse(con.getInputStream());
-			
-			// TODO Extend to incorporate error messages from server.
-			if (responseData.getInt("m") == 3) {
-				if (responseData.has("a") && responseData.has("p")) {
-					myID = responseData.getString("p");
-					myToken = responseData.getString("a");
-					
-					return true;
-				} else if (responseData.getInt("r") == 1) {
-					
-					int errorType = responseData.getInt("r");
-					switch(errorType) {
-					case 1:
-						myLoginErrorMessage = "Bad email:password (" + theEmail + ":" + thePassword +")";
-						break;
-					}
-				}
+		SessionSnapshot snapshot = SessionStore.getInstance().load(theEmail);
+		if (snapshot != null && snapshot.matchesPassword(thePassword)) {
+			restoreSession(snapshot);
+			return CompletableFuture.completedFuture(true);
+		}
+		
+		return fullLogin(theEmail, thePassword);
+	}
+	
+	/**
+	 * Log in over HTTPS.
+	 * @param theEmail the bot's email address.
+	 * @param thePassword the bot's password.
+	 * @return completes with true if login was successful.
+	 */
+	private CompletableFuture<Boolean> fullLogin(String theEmail, String thePassword) {
+		myWarmStart = false;
+		mySessionSaved = false;
+		return LoginService.getInstance().login(theEmail, thePassword).thenApply(theResult -> {
+			if (theResult.isSuccessful()) {
+				myID = theResult.getID();
+				myToken = theResult.getToken();
+				
+				// Hashed here, on the login thread, for saving sessions.
+				byte[] salt = SessionSnapshot.newSalt();
+				setPasswordHash(salt, SessionSnapshot.hashPassword(thePassword, salt));
+				return true;
 			}
 			
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+			myLoginErrorMessage = theResult.getErrorMessage();
+			return false;
+		});
+	}
+	
+	/**
+	 * Restore a session from a snapshot.
+	 * @param theSnapshot the snapshot.
+	 */
+	private void restoreSession(SessionSnapshot theSnapshot) {
+		myID = theSnapshot.getID();
+		myToken = theSnapshot.getToken();
+		setPasswordHash(theSnapshot.getSalt(), theSnapshot.getPasswordHash());
+		myFriends.load(theSnapshot.getFriends());
+		myWarmStart = true;
+		mySessionSaved = true;
+		myAwaitingConfirmation = true;
+		
+		notifyLoggedIn();
+	}
+	
+	/**
+	 * Called when the data connection closes, or fails. If that
+	 * happens before a restored token has been accepted the token
+	 * is assumed to be rejected: the snapshot is dropped and a
+	 * full login is made. Otherwise the listener is told the
+	 * client is no longer logged in.
+	 */
+	void dataConnectionClosed() {
+		if (!myAwaitingConfirmation) {
+			myLoggedIn = false;
+			myListener.setLoggedIn(false);
+			return;
 		}
 		
-		return false;
+		myAwaitingConfirmation = false;
+		SessionStore.getInstance().delete(myEmail);
+		
+		fullLogin(myEmail, myPassword).thenAccept(theLoggedIn -> {
+			if (theLoggedIn) {
+				startDataMonitor();
+			} else {
+				myListener.setLoggedIn(false);
+			}
+		});
 	}
 	
 	/**
 	 * Start the data monitor task.
 	 */
 	public void startDataMonitor() {
+		// A closed data monitor can't be restarted.
+		if (myDataMonitor == null || !myDataMonitor.isRunning()) {
+			myDataMonitor = new DataMonitor(this);
+		}
+		
 		// Start the data monitor.
-		((DataMonitor) myDataMonitor).startPinger();
-		(new Thread(myDataMonitor)).start();
+		myDataMonitor.startKeepAlive();
+		myDataMonitor.start();
 	}
 	
 	/**
@@ -162,17 +272,119 @@ public class Client {
 	
 	/**
 	 * Construct the friend list from the incoming JSON
-	 * data.
+	 * data. Called on the data connection's event loop, so
+	 * even a large list is parsed away from the GUI; receiving
+	 * the same list again changes nothing, not even the saved
+	 * session.
 	 * @param theData the incoming data.
 	 */
 	public void createFriendList(JSONArray theData) {
-		for(int i = 0; i < theData.length(); i++) {
+		int count = theData.length();
+		String[] ids = new String[count];
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
 			JSONObject friend = theData.getJSONObject(i);
-			Friend f = new Friend(friend.getString("p"), friend.getString("n"));
-			myFriendList.add(f);
+			ids[i] = friend.getString("p");
+			names[i] = friend.getString("n");
+		}
+		boolean changed = myFriends.load(ids, names, count);
+		
+		// The server accepted the token; remember it for next time.
+		myAwaitingConfirmation = false;
+		if (changed || !mySessionSaved) {
+			mySessionSaved = true;
+			saveSession();
+		}
+		notifyLoggedIn();
+	}
+	
+	/**
+	 * Tell the listener the client is logged in, once, and
+	 * report how long that took.
+	 */
+	private void notifyLoggedIn() {
+		if (myLoggedIn) {
+			return;
 		}
 		
-		myController.setLoggedIn(true);
+		myLoggedIn = true;
+		if (myEmail != null) {
+			myLoginTime = (System.nanoTime() - myLoginStartTime) / 1000000;
+			EventLog.getInstance().log(LogLevel.INFO, null, 0,
+					myWarmStart ? "Logged in from a saved session" : "Logged in", myLoginTime + " ms", null);
+		}
+		myListener.setLoggedIn(true);
+	}
+	
+	/**
+	 * Save a snapshot of the session for the next start. Writing
+	 * it syncs the file to disk, so it is done on the login
+	 * threads rather than the event loop; snapshots taken while
+	 * one is being written replace each other, and only the
+	 * latest is written next.
+	 */
+	private void saveSession() {
+		byte[] salt;
+		byte[] hash;
+		synchronized (this) {
+			salt = mySalt;
+			hash = myPasswordHash;
+		}
+		if (myEmail == null || salt == null) {
+			return;
+		}
+		
+		myPendingSave.set(new SessionSnapshot(myEmail, myID, myToken, salt, hash,
+				myFriends.getFriends(), System.currentTimeMillis()));
+		if (mySaving.compareAndSet(false, true)) {
+			LoginService.getInstance().execute(this::writeSessions);
+		}
+	}
+	
+	/**
+	 * Set the password's salt and hash for saved sessions.
+	 * @param theSalt the salt.
+	 * @param theHash the salted hash.
+	 */
+	private synchronized void setPasswordHash(byte[] theSalt, byte[] theHash) {
+		mySalt = theSalt;
+		myPasswordHash = theHash;
+	}
+	
+	/**
+	 * Write waiting snapshots, in order, until there are none.
+	 * Only one of these runs at a time for a client.
+	 */
+	private void writeSessions() {
+		do {
+			SessionSnapshot snapshot;
+			while ((snapshot = myPendingSave.getAndSet(null)) != null) {
+				try {
+					SessionStore.getInstance().save(snapshot);
+				} catch (IOException e) {
+					EventLog.getInstance().log(LogLevel.WARN, "Could not save the session", e);
+				}
+			}
+			mySaving.set(false);
+		} while (myPendingSave.get() != null && mySaving.compareAndSet(false, true));
+	}
+	
+	/**
+	 * Return how long the last login took.
+	 * @return time, in milliseconds, from starting to log in until
+	 * the friend list arrived, or -1 if the client hasn't logged in.
+	 */
+	public long getLoginTime() {
+		return myLoginTime;
+	}
+	
+	/**
+	 * Returns true if the client logged in by restoring a saved
+	 * session rather than through the login server.
+	 * @return true for a warm start.
+	 */
+	public boolean isWarmStart() {
+		return myWarmStart;
 	}
 	
 	/**
@@ -198,11 +410,50 @@ public class Client {
 	 * @return true if the bot is in a custom game lobby.
 	 */
 	public boolean getLobbyStatus() {
-		return myLobbyStatus;
+		GameLobbyMonitor lobby = myGameLobbyMonitor.get();
+		return lobby != null && lobby.isActive();
 	}
 	
+	/**
+	 * Return where the bot is in the life of a game lobby.
+	 * @return the lobby's state, or IDLE if the bot isn't in one.
+	 */
+	public LobbyState getLobbyState() {
+		GameLobbyMonitor lobby = myGameLobbyMonitor.get();
+		return lobby == null ? LobbyState.IDLE : lobby.getState();
+	}
+	
+	/**
+	 * Return a copy of the bot's friend list.
+	 * @return the friends.
+	 */
 	public List<Friend> getFriendList() {
-		return myFriendList;
+		return myFriends.getFriends();
+	}
+	
+	/**
+	 * Return the bot's friends, for looking them up and
+	 * listening for changes.
+	 * @return the friend registry.
+	 */
+	public FriendRegistry getFriends() {
+		return myFriends;
+	}
+	
+	/**
+	 * Return the data monitor.
+	 * @return the data monitor, or null if it was never started.
+	 */
+	public DataMonitor getDataMonitor() {
+		return myDataMonitor;
+	}
+	
+	/**
+	 * Return the current game lobby monitor.
+	 * @return the lobby monitor, or null if the bot isn't in a lobby.
+	 */
+	public GameLobbyMonitor getGameLobbyMonitor() {
+		return myGameLobbyMonitor.get();
 	}
 	
 	/**
@@ -215,14 +466,35 @@ public class Client {
 	
 	/**
 	 * Set the current friend that whose game invites
-	 * the bot should acknowledge.
+	 * the bot should acknowledge, in place of every friend
+	 * followed so far. Leaves the current lobby.
 	 * @param theFriend whose requests should be accepted.
 	 */
 	public void setMyFriend(Friend theFriend) {
-		if (myGameLobbyMonitor != null) {
-			((Monitor) myGameLobbyMonitor).stopMonitor();
+		GameLobbyMonitor lobby = myGameLobbyMonitor.get();
+		if (lobby != null) {
+			lobby.stopMonitor();
 		}
-		myFriend = theFriend;
+		myInvitePolicy.followOnly(Collections.singletonList(theFriend));
+	}
+	
+	/**
+	 * Return the policy deciding which invites are accepted. It
+	 * may be changed at any time, from any thread.
+	 * @return the invite policy.
+	 */
+	public InvitePolicy getInvitePolicy() {
+		return myInvitePolicy;
+	}
+	
+	/**
+	 * Return the priority of the lobby the bot is in.
+	 * @return the priority, or InvitePolicy.NONE if the bot
+	 * isn't in a lobby.
+	 */
+	public int getLobbyPriority() {
+		GameLobbyMonitor lobby = myGameLobbyMonitor.get();
+		return lobby != null && lobby.isActive() ? lobby.getPriority() : InvitePolicy.NONE;
 	}
 	
 	/**
@@ -233,128 +505,94 @@ public class Client {
 		if (theStatus < 1 || theStatus > 3)
 			throw new IllegalArgumentException("The status: " + theStatus + " is invalid.");
 		myStatus = theStatus;
-		((DataMonitor) myDataMonitor).sendStatusUpdate(theStatus);
+		if (myDataMonitor != null) {
+			myDataMonitor.sendStatusUpdate(theStatus);
+		}
 	}
 	
 	/**
-	 * Join a custom race request. This means that the
-	 * bot will enter a custom game lobby.
+	 * Join a custom race request that the invite policy
+	 * accepted. This means that the bot will enter a custom
+	 * game lobby, leaving the one it is in if that has a lower
+	 * priority. Doesn't wait for the lobby's connection, so the
+	 * data connection keeps being served while it is made.
+	 * @param theIP the game server's address.
+	 * @param theToken the game's token.
+	 * @param thePriority the priority of the friend who sent the invite.
 	 */
-	public void joinCustomRace(String theIP, String thePlayerID, int theToken) {
-		if (myFriend != null && myFriend.getPlayerID().equals(thePlayerID) && myLobbyStatus == false) {
-			myGameLobbyMonitor = new GameLobbyMonitor(this, theIP, theToken);
-			(new Thread(myGameLobbyMonitor)).start();
-			toggleLobbyStatus();
+	public void joinCustomRace(String theIP, int theToken, int thePriority) {
+		GameLobbyMonitor lobby = null;
+		while (true) {
+			GameLobbyMonitor current = myGameLobbyMonitor.get();
+			if (current != null && current.isActive() && current.getPriority() >= thePriority) {
+				// Only a lobby that outranks the invite turns it away.
+				if (lobby != null) {
+					lobby.stopMonitor();
+				}
+				return;
+			}
+			
+			// A lobby that is ending, or is outranked, gives way to the new one.
+			if (lobby == null) {
+				lobby = createLobby(theIP, theToken, thePriority);
+			}
+			if (myGameLobbyMonitor.compareAndSet(current, lobby)) {
+				if (current != null) {
+					current.stopMonitor();
+				}
+				lobby.start();
+				preconnect(theIP);
+				return;
+			}
+			
+			// The lobby changed meanwhile: another invite got in, or
+			// the lobby ended. Look again.
 		}
 	}
 	
 	/**
-	 * Toggle the lobby status of the bot.
+	 * Create the monitor for a lobby joined on an invite.
+	 * @param theIP the game server's address.
+	 * @param theToken the game's token.
+	 * @param thePriority the priority of the friend who sent the invite.
+	 * @return the lobby's monitor, not yet started.
 	 */
-	public void toggleLobbyStatus() {
-		myLobbyStatus = myLobbyStatus ^ true;
+	protected GameLobbyMonitor createLobby(String theIP, int theToken, int thePriority) {
+		return new GameLobbyMonitor(this, theIP, theToken, thePriority);
 	}
 	
 	/**
-	 * Initiate shutdown sequence.
+	 * Keep a spare connection to a game server the bot just
+	 * joined a lobby on, for the next lobby there.
+	 * @param theIP the game server's address.
 	 */
-	public void shutdown() {
-		if (myDataMonitor != null) {
-			((DataMonitor) myDataMonitor).stopDataMonitor();
-		}
-		
-		if (myGameLobbyMonitor != null) {
-			((Monitor) myGameLobbyMonitor).stopMonitor();
-		}
+	protected void preconnect(String theIP) {
+		Connector.getInstance().preconnect(theIP, Config.GAME_SERVER_PORT);
 	}
 	
 	/**
-	 * Configure the HTTPS connection.
-	 * @param theConnection the HTTPS connection.
+	 * Called by a lobby once it has ended, so that the next
+	 * invite can be accepted. Does nothing if the lobby has
+	 * already been replaced.
+	 * @param theLobby the lobby that ended.
 	 */
-	private HttpsURLConnection configureConnection(HttpsURLConnection theConnection) {
-		// Set method.
-		try {
-			theConnection.setRequestMethod("POST");
-		} catch (ProtocolException e) {
-			e.printStackTrace();
-		}
-		// Set headers.
-		theConnection.setRequestProperty("Host", "minttuentrypoint.dirtybit.no:6389");
-		theConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-		theConnection.setRequestProperty("Connection", "keep-alive");
-		theConnection.setRequestProperty("Accept", "*/*");
-		theConnection.setRequestProperty("User-Agent", "Fun%20Run%202/47 CFNetwork/711.4.6 Darwin/14.0.0");
-		theConnection.setRequestProperty("Accept-Language", "en-us");
-		theConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
-		
-		// Set other options.
-		theConnection.setUseCaches(false);
-		theConnection.setDoOutput(true);
-		theConnection.setDoInput(true);
-		
-		return theConnection;
-	}
-	
-	/**
-	 * Returns the JSON version of the login information to send
-	 * to the server.
-	 * @param theEmail the bot's email address.
-	 * @param thePassword the bot's password.
-	 * @return the JSON version of the login information.
-	 */
-	private JSONObject configureLoginJSONData(String theEmail, String thePassword) {
-		JSONObject data = new JSONObject();
-		data.put("e", theEmail)
-			.put("d", "")
-			.put("w", thePassword)
-			.put("m", 3);
-		
-		return data;
+	void lobbyEnded(GameLobbyMonitor theLobby) {
+		myGameLobbyMonitor.compareAndSet(theLobby, null);
 	}
 	
 	/**
-	 * Read the login response data from the server.
-	 * @param theInputStream the input stream to read data from.
-	 * @return the read data.
+	 * Initiate shutdown sequence.
 	 */
-	private JSONObject readLoginResponse(InputStream theInputStream) {
-		GZIPInputStream gzipped = null;
-		BufferedReader reader = null;
-		String line = null;
-		StringBuffer response = new StringBuffer();
+	public void shutdown() {
+		myAwaitingConfirmation = false;
 		
-		try {
-			gzipped = new GZIPInputStream(theInputStream);
-			reader = new BufferedReader(new InputStreamReader(gzipped));
-			
-			while((line = reader.readLine()) != null) {
-				response.append(line);
-			}
-			
-			reader.close();
-			
-		} catch (IOException e2) {
-			e2.printStackTrace();
+		if (myDataMonitor != null) {
+			myDataMonitor.stopDataMonitor();
 		}
 		
-		JSONObject responseData = new JSONObject(response.toString());
-		
-		return responseData;
-	}
-	
-	/**
-	 * Send the login request to the server.
-	 * @param theOutputStream the output stream to write to.
-	 * @param data the request data to be written.
-	 */
-	private void sendLoginRequest(DataOutputStream theOutputStream, JSONObject data) {
-		try {
-			theOutputStream.writeBytes(data.toString());
-			theOutputStream.flush();
-			theOutputStream.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		GameLobbyMonitor lobby = myGameLobbyMonitor.get();
+		if (lobby != null) {
+			lobby.stopMonitor();
 		}
-	}	
+	}
 }
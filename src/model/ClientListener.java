@@ -0,0 +1,16 @@
+package model;
+
+/**
+ * Receives notifications from a Client. The GUI's controller
+ * is one listener; a bot session in a fleet is another.
+ * Notifications arrive on network threads.
+ * @author Damiene Stewart
+ */
+public interface ClientListener {
+	
+	/**
+	 * Toggle whether the client has progressed to a logged in stage or not.
+	 * @param theLoggedInStatus true if the client has successfully logged in, false otherwise.
+	 */
+	void setLoggedIn(boolean theLoggedInStatus);
+}
@@ -0,0 +1,319 @@
+package model;
+
+/**
+ * Estimates the game server's clock from the "17" clock frames
+ * it sends, using System.nanoTime() so that changes to the
+ * local wall clock have no effect.
+ *
+ * Every clock frame gives a sample of the offset between the
+ * server's clock and the local one, made smaller by however long
+ * the frame spent in transit. The estimate follows the largest
+ * offset among recent samples, which is the one least delayed
+ * on the way, and the drift between the two clocks is measured
+ * from the largest offsets in the older and newer halves of the
+ * samples. A sample that falls further below the estimate than
+ * the network's jitter explains is rejected as an outlier.
+ *
+ * The bot only answers the server's "16" pings, so it can't time
+ * a round trip itself. Pings are sent on a fixed schedule, so the
+ * variation in the gaps between their arrivals measures the
+ * jitter instead, in the manner of RFC 3550.
+ *
+ * Samples and pings are added from the monitor's loop thread
+ * only. Each sample publishes a new, immutable estimate, so the
+ * server's time, the drift and the jitter can be read from any
+ * thread and the time never mixes values from two samples.
+ * @author Damiene Stewart
+ */
+public class ClockSync {
+
+	/**
+	 * Number of recent samples the estimate is taken from.
+	 */
+	private static final int WINDOW = 8;
+
+	/**
+	 * Smallest amount, in nanoseconds, a sample may fall below the
+	 * estimate before it is rejected.
+	 */
+	private static final long MIN_TOLERANCE = 2000000L;
+
+	/**
+	 * Number of jitters a sample may fall below the estimate
+	 * before it is rejected.
+	 */
+	private static final int JITTER_TOLERANCE = 4;
+
+	/**
+	 * Shortest time, in nanoseconds, the samples must span before
+	 * the drift is measured.
+	 */
+	private static final long MIN_DRIFT_SPAN = 10000000000L;
+
+	/**
+	 * Largest drift believed, as a fraction of elapsed time.
+	 */
+	private static final double MAX_DRIFT = 500e-6;
+
+	/**
+	 * Offset of each recent sample: server time less local time.
+	 */
+	private final long[] myOffsets;
+
+	/**
+	 * Local time of each recent sample.
+	 */
+	private final long[] myTimes;
+
+	/**
+	 * Number of samples accepted. Only used by the loop thread.
+	 */
+	private int mySamples;
+
+	/**
+	 * Samples rejected in a row.
+	 */
+	private int myRejectedRun;
+
+	/**
+	 * Number of samples rejected.
+	 */
+	private volatile long myRejected;
+
+	/**
+	 * How much faster the server's clock runs than the local one,
+	 * as measured so far. Only used by the loop thread; readers
+	 * use the published estimate.
+	 */
+	private double myDrift;
+
+	/**
+	 * The latest estimate of the server's clock.
+	 */
+	private volatile Estimate myEstimate;
+
+	/**
+	 * Local time the last ping arrived, or 0 before the first.
+	 */
+	private long myLastPing;
+
+	/**
+	 * Gap between the last two pings, or 0 before the second.
+	 */
+	private long myLastGap;
+
+	/**
+	 * Smoothed variation in the gaps between pings, in nanoseconds.
+	 */
+	private volatile long myJitter;
+
+	/**
+	 * Construct a new clock. Until the first sample it counts
+	 * from zero at the time it was constructed.
+	 */
+	public ClockSync() {
+		myOffsets = new long[WINDOW];
+		myTimes = new long[WINDOW];
+		mySamples = 0;
+		myRejectedRun = 0;
+		myRejected = 0;
+		long now = System.nanoTime();
+		myDrift = 0;
+		myEstimate = new Estimate(-now, now, 0, false);
+		myLastPing = 0;
+		myLastGap = 0;
+		myJitter = 0;
+	}
+
+	/**
+	 * Add a sample of the server's clock.
+	 * @param theServerTime the server's time in nanoseconds.
+	 * @param theReceiveTime when it arrived, from System.nanoTime().
+	 */
+	public void addSample(long theServerTime, long theReceiveTime) {
+		long offset = theServerTime - theReceiveTime;
+
+		// A run of rejections means the server's clock was reset
+		// rather than that every sample was delayed.
+		if (mySamples > 0 && estimateOffset(theReceiveTime) - offset > getTolerance()
+				&& ++myRejectedRun < WINDOW) {
+			myRejected++;
+			return;
+		}
+
+		if (myRejectedRun >= WINDOW) {
+			mySamples = 0;
+			myDrift = 0;
+		}
+		myRejectedRun = 0;
+
+		int slot = mySamples % WINDOW;
+		myOffsets[slot] = offset;
+		myTimes[slot] = theReceiveTime;
+		mySamples++;
+
+		updateDrift();
+
+		long estimate = Long.MIN_VALUE;
+		for (int i = 0; i < Math.min(mySamples, WINDOW); i++) {
+			estimate = Math.max(estimate, myOffsets[i] + (long) (myDrift * (theReceiveTime - myTimes[i])));
+		}
+		myEstimate = new Estimate(estimate, theReceiveTime, myDrift, true);
+	}
+
+	/**
+	 * Note the arrival of a ping.
+	 * @param theReceiveTime when it arrived, from System.nanoTime().
+	 */
+	public void ping(long theReceiveTime) {
+		if (myLastPing != 0) {
+			long gap = theReceiveTime - myLastPing;
+			if (myLastGap != 0) {
+				myJitter += (Math.abs(gap - myLastGap) - myJitter) / 16;
+			}
+			myLastGap = gap;
+		}
+		myLastPing = theReceiveTime;
+	}
+
+	/**
+	 * Return the server's time at a local time.
+	 * @param theTime the local time, from System.nanoTime().
+	 * @return the server's time in nanoseconds.
+	 */
+	public long getServerTime(long theTime) {
+		return theTime + estimateOffset(theTime);
+	}
+
+	/**
+	 * Return the server's time now.
+	 * @return the server's time in milliseconds.
+	 */
+	public long getServerMillis() {
+		return getServerTime(System.nanoTime()) / 1000000;
+	}
+
+	/**
+	 * Return the smoothed jitter measured from the pings.
+	 * @return the jitter in nanoseconds.
+	 */
+	public long getJitter() {
+		return myJitter;
+	}
+
+	/**
+	 * Return the measured drift.
+	 * @return how much faster the server's clock runs, as a
+	 * fraction of elapsed time.
+	 */
+	public double getDrift() {
+		return myEstimate.myDrift;
+	}
+
+	/**
+	 * Return the number of samples rejected as outliers.
+	 * @return the rejected samples.
+	 */
+	public long getRejected() {
+		return myRejected;
+	}
+
+	/**
+	 * Returns true once a sample of the server's clock has been taken.
+	 * @return true if the clock follows the server.
+	 */
+	public boolean isSynchronized() {
+		return myEstimate.mySynchronized;
+	}
+
+	/**
+	 * Return the estimated offset at a local time.
+	 * @param theTime the local time.
+	 * @return server time less local time.
+	 */
+	private long estimateOffset(long theTime) {
+		Estimate estimate = myEstimate;
+		return estimate.myOffset + (long) (estimate.myDrift * (theTime - estimate.myReference));
+	}
+
+	/**
+	 * Return how far a sample may fall below the estimate.
+	 * @return the tolerance in nanoseconds.
+	 */
+	private long getTolerance() {
+		return Math.max(MIN_TOLERANCE, JITTER_TOLERANCE * myJitter);
+	}
+
+	/**
+	 * Measure the drift from the least delayed sample in the
+	 * older and the newer half of the window.
+	 */
+	private void updateDrift() {
+		int count = Math.min(mySamples, WINDOW);
+		if (count < 4) {
+			return;
+		}
+
+		// Oldest sample first.
+		int first = mySamples > WINDOW ? mySamples % WINDOW : 0;
+		int old = -1;
+		int young = -1;
+		for (int i = 0; i < count; i++) {
+			int slot = (first + i) % WINDOW;
+			if (i < count / 2) {
+				if (old < 0 || myOffsets[slot] > myOffsets[old]) {
+					old = slot;
+				}
+			} else if (young < 0 || myOffsets[slot] > myOffsets[young]) {
+				young = slot;
+			}
+		}
+
+		long span = myTimes[young] - myTimes[old];
+		if (span >= MIN_DRIFT_SPAN) {
+			double drift = (myOffsets[young] - myOffsets[old]) / (double) span;
+			myDrift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, drift));
+		}
+	}
+
+	/**
+	 * An estimate of the server's clock, as of one sample.
+	 */
+	private static final class Estimate {
+
+		/**
+		 * The estimated offset at myReference: server time less
+		 * local time.
+		 */
+		private final long myOffset;
+
+		/**
+		 * Local time the offset was estimated at.
+		 */
+		private final long myReference;
+
+		/**
+		 * How much faster the server's clock runs than the local one.
+		 */
+		private final double myDrift;
+
+		/**
+		 * True if the estimate is taken from samples.
+		 */
+		private final boolean mySynchronized;
+
+		/**
+		 * Construct a new estimate.
+		 * @param theOffset the estimated offset at theReference.
+		 * @param theReference local time the offset was estimated at.
+		 * @param theDrift how much faster the server's clock runs.
+		 * @param theSynchronized true if taken from samples.
+		 */
+		private Estimate(long theOffset, long theReference, double theDrift, boolean theSynchronized) {
+			myOffset = theOffset;
+			myReference = theReference;
+			myDrift = theDrift;
+			mySynchronized = theSynchronized;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package model;
 
+import java.util.Locale;
+
 /**
  * Container for configuration variables.
  * @author Damiene Stewart
@@ -12,23 +14,218 @@ public class Config {
 	public final static String GAME_VERSION = "2.4";
 	
 	/**
-	 * Host name for the game.
+	 * Host name for the game. Can be pointed at a local
+	 * stand-in with -Dfunrun.host=127.0.0.1
 	 */
-	public final static String GAME_HOST_NAME = "minttuentrypoint.dirtybit.no";
+	public final static String GAME_HOST_NAME = System.getProperty("funrun.host", "minttuentrypoint.dirtybit.no");
 	
 	/**
-	 * HTTPS address for the game.
+	 * HTTPS address for the game. Can be pointed at a local
+	 * stand-in with -Dfunrun.login.address=http://localhost:6389
 	 */
-	public final static String GAME_HTTPS_ADDRESS = "https://minttuentrypoint.dirtybit.no:6389";
+	public final static String GAME_HTTPS_ADDRESS =
+			System.getProperty("funrun.login.address", "https://minttuentrypoint.dirtybit.no:6389");
 	
 	/**
 	 * Data server port for sending and receiving configuration data,
 	 * and other data such as friends list.
 	 */
-	public final static int DATA_SERVER_PORT = 6689;
+	public final static int DATA_SERVER_PORT = Integer.getInteger("funrun.data.port", 6689);
 	
 	/**
 	 * Game server port for sending and recieiving data from game/game lobby.
 	 */
-	public final static int GAME_SERVER_PORT = 6789;
+	public final static int GAME_SERVER_PORT = Integer.getInteger("funrun.game.port", 6789);
+	
+	/**
+	 * Number of event loop threads shared by every data and
+	 * game lobby socket in the process.
+	 */
+	public final static int EVENT_LOOP_THREADS =
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	
+	/**
+	 * Initial size, in bytes, of each socket's read buffer.
+	 */
+	public final static int READ_BUFFER_SIZE = 8192;
+	
+	/**
+	 * Initial size, in bytes, of each socket's write buffer.
+	 */
+	public final static int WRITE_BUFFER_SIZE = 4096;
+	
+	/**
+	 * Largest size, in bytes, a socket's write buffer may grow to.
+	 * A peer that lets this much pile up isn't reading: waiting
+	 * conflated messages are dropped first, and if that isn't
+	 * enough the connection is closed.
+	 */
+	public final static int WRITE_BUFFER_MAX = Integer.getInteger("funrun.write.buffer.max", 1 << 20);
+	
+	/**
+	 * Longest line, in bytes, that will be accepted from a socket.
+	 */
+	public final static int MAX_LINE_LENGTH = 4 * 1024 * 1024;
+	
+	/**
+	 * Most elements a game lobby message can have and still be
+	 * read by the frame tokenizer.
+	 */
+	public final static int MAX_FRAME_ELEMENTS = 16;
+	
+	/**
+	 * Time, in milliseconds, a data connection may stay quiet
+	 * before it is pinged to keep it alive.
+	 */
+	public final static long KEEPALIVE_INTERVAL = 30000;
+	
+	/**
+	 * Time, in milliseconds, between checks for quiet data connections.
+	 */
+	public final static long KEEPALIVE_CHECK_PERIOD = 1000;
+	
+	/**
+	 * Most logins to run at once.
+	 */
+	public final static int LOGIN_CONCURRENCY = Integer.getInteger("funrun.login.concurrency", 8);
+	
+	/**
+	 * Connect and read timeout, in milliseconds, for logins.
+	 */
+	public final static int LOGIN_TIMEOUT = 15000;
+
+	/**
+	 * Time, in milliseconds, a data or game lobby socket may take
+	 * to connect before it is given up on.
+	 */
+	public final static long CONNECT_TIMEOUT = Long.getLong("funrun.connect.timeout", 5000);
+
+	/**
+	 * Size, in bytes, of each socket's send buffer, or 0 for the
+	 * system default. Kept small so that echoes which can't be sent
+	 * yet wait where they can be conflated, not in the kernel.
+	 */
+	public final static int SOCKET_SEND_BUFFER = Integer.getInteger("funrun.socket.send.buffer", 16 * 1024);
+
+	/**
+	 * Size, in bytes, of each socket's receive buffer, or 0 for the
+	 * system default.
+	 */
+	public final static int SOCKET_RECEIVE_BUFFER = Integer.getInteger("funrun.socket.receive.buffer", 0);
+
+	/**
+	 * True to keep a spare connection to recently used game
+	 * servers, so that joining a lobby doesn't wait for a connect.
+	 * Set with -Dfunrun.preconnect=true
+	 */
+	public final static boolean PRECONNECT = Boolean.getBoolean("funrun.preconnect");
+
+	/**
+	 * Time, in milliseconds, a spare game server connection is
+	 * kept before it is closed unused.
+	 */
+	public final static long PRECONNECT_IDLE = Long.getLong("funrun.preconnect.idle", 120000);
+
+	/**
+	 * Most game servers to keep a spare connection to.
+	 */
+	public final static int PRECONNECT_SERVERS = Integer.getInteger("funrun.preconnect.servers", 4);
+
+	/**
+	 * Directory holding session snapshots used for warm restarts.
+	 */
+	public final static String SESSION_DIRECTORY = System.getProperty("funrun.session.dir",
+			System.getProperty("user.home") + "/.echobot/sessions");
+	
+	/**
+	 * File to capture socket traffic to for later replay, or
+	 * null to capture nothing. Set with -Dfunrun.capture.file=path
+	 */
+	public final static String CAPTURE_FILE = System.getProperty("funrun.capture.file");
+	
+	/**
+	 * Most bytes a capture file may grow to.
+	 */
+	public final static long CAPTURE_MAX_SIZE = Long.getLong("funrun.capture.max.size", 1L << 30);
+	
+	/**
+	 * Time, in milliseconds, between echoes in fixed tick mode, in
+	 * which the friend's position is predicted from its velocity
+	 * between updates. 0 echoes every position update as it arrives.
+	 */
+	public final static long ECHO_TICK = Long.getLong("funrun.echo.tick", 0);
+	
+	/**
+	 * Distance, in position units, the predicted position must move
+	 * before a fixed tick echo is sent again.
+	 */
+	public final static int ECHO_DEADBAND = Integer.getInteger("funrun.echo.deadband", 2);
+	
+	/**
+	 * Longest time, in milliseconds, past the friend's last update
+	 * that its position is predicted in fixed tick mode. After that
+	 * the bot stays where the prediction ended, so a friend who
+	 * stops sending updates isn't followed off into the distance.
+	 */
+	public final static long ECHO_HORIZON = Long.getLong("funrun.echo.horizon", 250);
+	
+	/**
+	 * Most game invites accepted per minute once the burst is
+	 * used up, or 0 for no limit, the default.
+	 */
+	public final static double INVITE_RATE = Double.parseDouble(System.getProperty("funrun.invite.rate", "0"));
+	
+	/**
+	 * Most game invites accepted back to back when INVITE_RATE
+	 * limits them.
+	 */
+	public final static int INVITE_BURST = Integer.getInteger("funrun.invite.burst", 3);
+	
+	/**
+	 * Time, in milliseconds, after accepting a friend's invite
+	 * before another invite from the same friend is accepted.
+	 */
+	public final static long INVITE_COOLDOWN = Long.getLong("funrun.invite.cooldown", 0);
+	
+	/**
+	 * Directory the event log's files are written to, or an empty
+	 * string to write the log to standard error.
+	 */
+	public final static String LOG_DIRECTORY = System.getProperty("funrun.log.dir",
+			System.getProperty("user.home") + "/.echobot/logs");
+	
+	/**
+	 * Least serious level written to the event log: DEBUG, INFO,
+	 * WARN or ERROR.
+	 */
+	public final static LogLevel LOG_LEVEL =
+			LogLevel.valueOf(System.getProperty("funrun.log.level", "INFO").toUpperCase(Locale.ROOT));
+	
+	/**
+	 * Most events waiting to be written to the event log before
+	 * more are dropped.
+	 */
+	public final static int LOG_BUFFER_SIZE = Integer.getInteger("funrun.log.buffer", 4096);
+	
+	/**
+	 * Size, in characters, at which the event log starts a new file.
+	 */
+	public final static long LOG_FILE_SIZE = Long.getLong("funrun.log.file.size", 10L << 20);
+	
+	/**
+	 * Number of event log files kept, the current one included.
+	 */
+	public final static int LOG_FILES = Integer.getInteger("funrun.log.files", 5);
+	
+	/**
+	 * Time, in milliseconds, during which an event that repeats an
+	 * earlier one is held back instead of written.
+	 */
+	public final static long LOG_REPEAT_INTERVAL = Long.getLong("funrun.log.repeat.interval", 10000);
+	
+	/**
+	 * Time, in milliseconds, between samples shown on the GUI's
+	 * performance dashboard.
+	 */
+	public final static long DASHBOARD_INTERVAL = Long.getLong("funrun.dashboard.interval", 1000);
 }
@@ -0,0 +1,327 @@
+package model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the sockets monitors talk over. A connection is only
+ * started here; the channel is handed back right away and the
+ * monitor's event loop finishes connecting, so no thread waits
+ * on a slow server. Every socket has Nagle's algorithm turned
+ * off and its buffers sized for small, frequent messages.
+ *
+ * If Config.PRECONNECT is set the connector also keeps a spare
+ * connection to each of the game servers used most recently,
+ * so that the next lobby on the same server skips the handshake.
+ * A spare that isn't used within Config.PRECONNECT_IDLE
+ * milliseconds is closed, and is never handed out once it is
+ * that old. The server may still have closed a younger spare,
+ * so a monitor given one falls back to a fresh connection if the
+ * spare fails before anything is read from it.
+ *
+ * Host names that aren't addresses are looked up on the calling
+ * thread, which blocks. Code on an event loop must pass IP
+ * addresses, as game invites do; the data server's host name is
+ * only looked up by the thread that starts a client.
+ * @author Damiene Stewart
+ */
+public class Connector {
+
+	/**
+	 * The connector shared by every client in this process.
+	 */
+	private static Connector ourInstance;
+
+	/**
+	 * Spare connections by address, least recently used first.
+	 * Guarded by this connector.
+	 */
+	private final Map<InetSocketAddress, Spare> mySpares;
+
+	/**
+	 * Construct a new connector with no spare connections.
+	 */
+	public Connector() {
+		mySpares = new LinkedHashMap<InetSocketAddress, Spare>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Spare> theEldest) {
+				if (size() > Config.PRECONNECT_SERVERS) {
+					theEldest.getValue().close();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Return the shared connector, creating it on first use.
+	 * @return the shared connector.
+	 */
+	public static synchronized Connector getInstance() {
+		if (ourInstance == null) {
+			ourInstance = new Connector();
+		}
+
+		return ourInstance;
+	}
+
+	/**
+	 * Start a new connection to a server. Doesn't wait for the
+	 * connection, but a host name that isn't an address is looked
+	 * up first, blocking the calling thread.
+	 * @param theHost the host to connect to.
+	 * @param thePort the port to connect to.
+	 * @return a non-blocking channel that is connected or
+	 * connecting, or null if the connection could not be started.
+	 */
+	public SocketChannel connect(String theHost, int thePort) {
+		InetSocketAddress address = resolve(theHost, thePort);
+		return address == null ? null : open(address);
+	}
+
+	/**
+	 * Start a new connection to a resolved address. Never blocks
+	 * on the network.
+	 * @param theAddress the address to connect to.
+	 * @return a non-blocking channel that is connected or
+	 * connecting, or null if the connection could not be started.
+	 */
+	public SocketChannel connect(InetSocketAddress theAddress) {
+		return open(theAddress);
+	}
+
+	/**
+	 * Take the spare connection to a server, if there is one
+	 * that is still usable. Like connect(), a host name that
+	 * isn't an address is looked up first.
+	 * @param theHost the host.
+	 * @param thePort the port.
+	 * @return a non-blocking channel that is connected or
+	 * connecting, or null if there is no usable spare.
+	 */
+	public SocketChannel takeSpare(String theHost, int thePort) {
+		if (!Config.PRECONNECT) {
+			return null;
+		}
+
+		InetSocketAddress address = resolve(theHost, thePort);
+		return address == null ? null : take(address);
+	}
+
+	/**
+	 * Open a spare connection to a server, unless there already
+	 * is one. Does nothing unless Config.PRECONNECT is set.
+	 * @param theHost the host to connect to.
+	 * @param thePort the port to connect to.
+	 */
+	public void preconnect(String theHost, int thePort) {
+		if (!Config.PRECONNECT) {
+			return;
+		}
+
+		InetSocketAddress address = resolve(theHost, thePort);
+		if (address == null) {
+			return;
+		}
+
+		synchronized (this) {
+			if (mySpares.containsKey(address)) {
+				return;
+			}
+		}
+
+		SocketChannel channel = open(address);
+		if (channel == null) {
+			return;
+		}
+
+		Spare spare = new Spare(channel);
+		synchronized (this) {
+			if (mySpares.containsKey(address)) {
+				spare.close();
+				return;
+			}
+			mySpares.put(address, spare);
+		}
+		spare.myExpiry = Scheduler.getInstance().schedule(() -> expire(address, spare),
+				Config.PRECONNECT_IDLE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Return the number of spare connections being kept.
+	 * @return the spare connections.
+	 */
+	public synchronized int getSpareCount() {
+		return mySpares.size();
+	}
+
+	/**
+	 * Close every spare connection.
+	 */
+	public void shutdown() {
+		Spare[] spares;
+		synchronized (this) {
+			spares = mySpares.values().toArray(new Spare[mySpares.size()]);
+			mySpares.clear();
+		}
+
+		for (Spare spare : spares) {
+			spare.close();
+		}
+	}
+
+	/**
+	 * Take the spare connection to an address, if it is still usable:
+	 * open, not refused and no older than Config.PRECONNECT_IDLE.
+	 * @param theAddress the address.
+	 * @return the spare channel, or null.
+	 */
+	private SocketChannel take(InetSocketAddress theAddress) {
+		Spare spare;
+		synchronized (this) {
+			spare = mySpares.remove(theAddress);
+		}
+		if (spare == null) {
+			return null;
+		}
+
+		if (spare.myExpiry != null) {
+			spare.myExpiry.cancel(false);
+		}
+
+		if (System.nanoTime() - spare.myCreated > TimeUnit.MILLISECONDS.toNanos(Config.PRECONNECT_IDLE)) {
+			// Its expiry ran late; the server has likely given up on it.
+			spare.close();
+			return null;
+		}
+
+		SocketChannel channel = spare.myChannel;
+		try {
+			// Throws if the server refused the connection.
+			if (channel.isConnectionPending()) {
+				channel.finishConnect();
+			}
+		} catch (IOException e) {
+			spare.close();
+			return null;
+		}
+		return channel.isOpen() ? channel : null;
+	}
+
+	/**
+	 * Close a spare connection that was never used.
+	 * @param theAddress the spare's address.
+	 * @param theSpare the spare.
+	 */
+	private void expire(InetSocketAddress theAddress, Spare theSpare) {
+		synchronized (this) {
+			if (mySpares.get(theAddress) != theSpare) {
+				return;
+			}
+			mySpares.remove(theAddress);
+		}
+		theSpare.close();
+	}
+
+	/**
+	 * Make the address of a server.
+	 * @param theHost the host, looked up if it isn't an address.
+	 * @param thePort the port.
+	 * @return the address, or null if it is invalid.
+	 */
+	private static InetSocketAddress resolve(String theHost, int thePort) {
+		try {
+			return new InetSocketAddress(theHost, thePort);
+		} catch (IllegalArgumentException e) {
+			EventLog.getInstance().log(LogLevel.WARN, null, 0, "Bad server address", theHost, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Open a tuned, non-blocking channel and start connecting it.
+	 * @param theAddress the address to connect to.
+	 * @return the channel, or null if it could not be opened.
+	 */
+	private static SocketChannel open(InetSocketAddress theAddress) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			if (Config.SOCKET_SEND_BUFFER > 0) {
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, Config.SOCKET_SEND_BUFFER);
+			}
+			if (Config.SOCKET_RECEIVE_BUFFER > 0) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, Config.SOCKET_RECEIVE_BUFFER);
+			}
+			channel.connect(theAddress);
+			return channel;
+		} catch (IOException | UnresolvedAddressException e) {
+			EventLog.getInstance().log(LogLevel.WARN, null, 0, "Could not start connecting", theAddress, e);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					EventLog.getInstance().log(LogLevel.WARN, "Could not close the socket", e2);
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A spare connection and the task that closes it once idle.
+	 */
+	private static final class Spare {
+
+		/**
+		 * The connected or connecting channel.
+		 */
+		private final SocketChannel myChannel;
+
+		/**
+		 * When the spare was opened, from System.nanoTime().
+		 */
+		private final long myCreated;
+
+		/**
+		 * Closes the spare once it has been idle too long.
+		 */
+		private volatile ScheduledFuture<?> myExpiry;
+
+		/**
+		 * Construct a new spare.
+		 * @param theChannel the channel.
+		 */
+		private Spare(SocketChannel theChannel) {
+			myChannel = theChannel;
+			myCreated = System.nanoTime();
+		}
+
+		/**
+		 * Close the spare's channel.
+		 */
+		private void close() {
+			if (myExpiry != null) {
+				myExpiry.cancel(false);
+			}
+
+			try {
+				myChannel.close();
+			} catch (IOException e) {
+				EventLog.getInstance().log(LogLevel.WARN, "Could not close a spare socket", e);
+			}
+		}
+	}
+}
@@ -1,32 +1,47 @@
 package model;
 
 import java.io.PrintWriter;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 
 import org.json.JSONObject;
 
-import javafx.application.Platform;
-
 public class DataMonitor extends Monitor {
+	
 	/**
-	 * Pinger class to send ping to socket.
+	 * Start of a status update, encoded once.
 	 */
-	private Pinger myPinger;
+	private static final byte[] STATUS_HEAD = "{\"m\":45,\"s\":".getBytes(StandardCharsets.UTF_8);
 	
 	/**
-	 * The writer.
+	 * End of a status update, encoded once.
 	 */
-	private PrintWriter myWriter;
+	private static final byte[] STATUS_TAIL = ChannelWriter.encode("}");
 	
-	private Thread myPingThread;
+	/**
+	 * Handlers for data server messages by their "m" field, shared
+	 * by every data monitor. Register a handler here to act on a
+	 * new message or to replace how one is handled.
+	 */
+	public static final OpcodeRegistry<DataMonitor, JSONObject> HANDLERS = createHandlers();
 	
 	/**
 	 * Initialize the Data Monitor.
 	 * @param theClient the client.
 	 */
 	public DataMonitor(Client theClient) {
-		super(theClient, Config.GAME_HOST_NAME, Config.DATA_SERVER_PORT);	
-		myWriter = null;
-		myPingThread = null;
+		super(theClient, Config.GAME_HOST_NAME, Config.DATA_SERVER_PORT);
+	}
+
+	
+	/**
+	 * Initialize a Data Monitor for an already connected channel.
+	 * @param theClient the client.
+	 * @param theChannel the connected channel, or null for a
+	 * monitor that is handed data with feed().
+	 */
+	public DataMonitor(Client theClient, SocketChannel theChannel) {
+		super(theClient, theChannel);
 	}
 	
 	/**
@@ -34,13 +49,7 @@ public class DataMonitor extends Monitor {
 	 */
 	public void stopDataMonitor() {
 		stopMonitor();
-		
-		if (myPinger != null) {
-			myPinger.stopPinger();
-			if (myPingThread.isAlive()) {
-				myPingThread.interrupt();
-			}
-		}
+		KeepAliveService.getInstance().unregister(this);
 	}
 	
 	/**
@@ -48,49 +57,44 @@ public class DataMonitor extends Monitor {
 	 * @param theStatus the status to send.
 	 */
 	public void sendStatusUpdate(int theStatus) {
-		JSONObject ob = new JSONObject()
-						.put("m", 45)
-						.put("s", theStatus);
-		myWriter.println(ob.toString());
+		ChannelWriter output = getChannelWriter();
+		output.writeNumber(STATUS_HEAD, theStatus, STATUS_TAIL);
+		output.flush();
+	}
+	
+	@Override
+	protected void connectionClosed() {
+		KeepAliveService.getInstance().unregister(this);
+		myClient.dataConnectionClosed();
 	}
 	
 	@Override
 	protected void processSocketData(Object theData, PrintWriter theWriter) {
 		JSONObject data = (JSONObject) theData;
-		myWriter = getWriter();
-		int messageType = data.getInt("m");
-		
-		switch (messageType) {
-		case 1:
-			Platform.runLater(() -> {
-				myClient.createFriendList(data.getJSONArray("f"));
-			});
-			break;
-			
-		case 35:
-			joinCustomGame(data);
-			break;
-		
-		case 51:
-			respondToChallenge(myWriter);
-			break;
-			
-		default:
-			break;
-		}
+		HANDLERS.dispatch(data.optInt("m", -1), this, data);
 	}
 	
-	public void startPinger() {
-		setupPinger();
+	/**
+	 * Create the registry with the handlers for every message
+	 * the bot acts on.
+	 * @return the registry.
+	 */
+	private static OpcodeRegistry<DataMonitor, JSONObject> createHandlers() {
+		OpcodeRegistry<DataMonitor, JSONObject> handlers = new OpcodeRegistry<DataMonitor, JSONObject>();
+		
+		handlers.register(1, (theMonitor, theData) ->
+				theMonitor.myClient.createFriendList(theData.getJSONArray("f")));
+		handlers.register(35, DataMonitor::joinCustomGame);
+		handlers.register(51, (theMonitor, theData) -> theMonitor.respondToChallenge(theMonitor.getWriter()));
+		
+		return handlers;
 	}
 	
 	/**
-	 * Set up pinger.
+	 * Have the shared keepalive service ping this connection.
 	 */
-	private void setupPinger() {
-		myPinger = new Pinger(super.mySocket);
-		myPingThread = (new Thread(myPinger));
-		myPingThread.start();
+	public void startKeepAlive() {
+		KeepAliveService.getInstance().register(this);
 	}
 	
 	/**
@@ -111,14 +115,18 @@ public class DataMonitor extends Monitor {
 	
 	/**
 	 * Let the client know that we received a custom game
-	 * request, and that it can join if it so chose.
+	 * request, if its invite policy accepts it.
 	 * @param theData the game request data.
 	 */
 	private void joinCustomGame(JSONObject theData) {
-		String ip = theData.getString("a");
 		String playerID = theData.getString("p");
-		int token = theData.getInt("s");
+		int priority = myClient.getInvitePolicy().accept(playerID, myClient.getLobbyPriority(), getReadTime());
+		if (priority == InvitePolicy.NONE) {
+			return;
+		}
 		
-		myClient.joinCustomRace(ip, playerID, token);
+		String ip = theData.getString("a");
+		int token = theData.getInt("s");
+		myClient.joinCustomRace(ip, token, priority);
 	}
 }
@@ -0,0 +1,648 @@
+package model;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The process's log of notable events, mostly failures. Logging
+ * an event only copies its fields into a slot of a ring buffer
+ * allocated up front; a background thread formats the events
+ * and writes them to rolling files, so a network thread never
+ * waits on the disk. If the buffer is full the event is dropped
+ * and counted rather than making the caller wait.
+ *
+ * An event has a level, the source and session it came from, a
+ * message, an optional detail and an optional error. Messages
+ * should be constant strings: anything that varies goes in the
+ * detail, which isn't turned into text until it is written.
+ *
+ * Events with the same source, message and error type are only
+ * logged once per Config.LOG_REPEAT_INTERVAL. Repeats are counted
+ * by the caller against a small table of recent kinds of event,
+ * before they reach the buffer, and the count is written with the
+ * next event of the kind to get through. A storm of the same error
+ * costs a line every few seconds and a counter increment for each
+ * repeat, and leaves the buffer free for other events.
+ * @author Damiene Stewart
+ */
+public class EventLog implements Runnable {
+
+	/**
+	 * Name of the current log file; older files get a number added.
+	 */
+	public static final String FILE_NAME = "echobot.log";
+
+	/**
+	 * Time, in nanoseconds, the writer sleeps when there is nothing to write.
+	 */
+	private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(20);
+
+	/**
+	 * Number of kinds of event remembered for holding back
+	 * repeats, a power of two.
+	 */
+	private static final int KINDS = 256;
+
+	/**
+	 * The log shared by every client in this process.
+	 */
+	private static EventLog ourInstance;
+
+	/**
+	 * The ring buffer's slots.
+	 */
+	private final Slot[] mySlots;
+
+	/**
+	 * Mask turning a sequence number into a slot index.
+	 */
+	private final int myMask;
+
+	/**
+	 * Sequence number of the next event to be logged.
+	 */
+	private final AtomicLong myHead;
+
+	/**
+	 * Sequence number of the next event to be written.
+	 */
+	private final AtomicLong myTail;
+
+	/**
+	 * Least serious level that is logged.
+	 */
+	private final LogLevel myLevel;
+
+	/**
+	 * Directory the log files are written to, or null to write to
+	 * standard error.
+	 */
+	private final Path myDirectory;
+
+	/**
+	 * Size, in characters, at which a new file is started.
+	 */
+	private final long myFileSize;
+
+	/**
+	 * Number of files kept, the current one included.
+	 */
+	private final int myFiles;
+
+	/**
+	 * Time, in milliseconds, during which repeats of an event are
+	 * held back.
+	 */
+	private final long myRepeatInterval;
+
+	/**
+	 * Events dropped because the buffer was full.
+	 */
+	private final LongAdder myDropped;
+
+	/**
+	 * Events held back because they repeated an earlier one.
+	 */
+	private final LongAdder mySuppressed;
+
+	/**
+	 * Hands out session numbers.
+	 */
+	private final AtomicInteger mySessions;
+
+	/**
+	 * Recently logged kinds of event, by a hash of their source
+	 * and message. A kind is replaced by the next one that hashes
+	 * to its place.
+	 */
+	private final AtomicReferenceArray<Kind> myKinds;
+
+	/**
+	 * Where events are written. Only used by the writer thread.
+	 */
+	private PrintWriter myOutput;
+
+	/**
+	 * Characters written to the current file. Only used by the
+	 * writer thread.
+	 */
+	private long myWritten;
+
+	/**
+	 * Dropped events already reported. Only used by the writer thread.
+	 */
+	private long myReportedDrops;
+
+	/**
+	 * Construct a new log. Its writer thread is not started until
+	 * start() is called.
+	 * @param theLevel the least serious level to log.
+	 * @param theCapacity the most events waiting to be written,
+	 * rounded up to a power of two.
+	 * @param theDirectory where the log files go, or null to write
+	 * to standard error.
+	 */
+	public EventLog(LogLevel theLevel, int theCapacity, Path theDirectory) {
+		this(theLevel, theCapacity, theDirectory, Config.LOG_FILE_SIZE, Config.LOG_FILES, Config.LOG_REPEAT_INTERVAL);
+	}
+
+	/**
+	 * Construct a new log. Its writer thread is not started until
+	 * start() is called.
+	 * @param theLevel the least serious level to log.
+	 * @param theCapacity the most events waiting to be written,
+	 * rounded up to a power of two.
+	 * @param theDirectory where the log files go, or null to write
+	 * to standard error.
+	 * @param theFileSize size, in characters, at which a new file
+	 * is started.
+	 * @param theFiles number of files kept, the current one included.
+	 * @param theRepeatInterval time, in milliseconds, during which
+	 * repeats of an event are held back.
+	 */
+	EventLog(LogLevel theLevel, int theCapacity, Path theDirectory, long theFileSize, int theFiles,
+			long theRepeatInterval) {
+		if (theCapacity < 1 || theCapacity > 1 << 24)
+			throw new IllegalArgumentException("The capacity: " + theCapacity + " is invalid.");
+		if (theFileSize < 1)
+			throw new IllegalArgumentException("The file size: " + theFileSize + " is invalid.");
+		if (theFiles < 1)
+			throw new IllegalArgumentException("The number of files: " + theFiles + " is invalid.");
+		if (theRepeatInterval < 0)
+			throw new IllegalArgumentException("The repeat interval: " + theRepeatInterval + " is invalid.");
+
+		int capacity = Integer.highestOneBit(theCapacity - 1) << 1;
+		capacity = Math.max(1, capacity);
+		mySlots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mySlots[i] = new Slot(i - capacity);
+		}
+		myMask = capacity - 1;
+		myHead = new AtomicLong();
+		myTail = new AtomicLong();
+		myLevel = theLevel;
+		myDirectory = theDirectory;
+		myFileSize = theFileSize;
+		myFiles = theFiles;
+		myRepeatInterval = theRepeatInterval;
+		myDropped = new LongAdder();
+		mySuppressed = new LongAdder();
+		mySessions = new AtomicInteger();
+		myKinds = new AtomicReferenceArray<Kind>(KINDS);
+	}
+
+	/**
+	 * Return the shared log, creating and starting it on first use.
+	 * @return the shared log.
+	 */
+	public static synchronized EventLog getInstance() {
+		if (ourInstance == null) {
+			ourInstance = new EventLog(Config.LOG_LEVEL, Config.LOG_BUFFER_SIZE,
+					Config.LOG_DIRECTORY.isEmpty() ? null : Paths.get(Config.LOG_DIRECTORY));
+			ourInstance.start();
+		}
+
+		return ourInstance;
+	}
+
+	/**
+	 * Start the writer thread. Whatever is waiting is written
+	 * when the process exits.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "EventLog");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+	}
+
+	/**
+	 * Return a new session number, for telling apart the events
+	 * of different connections.
+	 * @return the session number.
+	 */
+	public int newSession() {
+		return mySessions.incrementAndGet();
+	}
+
+	/**
+	 * Returns true if events of a level are logged.
+	 * @param theLevel the level.
+	 * @return true if the level is logged.
+	 */
+	public boolean isEnabled(LogLevel theLevel) {
+		return theLevel.compareTo(myLevel) >= 0;
+	}
+
+	/**
+	 * Log an event that isn't tied to a session.
+	 * @param theLevel how serious the event is.
+	 * @param theMessage what happened; a constant string.
+	 * @param theError the error, or null.
+	 */
+	public void log(LogLevel theLevel, String theMessage, Throwable theError) {
+		log(theLevel, null, 0, theMessage, null, theError);
+	}
+
+	/**
+	 * Log an event. Never blocks, and allocates nothing unless the
+	 * event is the first of its kind for a while.
+	 * @param theLevel how serious the event is.
+	 * @param theSource what the event came from, such as "lobby", or null.
+	 * @param theSession the source's session number, or 0.
+	 * @param theMessage what happened; a constant string.
+	 * @param theDetail more about what happened, turned into text
+	 * when written, or null.
+	 * @param theError the error, or null.
+	 * @return false if the event was dropped because the buffer
+	 * was full.
+	 */
+	public boolean log(LogLevel theLevel, String theSource, int theSession, String theMessage,
+			Object theDetail, Throwable theError) {
+		if (!isEnabled(theLevel)) {
+			return true;
+		}
+
+		long now = System.currentTimeMillis();
+		Class<?> type = theError == null ? null : theError.getClass();
+		int index = (System.identityHashCode(theMessage) * 31 + System.identityHashCode(theSource)) & (KINDS - 1);
+		Kind kind = myKinds.get(index);
+		Kind evicted = null;
+		if (kind != null && kind.matches(theSource, theMessage, type)) {
+			if (now - kind.myLogged < myRepeatInterval) {
+				kind.myHeld.increment();
+				mySuppressed.increment();
+				return true;
+			}
+			kind.myLogged = now;
+		} else {
+			evicted = kind;
+			kind = new Kind(theSource, theMessage, type, now);
+			myKinds.set(index, kind);
+		}
+
+		long sequence;
+		do {
+			sequence = myHead.get();
+			if (sequence - myTail.get() >= mySlots.length) {
+				myDropped.increment();
+				return false;
+			}
+		} while (!myHead.compareAndSet(sequence, sequence + 1));
+
+		Slot slot = mySlots[(int) sequence & myMask];
+		slot.myLevel = theLevel;
+		slot.myTime = now;
+		slot.mySource = theSource;
+		slot.mySession = theSession;
+		slot.myMessage = theMessage;
+		slot.myDetail = theDetail;
+		slot.myError = theError;
+		slot.myKind = kind;
+		slot.myEvicted = evicted;
+		slot.mySequence = sequence;
+		return true;
+	}
+
+	/**
+	 * Return the number of events dropped because the buffer was full.
+	 * @return the dropped events.
+	 */
+	public long getDropped() {
+		return myDropped.sum();
+	}
+
+	/**
+	 * Return the number of events held back as repeats.
+	 * @return the suppressed events.
+	 */
+	public long getSuppressed() {
+		return mySuppressed.sum();
+	}
+
+	/**
+	 * Return the number of events waiting to be written.
+	 * @return the waiting events.
+	 */
+	public int getPending() {
+		return (int) (myHead.get() - myTail.get());
+	}
+
+	/**
+	 * Write events as they arrive.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			if (!writeNext()) {
+				idle(myRepeatInterval);
+				LockSupport.parkNanos(IDLE_WAIT);
+			}
+		}
+	}
+
+	/**
+	 * Write everything waiting, with the repeats held back and
+	 * the events dropped so far, and flush the output. Called when
+	 * the process exits.
+	 */
+	synchronized void drain() {
+		while (writeNext()) {
+			// Keep writing.
+		}
+		idle(0);
+	}
+
+	/**
+	 * Write the next event, if it has been logged.
+	 * @return false if there was nothing to write.
+	 */
+	private synchronized boolean writeNext() {
+		long tail = myTail.get();
+		Slot slot = mySlots[(int) tail & myMask];
+		if (slot.mySequence != tail) {
+			return false;
+		}
+
+		LogLevel level = slot.myLevel;
+		long time = slot.myTime;
+		String source = slot.mySource;
+		int session = slot.mySession;
+		String message = slot.myMessage;
+		Object detail = slot.myDetail;
+		Throwable error = slot.myError;
+		Kind kind = slot.myKind;
+		Kind evicted = slot.myEvicted;
+		slot.mySource = null;
+		slot.myMessage = null;
+		slot.myDetail = null;
+		slot.myError = null;
+		slot.myKind = null;
+		slot.myEvicted = null;
+		myTail.lazySet(tail + 1);
+
+		if (evicted != null) {
+			writeHeld(evicted, time);
+		}
+
+		StringBuilder line = new StringBuilder(128);
+		line.append(Instant.ofEpochMilli(time)).append(' ').append(level);
+		if (source != null) {
+			line.append(" [").append(source).append(' ').append(session).append(']');
+		}
+		line.append(' ').append(message);
+		if (detail != null) {
+			line.append(": ").append(detail);
+		}
+		if (error != null) {
+			line.append(" (").append(error).append(')');
+		}
+		long held = kind.myHeld.sumThenReset();
+		if (held > 0) {
+			line.append(" [").append(held).append(" more like this held back]");
+		}
+		write(line.toString(), level == LogLevel.ERROR ? error : null);
+		return true;
+	}
+
+	/**
+	 * Report repeats held back since the last event of their kind
+	 * that got through, once no more are being held back, and
+	 * anything dropped; then flush the output.
+	 * @param theQuiet time, in milliseconds, since the last event
+	 * of a kind got through before its repeats are reported.
+	 */
+	private synchronized void idle(long theQuiet) {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < KINDS; i++) {
+			Kind kind = myKinds.get(i);
+			if (kind != null && now - kind.myLogged >= theQuiet) {
+				writeHeld(kind, now);
+			}
+		}
+
+		long dropped = myDropped.sum();
+		if (dropped > myReportedDrops) {
+			write(Instant.ofEpochMilli(now) + " WARN " + (dropped - myReportedDrops)
+					+ " events dropped; the log buffer was full", null);
+			myReportedDrops = dropped;
+		}
+
+		if (myOutput != null) {
+			myOutput.flush();
+		}
+	}
+
+	/**
+	 * Write how many events of a kind were held back, if any.
+	 * @param theKind the kind.
+	 * @param theTime when to say it happened, from System.currentTimeMillis().
+	 */
+	private void writeHeld(Kind theKind, long theTime) {
+		long held = theKind.myHeld.sumThenReset();
+		if (held > 0) {
+			write(Instant.ofEpochMilli(theTime) + " INFO " + held + " more held back like: "
+					+ (theKind.mySource == null ? "" : "[" + theKind.mySource + "] ") + theKind.myMessage
+					+ (theKind.myType == null ? "" : " (" + theKind.myType.getName() + ")"), null);
+		}
+	}
+
+	/**
+	 * Write a line, and the error's stack trace if there is one,
+	 * starting a new file once the current one is full.
+	 * @param theLine the line.
+	 * @param theTrace the error to write the stack trace of, or null.
+	 */
+	private void write(String theLine, Throwable theTrace) {
+		if (myOutput == null || (myDirectory != null && myWritten >= myFileSize)) {
+			open();
+		}
+
+		myOutput.println(theLine);
+		myWritten += theLine.length() + 1;
+		if (theTrace != null) {
+			theTrace.printStackTrace(myOutput);
+			myWritten += 1024;
+		}
+	}
+
+	/**
+	 * Open the output, rolling the existing files over first so
+	 * that no more than the configured number are kept. Falls back
+	 * to standard error if the directory can't be used.
+	 */
+	private void open() {
+		if (myOutput != null) {
+			myOutput.close();
+		}
+		myWritten = 0;
+
+		if (myDirectory != null) {
+			try {
+				Files.createDirectories(myDirectory);
+				Path current = myDirectory.resolve(FILE_NAME);
+				if (Files.exists(current)) {
+					// The oldest kept file is .(myFiles - 1); moving the
+					// one before it over it discards it.
+					for (int i = myFiles - 2; i >= 1; i--) {
+						Path older = myDirectory.resolve(FILE_NAME + "." + i);
+						if (Files.exists(older)) {
+							Files.move(older, myDirectory.resolve(FILE_NAME + "." + (i + 1)),
+									StandardCopyOption.REPLACE_EXISTING);
+						}
+					}
+					if (myFiles > 1) {
+						Files.move(current, myDirectory.resolve(FILE_NAME + ".1"), StandardCopyOption.REPLACE_EXISTING);
+					} else {
+						Files.delete(current);
+					}
+				}
+				Writer file = Files.newBufferedWriter(current, StandardCharsets.UTF_8);
+				myOutput = new PrintWriter(file, false);
+				return;
+			} catch (IOException e) {
+				System.err.println("Could not open the event log in " + myDirectory + ": " + e);
+			}
+		}
+
+		myOutput = new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), false);
+	}
+
+	/**
+	 * One event in the ring buffer. Written by the thread that
+	 * logged it, then published by setting its sequence number.
+	 */
+	private static final class Slot {
+
+		/**
+		 * Sequence number of the event in the slot, set last.
+		 */
+		private volatile long mySequence;
+
+		/**
+		 * How serious the event is.
+		 */
+		private LogLevel myLevel;
+
+		/**
+		 * When the event was logged, from System.currentTimeMillis().
+		 */
+		private long myTime;
+
+		/**
+		 * What the event came from, or null.
+		 */
+		private String mySource;
+
+		/**
+		 * The source's session number.
+		 */
+		private int mySession;
+
+		/**
+		 * What happened.
+		 */
+		private String myMessage;
+
+		/**
+		 * More about what happened, or null.
+		 */
+		private Object myDetail;
+
+		/**
+		 * The error, or null.
+		 */
+		private Throwable myError;
+
+		/**
+		 * The event's kind.
+		 */
+		private Kind myKind;
+
+		/**
+		 * A kind the event's kind replaced, to report what it held back, or null.
+		 */
+		private Kind myEvicted;
+
+		/**
+		 * Construct an empty slot.
+		 * @param theSequence a sequence number no event will have.
+		 */
+		private Slot(long theSequence) {
+			mySequence = theSequence;
+		}
+	}
+
+	/**
+	 * A kind of event: its source, message and error type, when
+	 * one was last logged and how many were held back since.
+	 */
+	private static final class Kind {
+
+		/**
+		 * What the events come from, or null.
+		 */
+		private final String mySource;
+
+		/**
+		 * The events' message.
+		 */
+		private final String myMessage;
+
+		/**
+		 * The events' error type, or null.
+		 */
+		private final Class<?> myType;
+
+		/**
+		 * Repeats held back since one was logged.
+		 */
+		private final LongAdder myHeld;
+
+		/**
+		 * When an event of this kind was last logged, from
+		 * System.currentTimeMillis().
+		 */
+		private volatile long myLogged;
+
+		/**
+		 * Construct a new kind.
+		 * @param theSource what the events come from, or null.
+		 * @param theMessage the events' message.
+		 * @param theType the events' error type, or null.
+		 * @param theLogged when the first was logged.
+		 */
+		private Kind(String theSource, String theMessage, Class<?> theType, long theLogged) {
+			mySource = theSource;
+			myMessage = theMessage;
+			myType = theType;
+			myHeld = new LongAdder();
+			myLogged = theLogged;
+		}
+
+		/**
+		 * Returns true if an event is of this kind.
+		 * @param theSource the event's source.
+		 * @param theMessage the event's message.
+		 * @param theType the event's error type.
+		 * @return true if they match this kind's.
+		 */
+		private boolean matches(String theSource, String theMessage, Class<?> theType) {
+			return mySource == theSource && myMessage == theMessage && myType == theType;
+		}
+	}
+}
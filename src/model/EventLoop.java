@@ -0,0 +1,185 @@
+package model;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single network event loop. Any number of monitors can
+ * be registered with one loop, and all of their sockets are
+ * serviced by one thread blocked in a selector instead of
+ * one thread per socket.
+ * @author Damiene Stewart
+ */
+public class EventLoop implements Runnable {
+
+	/**
+	 * The selector that all registered channels share.
+	 */
+	private final Selector mySelector;
+
+	/**
+	 * Tasks handed to the loop from other threads.
+	 */
+	private final Queue<Runnable> myTasks;
+
+	/**
+	 * The thread running this loop.
+	 */
+	private final Thread myThread;
+
+	/**
+	 * Flag indicating whether or not the loop should continue.
+	 */
+	private volatile boolean myContinue;
+
+	/**
+	 * Construct a new event loop. The loop's thread is not
+	 * started until start() is called.
+	 * @param theName the name of the loop's thread.
+	 * @throws IOException if the selector could not be opened.
+	 */
+	public EventLoop(String theName) throws IOException {
+		mySelector = Selector.open();
+		myTasks = new ConcurrentLinkedQueue<Runnable>();
+		myThread = new Thread(this, theName);
+		myThread.setDaemon(true);
+		myContinue = true;
+	}
+
+	/**
+	 * Start the loop's thread.
+	 */
+	public void start() {
+		myThread.start();
+	}
+
+	/**
+	 * Signal that the loop should stop.
+	 */
+	public void shutdown() {
+		myContinue = false;
+		mySelector.wakeup();
+	}
+
+	/**
+	 * Returns true if the caller is running on this loop's thread.
+	 * @return true if called from the loop thread.
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == myThread;
+	}
+
+	/**
+	 * Return the number of tasks waiting to run on the loop.
+	 * Takes time in proportion to the number of tasks.
+	 * @return the waiting tasks.
+	 */
+	public int getPendingTasks() {
+		return myTasks.size();
+	}
+
+	/**
+	 * Run a task on the loop's thread. If the caller is already
+	 * on the loop thread the task is run immediately.
+	 * @param theTask the task to run.
+	 */
+	public void execute(Runnable theTask) {
+		if (inEventLoop()) {
+			theTask.run();
+		} else {
+			myTasks.add(theTask);
+			mySelector.wakeup();
+		}
+	}
+
+	/**
+	 * Register a monitor's channel with this loop. The monitor
+	 * starts receiving data once the registration has run on
+	 * the loop thread and its connection has been made.
+	 * @param theMonitor the monitor to register.
+	 */
+	public void register(Monitor theMonitor) {
+		execute(() -> {
+			try {
+				theMonitor.attach(this, mySelector);
+			} catch (ClosedChannelException e) {
+				theMonitor.stopMonitor();
+			}
+		});
+	}
+
+	/**
+	 * Run the loop.
+	 */
+	@Override
+	public void run() {
+		while (myContinue) {
+			try {
+				mySelector.select();
+			} catch (IOException e) {
+				EventLog.getInstance().log(LogLevel.ERROR, "The event loop's selector failed", e);
+				break;
+			}
+
+			runTasks();
+			processSelectedKeys();
+		}
+
+		try {
+			mySelector.close();
+		} catch (IOException e) {
+			EventLog.getInstance().log(LogLevel.WARN, "Could not close the event loop's selector", e);
+		}
+	}
+
+	/**
+	 * Run all tasks handed to the loop since the last pass.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = myTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				EventLog.getInstance().log(LogLevel.ERROR, "An event loop task failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Hand every ready channel to its monitor.
+	 */
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> keys = mySelector.selectedKeys().iterator();
+
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			Monitor monitor = (Monitor) key.attachment();
+
+			try {
+				if (key.isValid() && key.isConnectable()) {
+					monitor.handleConnect();
+				}
+
+				if (key.isValid() && key.isReadable()) {
+					monitor.handleRead();
+				}
+
+				if (key.isValid() && key.isWritable()) {
+					monitor.handleWrite();
+				}
+			} catch (RuntimeException e) {
+				// A failing monitor must not take down every other
+				// monitor sharing this loop; it is closed as if the
+				// other end had closed it, so its owner finds out.
+				monitor.connectionFailed(e);
+			}
+		}
+	}
+}
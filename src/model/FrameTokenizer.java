@@ -0,0 +1,137 @@
+package model;
+
+/**
+ * Streaming tokenizer for game lobby messages. Reads a
+ * message straight out of a byte buffer into a reusable
+ * LobbyFrame without creating any objects.
+ *
+ * Only arrays of numbers are handled, with the opcode either
+ * quoted ("18") or bare. Numbers may be quoted, and fractions
+ * are truncated the same way JSONArray.getInt() truncates them.
+ * Anything else, such as strings, nested values or exponents,
+ * is left to org.json.
+ * @author Damiene Stewart
+ */
+public final class FrameTokenizer {
+
+	/**
+	 * Returned by the read helpers when the input can't be tokenized.
+	 */
+	private static final int FAILED = -1;
+
+	/**
+	 * Not instantiable.
+	 */
+	private FrameTokenizer() {
+	}
+
+	/**
+	 * Tokenize one message.
+	 * @param theBytes the buffer holding the message.
+	 * @param theStart index of the message's first byte.
+	 * @param theEnd index one past the message's last byte.
+	 * @param theFrame the frame to fill.
+	 * @return true if the frame was filled, false if the
+	 * message has to be parsed by org.json instead.
+	 */
+	public static boolean tokenize(byte[] theBytes, int theStart, int theEnd, LobbyFrame theFrame) {
+		theFrame.clear();
+
+		int i = skipWhitespace(theBytes, theStart, theEnd);
+		if (i == theEnd || theBytes[i] != '[') {
+			return false;
+		}
+
+		i = readNumber(theBytes, i + 1, theEnd, theFrame);
+
+		while (i != FAILED) {
+			i = skipWhitespace(theBytes, i, theEnd);
+			if (i == theEnd) {
+				return false;
+			}
+
+			if (theBytes[i] == ']') {
+				return skipWhitespace(theBytes, i + 1, theEnd) == theEnd;
+			}
+
+			if (theBytes[i] != ',') {
+				return false;
+			}
+
+			i = readNumber(theBytes, i + 1, theEnd, theFrame);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Read one, possibly quoted, number and add it to the frame.
+	 * @param theBytes the buffer.
+	 * @param theIndex where to start reading.
+	 * @param theEnd index one past the message's last byte.
+	 * @param theFrame the frame to add the number to.
+	 * @return the index after the number, or FAILED.
+	 */
+	private static int readNumber(byte[] theBytes, int theIndex, int theEnd, LobbyFrame theFrame) {
+		int i = skipWhitespace(theBytes, theIndex, theEnd);
+		boolean quoted = i < theEnd && theBytes[i] == '"';
+		if (quoted) {
+			i++;
+		}
+
+		boolean negative = i < theEnd && theBytes[i] == '-';
+		if (negative) {
+			i++;
+		}
+
+		int digitsStart = i;
+		long value = 0;
+		while (i < theEnd && theBytes[i] >= '0' && theBytes[i] <= '9') {
+			int digit = theBytes[i] - '0';
+			if (value > (Long.MAX_VALUE - digit) / 10) {
+				return FAILED;
+			}
+			value = value * 10 + digit;
+			i++;
+		}
+
+		if (i == digitsStart) {
+			return FAILED;
+		}
+
+		if (i < theEnd && theBytes[i] == '.') {
+			i++;
+			while (i < theEnd && theBytes[i] >= '0' && theBytes[i] <= '9') {
+				i++;
+			}
+		}
+
+		if (i < theEnd && (theBytes[i] == 'e' || theBytes[i] == 'E')) {
+			return FAILED;
+		}
+
+		if (quoted) {
+			if (i == theEnd || theBytes[i] != '"') {
+				return FAILED;
+			}
+			i++;
+		}
+
+		return theFrame.add(negative ? -value : value) ? i : FAILED;
+	}
+
+	/**
+	 * Skip spaces and tabs.
+	 * @param theBytes the buffer.
+	 * @param theIndex where to start.
+	 * @param theEnd index one past the message's last byte.
+	 * @return the index of the first other byte, or theEnd.
+	 */
+	private static int skipWhitespace(byte[] theBytes, int theIndex, int theEnd) {
+		int i = theIndex;
+		while (i < theEnd && (theBytes[i] == ' ' || theBytes[i] == '\t')) {
+			i++;
+		}
+		return i;
+	}
+}
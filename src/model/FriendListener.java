@@ -0,0 +1,29 @@
+package model;
+
+/**
+ * Receives changes to a FriendRegistry. Changes arrive on the
+ * thread that made them, usually the data connection's event
+ * loop, after the registry has been updated.
+ * @author Damiene Stewart
+ */
+public interface FriendListener {
+
+	/**
+	 * The whole friend list was replaced by a bulk load that
+	 * changed it.
+	 * @param theRegistry the registry.
+	 */
+	void friendsReplaced(FriendRegistry theRegistry);
+
+	/**
+	 * A friend was added, or an existing friend's name changed.
+	 * @param theFriend the friend as it is now.
+	 */
+	void friendUpdated(Friend theFriend);
+
+	/**
+	 * A friend was removed.
+	 * @param theFriend the friend that was removed.
+	 */
+	void friendRemoved(Friend theFriend);
+}
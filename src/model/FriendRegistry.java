@@ -0,0 +1,441 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A bot's friends, keyed by player ID. IDs and names are kept
+ * in two dense arrays, indexed by an open addressing table of
+ * ints, so that a list of thousands of friends costs little
+ * more than its strings and every lookup, add, update and
+ * remove takes constant time. Removing a friend moves the last
+ * friend into its place, so the order is only the order the
+ * friends arrived in until one is removed.
+ *
+ * Any thread may use a registry. Listeners are told about a
+ * change after it is made, outside the registry's lock.
+ * @author Damiene Stewart
+ */
+public class FriendRegistry {
+
+	/**
+	 * Marks an empty slot in the index.
+	 */
+	private static final int EMPTY = -1;
+
+	/**
+	 * Smallest number of slots in the index.
+	 */
+	private static final int MIN_INDEX_SIZE = 16;
+
+	/**
+	 * Told about every change.
+	 */
+	private final List<FriendListener> myListeners;
+
+	/**
+	 * Player IDs, by position.
+	 */
+	private String[] myIDs;
+
+	/**
+	 * User names, by position.
+	 */
+	private String[] myNames;
+
+	/**
+	 * Number of friends.
+	 */
+	private int mySize;
+
+	/**
+	 * Position of each friend, at the slot its ID hashes to or
+	 * the first empty slot after it. Never more than half full.
+	 */
+	private int[] myIndex;
+
+	/**
+	 * Number of changes made so far.
+	 */
+	private long myVersion;
+
+	/**
+	 * Construct a new, empty registry.
+	 */
+	public FriendRegistry() {
+		myListeners = new CopyOnWriteArrayList<FriendListener>();
+		myIDs = new String[0];
+		myNames = new String[0];
+		mySize = 0;
+		myIndex = newIndex(MIN_INDEX_SIZE);
+	}
+
+	/**
+	 * Start telling a listener about changes.
+	 * @param theListener the listener.
+	 */
+	public void addListener(FriendListener theListener) {
+		myListeners.add(theListener);
+	}
+
+	/**
+	 * Stop telling a listener about changes.
+	 * @param theListener the listener.
+	 */
+	public void removeListener(FriendListener theListener) {
+		myListeners.remove(theListener);
+	}
+
+	/**
+	 * Replace every friend. Loading the friends the registry
+	 * already has, in the same order, changes nothing and tells
+	 * no listener. A player ID that appears twice keeps the last
+	 * name given for it.
+	 * @param theIDs the player IDs.
+	 * @param theNames the user names, in the same order.
+	 * @param theCount number of friends in the arrays.
+	 * @return true if the friends changed.
+	 */
+	public boolean load(String[] theIDs, String[] theNames, int theCount) {
+		if (theCount < 0 || theCount > theIDs.length || theCount > theNames.length)
+			throw new IllegalArgumentException("The count: " + theCount + " is invalid.");
+
+		synchronized (this) {
+			if (matches(theIDs, theNames, theCount)) {
+				return false;
+			}
+
+			myIDs = new String[theCount];
+			myNames = new String[theCount];
+			mySize = 0;
+			myIndex = newIndex(indexSizeFor(theCount));
+			for (int i = 0; i < theCount; i++) {
+				put(theIDs[i], theNames[i]);
+			}
+			myVersion++;
+		}
+
+		for (FriendListener listener : myListeners) {
+			listener.friendsReplaced(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Replace every friend.
+	 * @param theFriends the friends.
+	 * @return true if the friends changed.
+	 */
+	public boolean load(List<Friend> theFriends) {
+		int count = theFriends.size();
+		String[] ids = new String[count];
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = theFriends.get(i).getPlayerID();
+			names[i] = theFriends.get(i).getUserName();
+		}
+		return load(ids, names, count);
+	}
+
+	/**
+	 * Add a friend, or change the name of an existing one.
+	 * @param thePlayerID the friend's ID.
+	 * @param theUserName the friend's name.
+	 * @return true if the friends changed.
+	 */
+	public boolean update(String thePlayerID, String theUserName) {
+		if (thePlayerID == null)
+			throw new IllegalArgumentException("The player ID: null is invalid.");
+		if (theUserName == null)
+			throw new IllegalArgumentException("The user name: null is invalid.");
+
+		synchronized (this) {
+			int position = find(thePlayerID);
+			if (position != EMPTY && myNames[position].equals(theUserName)) {
+				return false;
+			}
+			put(thePlayerID, theUserName);
+			myVersion++;
+		}
+
+		Friend friend = new Friend(thePlayerID, theUserName);
+		for (FriendListener listener : myListeners) {
+			listener.friendUpdated(friend);
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a friend.
+	 * @param thePlayerID the friend's ID.
+	 * @return true if the friend was in the registry.
+	 */
+	public boolean remove(String thePlayerID) {
+		Friend removed;
+		if (thePlayerID == null) {
+			return false;
+		}
+
+		synchronized (this) {
+			int slot = findSlot(thePlayerID);
+			if (myIndex[slot] == EMPTY) {
+				return false;
+			}
+
+			int position = myIndex[slot];
+			removed = new Friend(myIDs[position], myNames[position]);
+			deleteSlot(slot);
+
+			// Move the last friend into the hole.
+			int last = --mySize;
+			if (position != last) {
+				myIndex[findSlot(myIDs[last])] = position;
+				myIDs[position] = myIDs[last];
+				myNames[position] = myNames[last];
+			}
+			myIDs[last] = null;
+			myNames[last] = null;
+			myVersion++;
+		}
+
+		for (FriendListener listener : myListeners) {
+			listener.friendRemoved(removed);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if a player is a friend.
+	 * @param thePlayerID the player's ID.
+	 * @return true if the player is in the registry.
+	 */
+	public synchronized boolean contains(String thePlayerID) {
+		return thePlayerID != null && find(thePlayerID) != EMPTY;
+	}
+
+	/**
+	 * Return a friend.
+	 * @param thePlayerID the friend's ID.
+	 * @return the friend, or null if the player isn't a friend.
+	 */
+	public synchronized Friend get(String thePlayerID) {
+		int position = thePlayerID == null ? EMPTY : find(thePlayerID);
+		return position == EMPTY ? null : new Friend(myIDs[position], myNames[position]);
+	}
+
+	/**
+	 * Return the number of friends.
+	 * @return the size.
+	 */
+	public synchronized int size() {
+		return mySize;
+	}
+
+	/**
+	 * Return the number of changes made so far. To know which
+	 * version a copy of the friends is, read both while holding
+	 * the registry's lock.
+	 * @return the version.
+	 */
+	public synchronized long getVersion() {
+		return myVersion;
+	}
+
+	/**
+	 * Return a copy of the friends.
+	 * @return the friends, in the registry's order.
+	 */
+	public synchronized List<Friend> getFriends() {
+		List<Friend> friends = new ArrayList<Friend>(mySize);
+		for (int i = 0; i < mySize; i++) {
+			friends.add(new Friend(myIDs[i], myNames[i]));
+		}
+		return friends;
+	}
+
+	/**
+	 * Returns true if loading the given friends would leave the
+	 * registry as it is: the same IDs in the order they first
+	 * appear, each with the last name given for it.
+	 * @param theIDs the player IDs.
+	 * @param theNames the user names.
+	 * @param theCount number of friends, duplicates included.
+	 * @return true if nothing would change.
+	 */
+	private boolean matches(String[] theIDs, String[] theNames, int theCount) {
+		if (theCount < mySize) {
+			return false;
+		}
+
+		// Each ID must be in the registry, and the first time an
+		// ID appears it must be the next one in the registry.
+		int next = 0;
+		for (int i = 0; i < theCount; i++) {
+			int position = find(theIDs[i]);
+			if (position == EMPTY || position > next) {
+				return false;
+			}
+			if (position == next) {
+				next++;
+			}
+		}
+		if (next != mySize) {
+			return false;
+		}
+
+		if (theCount == mySize) {
+			for (int i = 0; i < theCount; i++) {
+				if (!myNames[i].equals(theNames[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// There are duplicates; only the last name of each counts.
+		boolean[] checked = new boolean[mySize];
+		for (int i = theCount - 1; i >= 0; i--) {
+			int position = find(theIDs[i]);
+			if (!checked[position]) {
+				checked[position] = true;
+				if (!myNames[position].equals(theNames[i])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a friend or replace its name, growing the storage as
+	 * needed.
+	 * @param thePlayerID the friend's ID.
+	 * @param theUserName the friend's name.
+	 */
+	private void put(String thePlayerID, String theUserName) {
+		int slot = findSlot(thePlayerID);
+		if (myIndex[slot] != EMPTY) {
+			myNames[myIndex[slot]] = theUserName;
+			return;
+		}
+
+		if (mySize == myIDs.length) {
+			int capacity = Math.max(8, mySize + (mySize >> 1));
+			myIDs = Arrays.copyOf(myIDs, capacity);
+			myNames = Arrays.copyOf(myNames, capacity);
+		}
+
+		myIDs[mySize] = thePlayerID;
+		myNames[mySize] = theUserName;
+		myIndex[slot] = mySize;
+		mySize++;
+
+		if (mySize * 2 > myIndex.length) {
+			rebuildIndex(myIndex.length * 2);
+		}
+	}
+
+	/**
+	 * Return a friend's position.
+	 * @param thePlayerID the friend's ID.
+	 * @return the position, or EMPTY.
+	 */
+	private int find(String thePlayerID) {
+		return myIndex[findSlot(thePlayerID)];
+	}
+
+	/**
+	 * Return the index slot holding an ID, or the empty slot
+	 * where it would go.
+	 * @param thePlayerID the ID.
+	 * @return the slot.
+	 */
+	private int findSlot(String thePlayerID) {
+		int mask = myIndex.length - 1;
+		int slot = hash(thePlayerID) & mask;
+
+		while (myIndex[slot] != EMPTY && !myIDs[myIndex[slot]].equals(thePlayerID)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Empty an index slot, shifting back any entries that were
+	 * placed after it so that every entry stays reachable.
+	 * @param theSlot the slot.
+	 */
+	private void deleteSlot(int theSlot) {
+		int mask = myIndex.length - 1;
+		int hole = theSlot;
+		int slot = theSlot;
+
+		while (true) {
+			slot = (slot + 1) & mask;
+			if (myIndex[slot] == EMPTY) {
+				break;
+			}
+
+			// An entry may fill the hole only if the hole lies
+			// between the slot it hashes to and where it is.
+			int home = hash(myIDs[myIndex[slot]]) & mask;
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				myIndex[hole] = myIndex[slot];
+				hole = slot;
+			}
+		}
+		myIndex[hole] = EMPTY;
+	}
+
+	/**
+	 * Rebuild the index with a new number of slots.
+	 * @param theSize the number of slots, a power of two.
+	 */
+	private void rebuildIndex(int theSize) {
+		myIndex = newIndex(theSize);
+		int mask = theSize - 1;
+		for (int i = 0; i < mySize; i++) {
+			int slot = hash(myIDs[i]) & mask;
+			while (myIndex[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			myIndex[slot] = i;
+		}
+	}
+
+	/**
+	 * Return the number of index slots for a number of friends.
+	 * @param theCount the number of friends.
+	 * @return a power of two at least twice the count.
+	 */
+	private static int indexSizeFor(int theCount) {
+		int size = MIN_INDEX_SIZE;
+		while (size < theCount * 2) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Create an index with every slot empty.
+	 * @param theSize the number of slots.
+	 * @return the index.
+	 */
+	private static int[] newIndex(int theSize) {
+		int[] index = new int[theSize];
+		Arrays.fill(index, EMPTY);
+		return index;
+	}
+
+	/**
+	 * Spread an ID's hash code over the index.
+	 * @param thePlayerID the ID.
+	 * @return the hash.
+	 */
+	private static int hash(String thePlayerID) {
+		int hash = thePlayerID.hashCode() * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -1,6 +1,10 @@
 package model;
 
 import java.io.PrintWriter;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -14,24 +18,157 @@ import org.json.JSONObject;
  */
 public class GameLobbyMonitor extends Monitor {
 	
+	/**
+	 * Count down reply, encoded once.
+	 */
+	private static final byte[] COUNTDOWN_MESSAGE = ChannelWriter.encode("[19]");
+	
+	/**
+	 * Rejoin request, encoded once.
+	 */
+	private static final byte[] REJOIN_MESSAGE = ChannelWriter.encode("[16]");
+	
+	/**
+	 * Number of count down replies sent when a race starts.
+	 */
+	private static final int COUNTDOWN_REPLIES = 4;
+	
+	/**
+	 * Time, in milliseconds, between count down replies and
+	 * before a rejoin.
+	 */
+	private static final long REPLY_DELAY = 1000;
+	
+	/**
+	 * Opcode of the server's request to join the game, the one
+	 * lobby message that isn't all numbers.
+	 */
+	private static final int JOIN_OPCODE = 39;
+	
+	/**
+	 * Time, in milliseconds, that a friend's velocity is given
+	 * per: a velocity of v moves the friend v units a second.
+	 */
+	private static final long VELOCITY_TIME_UNIT = 1000;
+	
+	/**
+	 * Conflation key of echoes: only the latest unsent echo is sent.
+	 */
+	private static final int ECHO_KEY = 0;
+	
+	/**
+	 * Handlers for messages made up only of numbers, shared by
+	 * every game lobby monitor. Register a handler here to act
+	 * on a new opcode or to replace how one is handled.
+	 */
+	public static final OpcodeRegistry<GameLobbyMonitor, LobbyFrame> HANDLERS = createHandlers();
+	
 	/**
 	 * The custom game's token.
 	 */
 	private int myToken;
 	
 	/**
-	 * The time that this object was instantiated.
+	 * The server's clock, synchronized from the incoming time
+	 * frames. Keeps the time between the client and server in
+	 * step to make movement smooth.
 	 */
-	private long myBaseTime;
+	private ClockSync myClock;
+	
+	private boolean myQuickRaceFlag;
 	
 	/**
-	 * The incoming time from the server. Used to synchronize
-	 * the time between the client and server to make movement
-	 * smooth.
+	 * Reused for every message the tokenizer can read.
 	 */
-	private long myServerTime;
+	private LobbyFrame myFrame;
 	
-	private boolean myQuickRaceFlag;
+	/**
+	 * Writer for the encoded replies.
+	 */
+	private ChannelWriter myOutput;
+	
+	/**
+	 * Time from a position frame arriving to its echo joining
+	 * the outbound buffer.
+	 */
+	private LatencyHistogram myEchoLatency;
+	
+	/**
+	 * Time from a ping arriving to its pong.
+	 */
+	private LatencyHistogram myPongLatency;
+	
+	/**
+	 * Sends the predicted position in fixed tick mode, or null
+	 * until the first position arrives.
+	 */
+	private ScheduledFuture<?> myEchoTicker;
+	
+	/**
+	 * The friend's last reported x position.
+	 */
+	private int myFriendX;
+	
+	/**
+	 * The friend's last reported y position.
+	 */
+	private int myFriendY;
+	
+	/**
+	 * The friend's last reported x velocity.
+	 */
+	private int myFriendXV;
+	
+	/**
+	 * The friend's last reported y velocity.
+	 */
+	private int myFriendYV;
+	
+	/**
+	 * Server time the friend's position was reported at.
+	 */
+	private long myFriendTime;
+	
+	/**
+	 * When the friend's position was read, from System.nanoTime(),
+	 * or 0 once it has been echoed.
+	 */
+	private long myFriendReadTime;
+	
+	/**
+	 * True once an echo has been sent in fixed tick mode.
+	 */
+	private boolean myEchoed;
+	
+	/**
+	 * The last x position echoed in fixed tick mode.
+	 */
+	private long myEchoedX;
+	
+	/**
+	 * The last y position echoed in fixed tick mode.
+	 */
+	private long myEchoedY;
+	
+	/**
+	 * The last x velocity echoed in fixed tick mode.
+	 */
+	private int myEchoedXV;
+	
+	/**
+	 * The last y velocity echoed in fixed tick mode.
+	 */
+	private int myEchoedYV;
+	
+	/**
+	 * Where the bot is in the life of this lobby.
+	 */
+	private AtomicReference<LobbyState> myState;
+	
+	/**
+	 * Priority of the friend whose invite this lobby was joined on.
+	 */
+	private int myPriority;
 	
 	/**
 	 * Construct a new Game Lobby Monitor.
@@ -40,66 +177,185 @@ public class GameLobbyMonitor extends Monitor {
 	 * @param theToken the game's token.
 	 */
 	public GameLobbyMonitor(Client theClient, String theIP, int theToken) {
+		this(theClient, theIP, theToken, 0);
+	}
+	
+	/**
+	 * Construct a new Game Lobby Monitor for an invite from a
+	 * friend with a given priority.
+	 * @param theClient the client object.
+	 * @param theIP the IP address of the game server program.
+	 * @param theToken the game's token.
+	 * @param thePriority the priority of the friend who sent the invite.
+	 */
+	public GameLobbyMonitor(Client theClient, String theIP, int theToken, int thePriority) {
 		super(theClient, theIP, Config.GAME_SERVER_PORT);
+		initialize(theToken, LobbyState.CONNECTING);
+		myPriority = thePriority;
+	}
+	
+	/**
+	 * Construct a Game Lobby Monitor for a connected or connecting channel.
+	 * @param theClient the client object.
+	 * @param theChannel the connected or connecting channel, or null
+	 * for a monitor that is handed messages with feed().
+	 * @param theToken the game's token.
+	 */
+	public GameLobbyMonitor(Client theClient, SocketChannel theChannel, int theToken) {
+		this(theClient, theChannel, theToken, 0);
+	}
+	
+	/**
+	 * Construct a Game Lobby Monitor for a connected or connecting
+	 * channel, for an invite from a friend with a given priority.
+	 * @param theClient the client object.
+	 * @param theChannel the connected or connecting channel, or null
+	 * for a monitor that is handed messages with feed().
+	 * @param theToken the game's token.
+	 * @param thePriority the priority of the friend who sent the invite.
+	 */
+	public GameLobbyMonitor(Client theClient, SocketChannel theChannel, int theToken, int thePriority) {
+		super(theClient, theChannel);
+		initialize(theToken, theChannel == null ? LobbyState.IN_LOBBY : LobbyState.CONNECTING);
+		myPriority = thePriority;
+	}
+	
+	/**
+	 * Set up the monitor's state.
+	 * @param theToken the game's token.
+	 * @param theState the lobby's first state.
+	 */
+	private void initialize(int theToken, LobbyState theState) {
+		myState = new AtomicReference<LobbyState>(theState);
 		myToken = theToken;
-		myServerTime = 0;
-		myBaseTime = System.currentTimeMillis();
+		myClock = new ClockSync();
 		myQuickRaceFlag = true;
+		myFrame = new LobbyFrame();
+		myOutput = getChannelWriter();
+		myEchoLatency = LatencyStats.ECHO.register();
+		myPongLatency = LatencyStats.PONG.register();
+		myOutput.measureConflated(ECHO_KEY, myEchoLatency);
+		myEchoTicker = null;
+		myEchoed = false;
+	}
+	
+	/**
+	 * Stop the monitor and leave the lobby. Safe to call from
+	 * any thread, any number of times; only the first call
+	 * tears the lobby down.
+	 */
+	@Override
+	public void stopMonitor() {
+		end();
+	}
+	
+	/**
+	 * Return where the bot is in the life of this lobby.
+	 * @return the lobby's state; IDLE once it has ended.
+	 */
+	public LobbyState getState() {
+		return myState.get();
+	}
+	
+	/**
+	 * Return the priority of the friend whose invite this lobby
+	 * was joined on.
+	 * @return the priority.
+	 */
+	public int getPriority() {
+		return myPriority;
+	}
+	
+	/**
+	 * Returns true until the lobby starts ending.
+	 * @return true while connecting, in the lobby or racing.
+	 */
+	public boolean isActive() {
+		LobbyState state = myState.get();
+		return state != LobbyState.ENDING && state != LobbyState.IDLE;
+	}
+	
+	@Override
+	protected void connected() {
+		moveTo(LobbyState.IN_LOBBY);
+	}
+	
+	/**
+	 * Return this lobby's echo latencies.
+	 * @return time from position frame to echo.
+	 */
+	public LatencyHistogram getEchoLatency() {
+		return myEchoLatency;
+	}
+	
+	/**
+	 * Return this lobby's ping latencies.
+	 * @return time from ping to pong.
+	 */
+	public LatencyHistogram getPongLatency() {
+		return myPongLatency;
+	}
+
+	/**
+	 * Return this lobby's estimate of the server's clock.
+	 * @return the clock.
+	 */
+	public ClockSync getClock() {
+		return myClock;
+	}
+
+	@Override
+	protected Object readSocketData(byte[] theBytes, int theStart, int theEnd) {
+		if (FrameTokenizer.tokenize(theBytes, theStart, theEnd, myFrame)) {
+			return myFrame;
+		}
+		return super.readSocketData(theBytes, theStart, theEnd);
 	}
 
 	@Override
 	protected void processSocketData(Object theData, PrintWriter theWriter) {
-		JSONArray data = (JSONArray) theData;
-		String messageType = data.getString(0);
-		
-		switch (messageType) {
+		if (theData instanceof LobbyFrame) {
+			LobbyFrame frame = (LobbyFrame) theData;
+			HANDLERS.dispatch(frame.getOpcode(), this, frame);
+			return;
+		}
 		
-		case "5":
-			setSpeed(theWriter);
-			break;
-			
-		case "7":
-			endRace();
-			rejoin(theWriter);
-			break;
+		// Only messages the tokenizer could not read get here.
+		JSONArray data = (JSONArray) theData;
 		
-		case "13":
-			die(data, theWriter);
-			break;
-				
-		case "16":
-			sendPong(data.getInt(1), theWriter);
-			break;
+		if (data.optInt(0, -1) == JOIN_OPCODE) {
+			joinCustomGame(data.getString(1), theWriter);
+		} else if (myFrame.load(data)) {
+			HANDLERS.dispatch(myFrame.getOpcode(), this, myFrame);
+		}
+	}
+	
+	/**
+	 * Create the registry with the handlers for every opcode
+	 * the bot acts on.
+	 * @return the registry.
+	 */
+	private static OpcodeRegistry<GameLobbyMonitor, LobbyFrame> createHandlers() {
+		OpcodeRegistry<GameLobbyMonitor, LobbyFrame> handlers = new OpcodeRegistry<GameLobbyMonitor, LobbyFrame>();
 		
-		case "17":
-			setServerTime(data.getLong(1));
-			break;
-			
-		case "18":
-			corrigatePosition(data, theWriter);
-			break;
-			
-		case "28":
-			endRace();
-			break;
-			
-		case "30":
-			setQuickRaceFlag(data.getInt(1));
-			break;
-			
-		case "35":
-			if (myQuickRaceFlag) {
-				endRace();
+		handlers.register(5, (theMonitor, theFrame) -> theMonitor.setSpeed());
+		handlers.register(7, (theMonitor, theFrame) -> {
+			theMonitor.endRace();
+			theMonitor.rejoin();
+		});
+		handlers.register(13, GameLobbyMonitor::die);
+		handlers.register(16, (theMonitor, theFrame) -> theMonitor.sendPong(theFrame.getInt(1)));
+		handlers.register(17, (theMonitor, theFrame) -> theMonitor.setServerTime(theFrame.getLong(1)));
+		handlers.register(18, GameLobbyMonitor::corrigatePosition);
+		handlers.register(28, (theMonitor, theFrame) -> theMonitor.endRace());
+		handlers.register(30, (theMonitor, theFrame) -> theMonitor.setQuickRaceFlag(theFrame.getInt(1)));
+		handlers.register(35, (theMonitor, theFrame) -> {
+			if (theMonitor.myQuickRaceFlag) {
+				theMonitor.endRace();
 			}
-			break;
+		});
 		
-		case "39":
-			joinCustomGame(data.getString(1), theWriter);
-			break;
-		
-		default:
-			break;
-		}
+		return handlers;
 	}
 	
 	private void setQuickRaceFlag(int theBool) {
@@ -117,24 +373,15 @@ public class GameLobbyMonitor extends Monitor {
 	 * This happens when the player dies from certain things,
 	 * like rockets, saws, etc... because the bot is too close.
 	 * @param theData the data having the death related information.
-	 * @param theWriter the socket writer to send the response with.
 	 */
-	private void die(JSONArray theData, PrintWriter theWriter) {
+	private void die(LobbyFrame theData) {
 		if (theData.getInt(1) == 1) {
 			int powerUp = theData.getInt(4);
 			int hitType = theData.getInt(6);
 			int killer = theData.getInt(3);
 			long respawnTime = (theData.getInt(2) + getServerTime());
 			
-			JSONArray arr = new JSONArray()
-							.put(9)
-							.put(respawnTime)
-							.put(killer)
-							.put(powerUp)
-							.put(0)
-							.put(hitType);
-			
-			theWriter.println(arr.toString());		
+			myOutput.writeArray(9, respawnTime, killer, powerUp, 0, hitType);
 		}
 	}
 	
@@ -143,17 +390,82 @@ public class GameLobbyMonitor extends Monitor {
 	 * This is done based on information received from the server
 	 * about the player's location.
 	 * @param data the incoming data to assess.
-	 * @param theWriter the writer for the socket.
 	 */
-	private void corrigatePosition(JSONArray data, PrintWriter theWriter) {
-		if (data.getInt(1) == 1) {
-			echoMovement(data.getInt(2), data.getInt(3), data.getInt(4),
-				data.getInt(5), theWriter);
+	private void corrigatePosition(LobbyFrame data) {
+		if (data.getInt(1) != 1) {
+			return;
+		}
+		
+		if (Config.ECHO_TICK > 0) {
+			updateFriend(data.getInt(2), data.getInt(3), data.getInt(4), data.getInt(5));
+		} else {
+			echoMovement(data.getInt(2), data.getInt(3), data.getInt(4), data.getInt(5), getReadTime());
 		}
 	}
 	
+	/**
+	 * Remember where the friend is for the next fixed tick echo,
+	 * and start the ticks with the first position.
+	 * @param xPos friend's x-axis position.
+	 * @param yPos friend's y-axis position.
+	 * @param xV friend's x-axis speed.
+	 * @param yV friend's y-axis speed.
+	 */
+	private void updateFriend(int xPos, int yPos, int xV, int yV) {
+		myFriendX = xPos;
+		myFriendY = yPos;
+		myFriendXV = xV;
+		myFriendYV = yV;
+		myFriendTime = getServerTime();
+		myFriendReadTime = getReadTime();
+		
+		if (myEchoTicker == null) {
+			myEchoTicker = scheduleAtFixedRate(this::echoPredictedMovement, Config.ECHO_TICK);
+		}
+	}
+	
+	/**
+	 * Echo where the friend should be by now, going by its last
+	 * reported position and velocity. Past Config.ECHO_HORIZON
+	 * without an update the prediction stops, and the bot holds
+	 * still where it ended. Nothing is sent if neither the velocity
+	 * nor, beyond the deadband, the position has changed since the
+	 * last echo.
+	 */
+	private void echoPredictedMovement() {
+		long now = getServerTime();
+		long elapsed = now - myFriendTime;
+		boolean stale = elapsed > Config.ECHO_HORIZON;
+		if (stale) {
+			elapsed = Config.ECHO_HORIZON;
+		}
+		long xPos = myFriendX + myFriendXV * elapsed / VELOCITY_TIME_UNIT;
+		long yPos = myFriendY + myFriendYV * elapsed / VELOCITY_TIME_UNIT;
+		int xV = stale ? 0 : myFriendXV;
+		int yV = stale ? 0 : myFriendYV;
+		
+		if (myEchoed && xV == myEchoedXV && yV == myEchoedYV
+				&& Math.abs(xPos - myEchoedX) <= Config.ECHO_DEADBAND
+				&& Math.abs(yPos - myEchoedY) <= Config.ECHO_DEADBAND) {
+			return;
+		}
+		
+		// Latency is measured to the first echo of each update.
+		echoMovement(xPos, yPos, xV, yV, myFriendReadTime);
+		myFriendReadTime = 0;
+		myEchoed = true;
+		myEchoedX = xPos;
+		myEchoedY = yPos;
+		myEchoedXV = xV;
+		myEchoedYV = yV;
+	}
+	
+	/**
+	 * Return the server's time now.
+	 * @return the server's time in milliseconds.
+	 */
 	private long getServerTime() {
-		return myServerTime + (System.currentTimeMillis() - myBaseTime);
+		return myClock.getServerMillis();
 	}
 	
 	/**
@@ -162,70 +474,91 @@ public class GameLobbyMonitor extends Monitor {
 	 * @param yPos bot's y-axis position.
 	 * @param xV bot's x-axis speed.
 	 * @param yV bot's y-axis speed.
-	 * @param theWriter the writer for the socket.
-	 */
-	private void echoMovement(int xPos, int yPos, int xV, int yV, PrintWriter theWriter) {
-		JSONArray ar = new JSONArray()
-						.put(3)
-						.put(getServerTime())
-						.put(xPos)
-						.put(yPos)
-						.put(xV)
-						.put(yV);
-
-		theWriter.println(ar.toString());
+	 * @param theReadTime when the position being echoed was read,
+	 * or 0 if its echo has already been measured.
+	 */
+	private void echoMovement(long xPos, long yPos, int xV, int yV, long theReadTime) {
+		myOutput.writeConflatedArray(ECHO_KEY, theReadTime, 3, getServerTime(), xPos, yPos, xV, yV);
 	}
 
 	/**
 	 * Rejoin the custom game.
-	 * @param theWriter the socket's writer.
 	 */
-	private void rejoin(PrintWriter theWriter) {
+	private void rejoin() {
 		// TODO this doesn't work.
-		JSONArray ar = new JSONArray()
-						.put(16);
-		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		
-		theWriter.println(ar.toString());
+		schedule(() -> myOutput.writeBytes(REJOIN_MESSAGE), REPLY_DELAY);
 	}
 
 	/**
-	 * End the race by stopping the monitor.
+	 * End the race by stopping the monitor. The server may end a
+	 * race more than once; only the first ending counts.
 	 */
 	private void endRace() {
-		myClient.toggleLobbyStatus();
-		myClient.setStatus(1);
-		stopMonitor();
+		if (end()) {
+			myClient.setStatus(1);
+		}
 	}
-
+	
 	/**
-	 * Reply to count down messages from the server.
-	 * @param theWriter the socket's writer.
+	 * Tear the lobby down and tell the client it has ended.
+	 * @return true if this call ended the lobby, false if it was
+	 * already ending or ended.
 	 */
-	private void setSpeed(PrintWriter theWriter) {
-		JSONArray ar = new JSONArray()
-						.put(19);
+	private boolean end() {
+		if (!moveTo(LobbyState.ENDING)) {
+			return false;
+		}
+		
+		super.stopMonitor();
+		if (myEchoTicker != null) {
+			myEchoTicker.cancel(false);
+		}
+		LatencyStats.ECHO.retire(myEchoLatency);
+		LatencyStats.PONG.retire(myPongLatency);
 		
-		for (int i = 0; i < 4; i++) {
-			try {
-				Thread.sleep(1000);
-				theWriter.println(ar.toString());
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		myState.set(LobbyState.IDLE);
+		if (myClient != null) {
+			myClient.lobbyEnded(this);
+		}
+		return true;
+	}
+	
+	/**
+	 * Move the lobby to a new state if it may go there from the
+	 * state it is in.
+	 * @param theState the new state.
+	 * @return true if the lobby moved.
+	 */
+	private boolean moveTo(LobbyState theState) {
+		while (true) {
+			LobbyState current = myState.get();
+			if (!current.canMoveTo(theState)) {
+				return false;
 			}
+			if (myState.compareAndSet(current, theState)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reply to count down messages from the server. The replies
+	 * are scheduled so that pings and positions keep being
+	 * answered during the count down.
+	 */
+	private void setSpeed() {
+		moveTo(LobbyState.RACING);
+		for (int i = 1; i <= COUNTDOWN_REPLIES; i++) {
+			schedule(() -> myOutput.writeBytes(COUNTDOWN_MESSAGE), i * REPLY_DELAY);
 		}
 	}
 	
 	/**
-	 * Set the server time.
-	 * @param theServerTime incoming server time.
+	 * Set the server time, as of when the frame was read.
+	 * @param theServerTime incoming server time in nanoseconds.
 	 */
 	private void setServerTime(long theServerTime) {
-		myServerTime = theServerTime / 1000000;
+		myClock.addSample(theServerTime, getReadTime());
 	}
 	
 	/**
@@ -247,12 +580,10 @@ public class GameLobbyMonitor extends Monitor {
 	/**
 	 * Reply to ping from the server.
 	 * @param data the ping data.
-	 * @param theWriter the socket's writer.
 	 */
-	private void sendPong(int data, PrintWriter theWriter) {
-		JSONArray ar = new JSONArray()
-						.put(4)
-						.put(data);
-		theWriter.println(ar.toString());
+	private void sendPong(int data) {
+		myClock.ping(getReadTime());
+		myOutput.writeArray(4, data);
+		myPongLatency.record(System.nanoTime() - getReadTime());
 	}
 }
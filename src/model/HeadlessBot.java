@@ -0,0 +1,132 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one bot without a user interface. Needs nothing but the
+ * model package and the JSON library, so it starts without
+ * loading the JavaFX toolkit.
+ *
+ * The bot's email address, password and the IDs of the friends
+ * it follows come from a properties file, from the command line
+ * or both; the command line wins. Keeping the password in the
+ * file keeps it out of the process list.
+ * @author Damiene Stewart
+ */
+public class HeadlessBot {
+
+	/**
+	 * How to run the launcher.
+	 */
+	private static final String USAGE = "Usage: HeadlessBot [--config file] [--email address] "
+			+ "[--password password] [--friends id,id,...] [--report seconds]";
+
+	/**
+	 * Start a bot from the command line and keep it running
+	 * until the process is killed.
+	 * @param theArgs the options.
+	 * @throws IOException if the config file can't be read.
+	 * @throws InterruptedException if interrupted while running.
+	 */
+	public static void main(String... theArgs) throws IOException, InterruptedException {
+		Properties settings = new Properties();
+		for (int i = 0; i < theArgs.length; i += 2) {
+			if (i + 1 >= theArgs.length || !theArgs[i].startsWith("--")) {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+
+			String name = theArgs[i].substring(2);
+			if (name.equals("config")) {
+				// Settings given on the command line win over the file's.
+				Properties file = load(theArgs[i + 1]);
+				for (String key : file.stringPropertyNames()) {
+					if (!settings.containsKey(key)) {
+						settings.setProperty(key, file.getProperty(key));
+					}
+				}
+			} else {
+				settings.setProperty(name, theArgs[i + 1]);
+			}
+		}
+
+		String email = settings.getProperty("email");
+		String password = settings.getProperty("password");
+		String friends = settings.getProperty("friends");
+		long report = Long.parseLong(settings.getProperty("report", "0"));
+		if (email == null || password == null) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		BotSession session = new BotSession(email, password, friends);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			session.shutdown();
+			Connector.getInstance().shutdown();
+		}));
+
+		boolean loggedIn;
+		try {
+			loggedIn = session.start().get();
+		} catch (ExecutionException e) {
+			EventLog.getInstance().log(LogLevel.ERROR, "Could not log in", e.getCause());
+			loggedIn = false;
+		}
+
+		if (!loggedIn) {
+			System.err.println("Could not log in: " + session.getClient().getLoginErrorMessage());
+			System.exit(1);
+		}
+
+		System.out.println(String.format(Locale.ROOT, "Logged in as %s after %d ms, following %d friends.",
+				email, ManagementFactory.getRuntimeMXBean().getUptime(),
+				session.getClient().getInvitePolicy().getFollowed().size()));
+
+		if (report > 0) {
+			startReporting(session.getClient(), report);
+		}
+
+		// The network threads are daemons; keep running until killed.
+		Thread.currentThread().join();
+	}
+
+	/**
+	 * Print a line about the bot's performance periodically.
+	 * @param theClient the bot's client.
+	 * @param thePeriod seconds between lines.
+	 */
+	private static void startReporting(Client theClient, long thePeriod) {
+		PerformanceSnapshot[] previous = {PerformanceSnapshot.take(theClient, null)};
+		Scheduler.getInstance().scheduleAtFixedRate(() -> {
+			PerformanceSnapshot snapshot = PerformanceSnapshot.take(theClient, previous[0]);
+			previous[0] = snapshot;
+			System.out.println(String.format(Locale.ROOT,
+					"data %s, lobby %s (%s), echo p50 %.1f ms p99 %.1f ms, heap %d MB, gc %d ms",
+					snapshot.getDataState(), snapshot.getLobbyState(), theClient.getLobbyState(),
+					snapshot.getEchoMedian() / 1e6, snapshot.getEchoP99() / 1e6,
+					snapshot.getHeapUsed() >> 20, snapshot.getGcTime()));
+		}, thePeriod, thePeriod, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Read a properties file.
+	 * @param theFile the file's path.
+	 * @return the properties.
+	 * @throws IOException if the file can't be read.
+	 */
+	private static Properties load(String theFile) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(Paths.get(theFile))) {
+			properties.load(in);
+		}
+		return properties;
+	}
+}
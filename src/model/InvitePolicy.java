@@ -0,0 +1,254 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which game invites a bot accepts. The bot follows a
+ * set of friends, each with a priority and a cooldown: an invite
+ * is accepted from a followed friend whose cooldown has passed,
+ * if the bot is idle or the friend outranks the lobby it is in,
+ * and if fewer than the allowed number of invites were accepted
+ * recently.
+ *
+ * Every invite is decided on the data connection's event loop
+ * in constant time without taking a lock. The followed friends
+ * are kept in a map that is replaced rather than changed, so
+ * they can be changed from any thread while invites keep being
+ * decided.
+ * @author Damiene Stewart
+ */
+public class InvitePolicy {
+
+	/**
+	 * Priority returned for a rejected invite, and passed to
+	 * accept() when the bot isn't in a lobby.
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * The followed friends by player ID. Never changed once
+	 * published; writers replace it while holding this policy.
+	 */
+	private volatile Map<String, Follow> myFollows;
+
+	/**
+	 * Time, in nanoseconds, between accepted invites once the
+	 * burst is used up, or 0 for no limit.
+	 */
+	private volatile long myInterval;
+
+	/**
+	 * How far ahead of the current time, in nanoseconds, the
+	 * rate limit may run, which lets a burst through.
+	 */
+	private volatile long myTolerance;
+
+	/**
+	 * When the rate limit next allows an invite if none are
+	 * allowed early, from System.nanoTime().
+	 */
+	private final AtomicLong myNextInvite;
+
+	/**
+	 * Construct a new policy that follows nobody.
+	 * @param theRate most invites accepted per minute once the
+	 * burst is used up, or 0 for no limit.
+	 * @param theBurst most invites accepted back to back.
+	 */
+	public InvitePolicy(double theRate, int theBurst) {
+		myFollows = Collections.emptyMap();
+		myNextInvite = new AtomicLong(System.nanoTime());
+		setRate(theRate, theBurst);
+	}
+
+	/**
+	 * Change how many invites may be accepted.
+	 * @param theRate most invites accepted per minute once the
+	 * burst is used up, or 0 for no limit.
+	 * @param theBurst most invites accepted back to back.
+	 */
+	public synchronized void setRate(double theRate, int theBurst) {
+		if (theRate < 0 || Double.isNaN(theRate))
+			throw new IllegalArgumentException("The rate: " + theRate + " is invalid.");
+		if (theBurst < 1)
+			throw new IllegalArgumentException("The burst: " + theBurst + " is invalid.");
+
+		long interval = theRate == 0 ? 0 : (long) (TimeUnit.MINUTES.toNanos(1) / theRate);
+		myInterval = interval;
+		myTolerance = interval * (theBurst - 1);
+	}
+
+	/**
+	 * Follow a friend, or change the priority and cooldown of one
+	 * already followed. A friend already followed keeps the time
+	 * its cooldown ends.
+	 * @param theFriend the friend.
+	 * @param thePriority the friend's priority; invites from a
+	 * friend interrupt a lobby joined from a lower priority one.
+	 * @param theCooldown time, in milliseconds, after an accepted
+	 * invite before the friend's next invite is accepted.
+	 */
+	public synchronized void follow(Friend theFriend, int thePriority, long theCooldown) {
+		if (thePriority < 0)
+			throw new IllegalArgumentException("The priority: " + thePriority + " is invalid.");
+		if (theCooldown < 0)
+			throw new IllegalArgumentException("The cooldown: " + theCooldown + " is invalid.");
+
+		Map<String, Follow> follows = new HashMap<String, Follow>(myFollows);
+		follows.put(theFriend.getPlayerID(), new Follow(theFriend, thePriority,
+				TimeUnit.MILLISECONDS.toNanos(theCooldown), myFollows.get(theFriend.getPlayerID())));
+		myFollows = follows;
+	}
+
+	/**
+	 * Follow only the given friends, at the lowest priority and
+	 * with the configured cooldown. Friends already followed keep
+	 * the time their cooldown ends.
+	 * @param theFriends the friends.
+	 */
+	public synchronized void followOnly(List<Friend> theFriends) {
+		long cooldown = TimeUnit.MILLISECONDS.toNanos(Config.INVITE_COOLDOWN);
+		Map<String, Follow> follows = new HashMap<String, Follow>();
+		for (Friend friend : theFriends) {
+			follows.put(friend.getPlayerID(), new Follow(friend, 0, cooldown, myFollows.get(friend.getPlayerID())));
+		}
+		myFollows = follows;
+	}
+
+	/**
+	 * Stop following a friend.
+	 * @param thePlayerID the friend's ID.
+	 * @return true if the friend was followed.
+	 */
+	public synchronized boolean unfollow(String thePlayerID) {
+		if (!myFollows.containsKey(thePlayerID)) {
+			return false;
+		}
+
+		Map<String, Follow> follows = new HashMap<String, Follow>(myFollows);
+		follows.remove(thePlayerID);
+		myFollows = follows;
+		return true;
+	}
+
+	/**
+	 * Returns true if a player's invites may be accepted.
+	 * @param thePlayerID the player's ID.
+	 * @return true if the player is followed.
+	 */
+	public boolean isFollowed(String thePlayerID) {
+		return myFollows.containsKey(thePlayerID);
+	}
+
+	/**
+	 * Return the friends being followed.
+	 * @return a copy of the followed friends, in no order.
+	 */
+	public List<Friend> getFollowed() {
+		List<Friend> friends = new ArrayList<Friend>();
+		for (Follow follow : myFollows.values()) {
+			friends.add(follow.myFriend);
+		}
+		return friends;
+	}
+
+	/**
+	 * Decide whether to accept an invite. Accepting it starts the
+	 * friend's cooldown and counts against the rate limit.
+	 * @param thePlayerID ID of the player who sent the invite.
+	 * @param theBusyPriority priority of the lobby the bot is in,
+	 * or NONE if it isn't in one.
+	 * @param theNow the time, from System.nanoTime().
+	 * @return the friend's priority if the invite is accepted, or
+	 * NONE if it isn't.
+	 */
+	public int accept(String thePlayerID, int theBusyPriority, long theNow) {
+		Follow follow = thePlayerID == null ? null : myFollows.get(thePlayerID);
+		if (follow == null || follow.myPriority <= theBusyPriority) {
+			return NONE;
+		}
+
+		long readyAt = follow.myReadyAt.get();
+		if (theNow - readyAt < 0 || !follow.myReadyAt.compareAndSet(readyAt, theNow + follow.myCooldown)) {
+			return NONE;
+		}
+
+		if (!takeInvite(theNow)) {
+			// Give the cooldown back; the invite wasn't accepted.
+			follow.myReadyAt.compareAndSet(theNow + follow.myCooldown, readyAt);
+			return NONE;
+		}
+		return follow.myPriority;
+	}
+
+	/**
+	 * Count an invite against the rate limit, if it allows one.
+	 * @param theNow the time, from System.nanoTime().
+	 * @return true if the invite is allowed.
+	 */
+	private boolean takeInvite(long theNow) {
+		long interval = myInterval;
+		if (interval == 0) {
+			return true;
+		}
+
+		while (true) {
+			long next = myNextInvite.get();
+			if (next - theNow > myTolerance) {
+				return false;
+			}
+
+			long after = (next - theNow < 0 ? theNow : next) + interval;
+			if (myNextInvite.compareAndSet(next, after)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * A followed friend and when its cooldown ends.
+	 */
+	private static final class Follow {
+
+		/**
+		 * The friend.
+		 */
+		private final Friend myFriend;
+
+		/**
+		 * The friend's priority.
+		 */
+		private final int myPriority;
+
+		/**
+		 * Cooldown in nanoseconds.
+		 */
+		private final long myCooldown;
+
+		/**
+		 * When the friend's next invite may be accepted, from
+		 * System.nanoTime(). Shared with the follow it replaced.
+		 */
+		private final AtomicLong myReadyAt;
+
+		/**
+		 * Construct a new follow.
+		 * @param theFriend the friend.
+		 * @param thePriority the friend's priority.
+		 * @param theCooldown the cooldown in nanoseconds.
+		 * @param thePrevious the follow being replaced, or null.
+		 */
+		private Follow(Friend theFriend, int thePriority, long theCooldown, Follow thePrevious) {
+			myFriend = theFriend;
+			myPriority = thePriority;
+			myCooldown = theCooldown;
+			myReadyAt = thePrevious != null ? thePrevious.myReadyAt : new AtomicLong(System.nanoTime());
+		}
+	}
+}
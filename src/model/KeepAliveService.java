@@ -0,0 +1,127 @@
+package model;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps data connections alive. In order to keep a connection
+ * alive the server must be pinged with {"m":37} and the server
+ * will reply with the same. One timer drives the pings for
+ * every registered connection, and a connection that has sent
+ * anything else within the interval is not pinged.
+ * @author Damiene Stewart
+ */
+public class KeepAliveService {
+
+	/**
+	 * The ping, encoded once.
+	 */
+	private static final byte[] PING_MESSAGE = ChannelWriter.encode("{\"m\":37}");
+
+	/**
+	 * The service shared by every client in this process.
+	 */
+	private static KeepAliveService ourInstance;
+
+	/**
+	 * The registered connections.
+	 */
+	private final Set<Monitor> myMonitors;
+
+	/**
+	 * Time, in nanoseconds, a connection may stay quiet before
+	 * it is pinged.
+	 */
+	private final long myInterval;
+
+	/**
+	 * The repeating check, or null while stopped.
+	 */
+	private ScheduledFuture<?> myTask;
+
+	/**
+	 * Construct a new keepalive service.
+	 * @param theInterval time, in milliseconds, a connection may
+	 * stay quiet before it is pinged.
+	 */
+	public KeepAliveService(long theInterval) {
+		myMonitors = ConcurrentHashMap.newKeySet();
+		myInterval = TimeUnit.MILLISECONDS.toNanos(theInterval);
+		myTask = null;
+	}
+
+	/**
+	 * Return the shared service, creating it on first use.
+	 * @return the shared keepalive service.
+	 */
+	public static synchronized KeepAliveService getInstance() {
+		if (ourInstance == null) {
+			ourInstance = new KeepAliveService(Config.KEEPALIVE_INTERVAL);
+		}
+
+		return ourInstance;
+	}
+
+	/**
+	 * Start pinging a connection. The timer is started with
+	 * the first registration.
+	 * @param theMonitor the connection's monitor.
+	 */
+	public void register(Monitor theMonitor) {
+		myMonitors.add(theMonitor);
+		start();
+	}
+
+	/**
+	 * Stop pinging a connection.
+	 * @param theMonitor the connection's monitor.
+	 */
+	public void unregister(Monitor theMonitor) {
+		myMonitors.remove(theMonitor);
+	}
+
+	/**
+	 * Stop the timer. Registered connections are kept and
+	 * pinged again if another connection registers. Safe to
+	 * call more than once.
+	 */
+	public synchronized void stop() {
+		if (myTask != null) {
+			myTask.cancel(false);
+			myTask = null;
+		}
+	}
+
+	/**
+	 * Start the timer unless it's already running.
+	 */
+	private synchronized void start() {
+		if (myTask == null) {
+			myTask = Scheduler.getInstance().scheduleAtFixedRate(this::pingIdleConnections,
+					Config.KEEPALIVE_CHECK_PERIOD, Config.KEEPALIVE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Ping every connection that has been quiet for the interval,
+	 * and forget connections that have closed.
+	 */
+	private void pingIdleConnections() {
+		long now = System.nanoTime();
+
+		for (Monitor monitor : myMonitors) {
+			if (!monitor.isRunning()) {
+				myMonitors.remove(monitor);
+				continue;
+			}
+
+			ChannelWriter output = monitor.getChannelWriter();
+			if (now - output.getLastWriteTime() >= myInterval) {
+				output.writeBytes(PING_MESSAGE);
+				output.flush();
+			}
+		}
+	}
+}
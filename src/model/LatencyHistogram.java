@@ -0,0 +1,193 @@
+package model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, in the style of an
+ * HDR histogram. Buckets grow exponentially and each one is
+ * split into linear sub-buckets, so every recorded value is
+ * kept to within about 1.6% using a fixed amount of memory,
+ * and recording never allocates.
+ *
+ * A histogram has a single writer: record() must only be
+ * called from one thread at a time. Any thread may read it.
+ * @author Damiene Stewart
+ */
+public class LatencyHistogram {
+	
+	/**
+	 * Bits of precision kept for each value.
+	 */
+	private static final int SUB_BUCKET_BITS = 7;
+	
+	/**
+	 * Number of linear sub-buckets in each exponential bucket.
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	
+	/**
+	 * Half the sub-buckets; only the upper half of each bucket
+	 * after the first is used.
+	 */
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+	
+	/**
+	 * Largest value tracked; larger values are clamped. About 68 seconds.
+	 */
+	private static final long MAX_VALUE = (1L << 36) - 1;
+	
+	/**
+	 * Count of values in each sub-bucket.
+	 */
+	private final AtomicLongArray myCounts;
+	
+	/**
+	 * Number of values recorded.
+	 */
+	private volatile long myTotalCount;
+	
+	/**
+	 * Sum of the values recorded.
+	 */
+	private volatile long mySum;
+	
+	/**
+	 * Largest value recorded.
+	 */
+	private volatile long myMax;
+	
+	/**
+	 * Construct a new, empty histogram.
+	 */
+	public LatencyHistogram() {
+		myCounts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+		myTotalCount = 0;
+		mySum = 0;
+		myMax = 0;
+	}
+	
+	/**
+	 * Record a latency.
+	 * @param theNanos the latency in nanoseconds.
+	 */
+	public void record(long theNanos) {
+		long value = Math.max(0, Math.min(theNanos, MAX_VALUE));
+		int index = indexOf(value);
+		
+		// Single writer, so ordered writes are enough.
+		myCounts.lazySet(index, myCounts.get(index) + 1);
+		mySum += value;
+		if (value > myMax) {
+			myMax = value;
+		}
+		myTotalCount++;
+	}
+	
+	/**
+	 * Add every value recorded in another histogram to this one.
+	 * Must be called by this histogram's writer.
+	 * @param theOther the histogram to add.
+	 */
+	public void add(LatencyHistogram theOther) {
+		for (int i = 0; i < myCounts.length(); i++) {
+			long count = theOther.myCounts.get(i);
+			if (count != 0) {
+				myCounts.lazySet(i, myCounts.get(i) + count);
+			}
+		}
+		
+		mySum += theOther.mySum;
+		myMax = Math.max(myMax, theOther.myMax);
+		myTotalCount += theOther.myTotalCount;
+	}
+	
+	/**
+	 * Return the number of values recorded.
+	 * @return the count.
+	 */
+	public long getCount() {
+		return myTotalCount;
+	}
+	
+	/**
+	 * Return the largest value recorded.
+	 * @return the maximum in nanoseconds.
+	 */
+	public long getMax() {
+		return myMax;
+	}
+	
+	/**
+	 * Return the mean of the values recorded.
+	 * @return the mean in nanoseconds, or 0 if empty.
+	 */
+	public double getMean() {
+		long count = myTotalCount;
+		return count == 0 ? 0 : (double) mySum / count;
+	}
+	
+	/**
+	 * Return the value below which the given percentage of
+	 * recorded values fall.
+	 * @param thePercentile the percentile, from 0 to 100.
+	 * @return the value in nanoseconds, or 0 if empty.
+	 */
+	public long getValueAtPercentile(double thePercentile) {
+		long total = 0;
+		for (int i = 0; i < myCounts.length(); i++) {
+			total += myCounts.get(i);
+		}
+		
+		if (total == 0) {
+			return 0;
+		}
+		
+		double percentile = Math.max(0, Math.min(thePercentile, 100));
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		
+		for (int i = 0; i < myCounts.length(); i++) {
+			seen += myCounts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValueAt(i), myMax);
+			}
+		}
+		
+		return myMax;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("n=").append(getCount());
+		sb.append(", p50=").append(getValueAtPercentile(50) / 1000).append("us");
+		sb.append(", p99=").append(getValueAtPercentile(99) / 1000).append("us");
+		sb.append(", p99.9=").append(getValueAtPercentile(99.9) / 1000).append("us");
+		sb.append(", max=").append(getMax() / 1000).append("us");
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Return the sub-bucket a value falls in.
+	 * @param theValue the value.
+	 * @return the sub-bucket's index.
+	 */
+	private static int indexOf(long theValue) {
+		int highestBit = 63 - Long.numberOfLeadingZeros(theValue | (SUB_BUCKET_COUNT - 1));
+		int shift = highestBit - (SUB_BUCKET_BITS - 1);
+		return shift * SUB_BUCKET_HALF + (int) (theValue >>> shift);
+	}
+	
+	/**
+	 * Return the largest value that falls in a sub-bucket.
+	 * @param theIndex the sub-bucket's index.
+	 * @return the value.
+	 */
+	private static long highestValueAt(int theIndex) {
+		int shift = Math.max(0, theIndex / SUB_BUCKET_HALF - 1);
+		long subBucket = theIndex - shift * SUB_BUCKET_HALF;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
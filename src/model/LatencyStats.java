@@ -0,0 +1,83 @@
+package model;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of one kind of latency across every lobby
+ * session. Each session records into its own histogram, so
+ * recording needs no coordination; the totals across all
+ * sessions are put together when asked for.
+ * @author Damiene Stewart
+ */
+public class LatencyStats {
+	
+	/**
+	 * Time from a friend's "18" position frame arriving to the
+	 * bot's [3,...] echo being written.
+	 */
+	public static final LatencyStats ECHO = new LatencyStats();
+	
+	/**
+	 * Time from a "16" ping arriving to the [4,...] pong being written.
+	 */
+	public static final LatencyStats PONG = new LatencyStats();
+	
+	/**
+	 * Histograms of sessions that are still running.
+	 */
+	private final Set<LatencyHistogram> myLive;
+	
+	/**
+	 * Everything recorded by sessions that have ended.
+	 */
+	private final LatencyHistogram myRetired;
+	
+	/**
+	 * Construct a new, empty set of statistics.
+	 */
+	public LatencyStats() {
+		myLive = ConcurrentHashMap.newKeySet();
+		myRetired = new LatencyHistogram();
+	}
+	
+	/**
+	 * Create a histogram for a new session.
+	 * @return the session's histogram.
+	 */
+	public LatencyHistogram register() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		myLive.add(histogram);
+		return histogram;
+	}
+	
+	/**
+	 * Fold an ended session's histogram into the totals.
+	 * Safe to call more than once.
+	 * @param theHistogram the session's histogram.
+	 */
+	public void retire(LatencyHistogram theHistogram) {
+		synchronized (myRetired) {
+			if (myLive.remove(theHistogram)) {
+				myRetired.add(theHistogram);
+			}
+		}
+	}
+	
+	/**
+	 * Return everything recorded by every session so far.
+	 * @return a new histogram holding the totals.
+	 */
+	public LatencyHistogram getTotal() {
+		LatencyHistogram total = new LatencyHistogram();
+		
+		synchronized (myRetired) {
+			total.add(myRetired);
+			for (LatencyHistogram histogram : myLive) {
+				total.add(histogram);
+			}
+		}
+		
+		return total;
+	}
+}
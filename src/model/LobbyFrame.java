@@ -0,0 +1,135 @@
+package model;
+
+import org.json.JSONArray;
+
+/**
+ * A game lobby message whose elements are all numbers,
+ * such as ["18",1,x,y,vx,vy]. Element 0 is the opcode.
+ * One frame is reused for every message a monitor reads,
+ * so reading a frame does not allocate.
+ * @author Damiene Stewart
+ */
+public class LobbyFrame {
+
+	/**
+	 * The frame's elements, opcode first.
+	 */
+	private final long[] myElements;
+
+	/**
+	 * The number of elements in the frame.
+	 */
+	private int myLength;
+
+	/**
+	 * Construct a new, empty frame.
+	 */
+	public LobbyFrame() {
+		myElements = new long[Config.MAX_FRAME_ELEMENTS];
+		myLength = 0;
+	}
+
+	/**
+	 * Return the frame's opcode.
+	 * @return the opcode.
+	 */
+	public int getOpcode() {
+		return (int) myElements[0];
+	}
+
+	/**
+	 * Return the number of elements, opcode included.
+	 * @return the frame's length.
+	 */
+	public int length() {
+		return myLength;
+	}
+
+	/**
+	 * Return an element as an int.
+	 * @param theIndex the element's index.
+	 * @return the element.
+	 */
+	public int getInt(int theIndex) {
+		return (int) getLong(theIndex);
+	}
+
+	/**
+	 * Return an element as a long.
+	 * @param theIndex the element's index.
+	 * @return the element.
+	 */
+	public long getLong(int theIndex) {
+		if (theIndex < 0 || theIndex >= myLength)
+			throw new IndexOutOfBoundsException("LobbyFrame[" + theIndex + "] not found.");
+		return myElements[theIndex];
+	}
+
+	/**
+	 * Empty the frame so it can be reused.
+	 */
+	void clear() {
+		myLength = 0;
+	}
+
+	/**
+	 * Append an element.
+	 * @param theValue the element.
+	 * @return false if the frame is full.
+	 */
+	boolean add(long theValue) {
+		if (myLength == myElements.length) {
+			return false;
+		}
+		myElements[myLength++] = theValue;
+		return true;
+	}
+
+	/**
+	 * Fill the frame from an already parsed message. Used for
+	 * the rare messages the tokenizer hands back to org.json.
+	 * @param theData the parsed message.
+	 * @return false if the message is not all numbers.
+	 */
+	boolean load(JSONArray theData) {
+		clear();
+		for (int i = 0; i < theData.length(); i++) {
+			Object element = theData.get(i);
+			long value;
+
+			if (element instanceof Number) {
+				value = ((Number) element).longValue();
+			} else if (element instanceof String) {
+				try {
+					value = Long.parseLong((String) element);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			} else {
+				return false;
+			}
+
+			if (!add(value)) {
+				return false;
+			}
+		}
+
+		return myLength > 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append('[');
+		for (int i = 0; i < myLength; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(myElements[i]);
+		}
+		sb.append(']');
+
+		return sb.toString();
+	}
+}
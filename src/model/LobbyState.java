@@ -0,0 +1,58 @@
+package model;
+
+/**
+ * Where a bot is in the life of a game lobby. A lobby moves
+ * forward through connecting, in the lobby and racing, and can
+ * start ending from any of them; once it has ended the bot is
+ * idle again and may join the next lobby.
+ * @author Damiene Stewart
+ */
+public enum LobbyState {
+
+	/**
+	 * Not in a lobby; an invite may be accepted.
+	 */
+	IDLE,
+
+	/**
+	 * An invite was accepted and the lobby's socket is connecting.
+	 */
+	CONNECTING,
+
+	/**
+	 * Connected to the lobby, waiting for the race to start.
+	 */
+	IN_LOBBY,
+
+	/**
+	 * The race has started.
+	 */
+	RACING,
+
+	/**
+	 * The lobby is being left. Only one thread gets to end a lobby.
+	 */
+	ENDING;
+
+	/**
+	 * Returns true if a lobby in this state may move to another.
+	 * @param theState the state to move to.
+	 * @return true if the move is allowed.
+	 */
+	public boolean canMoveTo(LobbyState theState) {
+		switch (theState) {
+			case CONNECTING:
+				return this == IDLE;
+			case IN_LOBBY:
+				return this == CONNECTING;
+			case RACING:
+				return this == IN_LOBBY;
+			case ENDING:
+				return this == CONNECTING || this == IN_LOBBY || this == RACING;
+			case IDLE:
+				return this == ENDING;
+			default:
+				return false;
+		}
+	}
+}
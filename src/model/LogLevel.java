@@ -0,0 +1,30 @@
+package model;
+
+/**
+ * How serious an event written to the EventLog is, least
+ * serious first.
+ * @author Damiene Stewart
+ */
+public enum LogLevel {
+
+	/**
+	 * Detail that is only wanted while looking into a problem.
+	 */
+	DEBUG,
+
+	/**
+	 * Something normal worth recording.
+	 */
+	INFO,
+
+	/**
+	 * Something went wrong that the bot recovers from, such as a
+	 * dropped connection.
+	 */
+	WARN,
+
+	/**
+	 * Something went wrong that should not have.
+	 */
+	ERROR
+}
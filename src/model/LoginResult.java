@@ -0,0 +1,67 @@
+package model;
+
+/**
+ * The outcome of a login request.
+ * @author Damiene Stewart
+ */
+public class LoginResult {
+	
+	/**
+	 * The bot's ID, or null if login failed.
+	 */
+	private String myID;
+	
+	/**
+	 * The bot's login token, or null if login failed.
+	 */
+	private String myToken;
+	
+	/**
+	 * A message describing why login failed.
+	 */
+	private String myErrorMessage;
+	
+	/**
+	 * Construct a new login result.
+	 * @param theID the bot's ID, or null if login failed.
+	 * @param theToken the bot's login token, or null if login failed.
+	 * @param theErrorMessage why login failed, or an empty string.
+	 */
+	public LoginResult(String theID, String theToken, String theErrorMessage) {
+		myID = theID;
+		myToken = theToken;
+		myErrorMessage = theErrorMessage;
+	}
+	
+	/**
+	 * Returns true if the login was successful.
+	 * @return true if an ID and token were received.
+	 */
+	public boolean isSuccessful() {
+		return myID != null && myToken != null;
+	}
+	
+	/**
+	 * Retrieves the bot's id.
+	 * @return the bot's id.
+	 */
+	public String getID() {
+		return myID;
+	}
+	
+	/**
+	 * Retrieves the bot's login token.
+	 * @return the bot's login token.
+	 */
+	public String getToken() {
+		return myToken;
+	}
+	
+	/**
+	 * Return a message describing why login failed.
+	 * @return the error message.
+	 */
+	public String getErrorMessage() {
+		return myErrorMessage;
+	}
+}
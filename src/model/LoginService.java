@@ -0,0 +1,234 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Logs bots in over HTTPS without blocking the caller. Logins
+ * run on a small, shared pool of threads, which also limits
+ * how many run at once, and connections to the login server
+ * are kept alive and reused between logins.
+ * @author Damiene Stewart
+ */
+public class LoginService {
+	
+	/**
+	 * Size of the buffer used to drain a response.
+	 */
+	private static final int DRAIN_BUFFER_SIZE = 512;
+	
+	/**
+	 * The service shared by every client in this process.
+	 */
+	private static LoginService ourInstance;
+	
+	/**
+	 * The login server's address.
+	 */
+	private URL myAddress;
+	
+	/**
+	 * Runs the logins.
+	 */
+	private ExecutorService myExecutor;
+	
+	/**
+	 * Construct a new login service.
+	 * @param theAddress the login server's address.
+	 * @param theConcurrency the most logins to run at once.
+	 * @throws IOException if the address is malformed.
+	 */
+	public LoginService(String theAddress, int theConcurrency) throws IOException {
+		if (theConcurrency < 1)
+			throw new IllegalArgumentException("The concurrency: " + theConcurrency + " is invalid.");
+		
+		myAddress = new URL(theAddress);
+		myExecutor = Executors.newFixedThreadPool(theConcurrency, theTask -> {
+			Thread thread = new Thread(theTask, "Login");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Return the shared service, creating it on first use.
+	 * @return the shared login service.
+	 */
+	public static synchronized LoginService getInstance() {
+		if (ourInstance == null) {
+			try {
+				ourInstance = new LoginService(Config.GAME_HTTPS_ADDRESS, Config.LOGIN_CONCURRENCY);
+			} catch (IOException e) {
+				throw new IllegalStateException("Invalid login address: " + Config.GAME_HTTPS_ADDRESS, e);
+			}
+		}
+		
+		return ourInstance;
+	}
+	
+	/**
+	 * Login and retrieve the bot's ID and Login token as
+	 * these are necessary for subsequent interactions with 
+	 * server.
+	 * @param theEmail the bot's email address.
+	 * @param thePassword the bot's password.
+	 * @return the result, once the server has replied.
+	 */
+	public CompletableFuture<LoginResult> login(String theEmail, String thePassword) {
+		return CompletableFuture.supplyAsync(() -> loginNow(theEmail, thePassword), myExecutor);
+	}
+	
+	/**
+	 * Run a task on the login threads. For blocking work that
+	 * follows from a login, such as saving the session, which
+	 * must not hold up an event loop.
+	 * @param theTask the task.
+	 */
+	public void execute(Runnable theTask) {
+		myExecutor.execute(theTask);
+	}
+	
+	/**
+	 * Stop accepting logins.
+	 */
+	public void shutdown() {
+		myExecutor.shutdown();
+	}
+	
+	/**
+	 * Run one login on the calling thread. Never throws: any
+	 * failure is returned as a result with an error message.
+	 * @param theEmail the bot's email address.
+	 * @param thePassword the bot's password.
+	 * @return the result.
+	 */
+	private LoginResult loginNow(String theEmail, String thePassword) {
+		try {
+			HttpURLConnection con = (HttpURLConnection) myAddress.openConnection();
+			byte[] body = configureLoginJSONData(theEmail, thePassword).toString()
+					.getBytes(StandardCharsets.UTF_8);
+			
+			configureConnection(con, body.length);
+			sendLoginRequest(con, body);
+			
+			JSONObject responseData = readLoginResponse(con);
+			
+			// TODO Extend to incorporate error messages from server.
+			if (responseData.getInt("m") == 3) {
+				if (responseData.has("a") && responseData.has("p")) {
+					return new LoginResult(responseData.getString("p"), responseData.getString("a"), "");
+				} else if (responseData.optInt("r") == 1) {
+					// Never echo the password: the message ends up in logs.
+					return new LoginResult(null, null, "Wrong email or password for " + theEmail + ".");
+				}
+			}
+			
+			return new LoginResult(null, null, "");
+		} catch (IOException e) {
+			EventLog.getInstance().log(LogLevel.WARN, "Could not reach the login server", e);
+			return new LoginResult(null, null, "Unable to reach the login server.");
+		} catch (JSONException e) {
+			EventLog.getInstance().log(LogLevel.WARN, "The login server's reply could not be read", e);
+			return new LoginResult(null, null, "The login server sent an unexpected reply.");
+		} catch (RuntimeException e) {
+			EventLog.getInstance().log(LogLevel.ERROR, "The login failed", e);
+			return new LoginResult(null, null, "Unable to log in.");
+		}
+	}
+	
+	/**
+	 * Configure the HTTPS connection.
+	 * @param theConnection the HTTPS connection.
+	 * @param theLength the length of the request body.
+	 * @throws IOException if the request method can't be set.
+	 */
+	private void configureConnection(HttpURLConnection theConnection, int theLength) throws IOException {
+		// Set method.
+		theConnection.setRequestMethod("POST");
+		
+		// Set headers.
+		theConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		theConnection.setRequestProperty("Connection", "keep-alive");
+		theConnection.setRequestProperty("Accept", "*/*");
+		theConnection.setRequestProperty("User-Agent", "Fun%20Run%202/47 CFNetwork/711.4.6 Darwin/14.0.0");
+		theConnection.setRequestProperty("Accept-Language", "en-us");
+		theConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		
+		// Set other options.
+		theConnection.setUseCaches(false);
+		theConnection.setDoOutput(true);
+		theConnection.setDoInput(true);
+		theConnection.setFixedLengthStreamingMode(theLength);
+		theConnection.setConnectTimeout(Config.LOGIN_TIMEOUT);
+		theConnection.setReadTimeout(Config.LOGIN_TIMEOUT);
+	}
+	
+	/**
+	 * Returns the JSON version of the login information to send
+	 * to the server.
+	 * @param theEmail the bot's email address.
+	 * @param thePassword the bot's password.
+	 * @return the JSON version of the login information.
+	 */
+	private JSONObject configureLoginJSONData(String theEmail, String thePassword) {
+		JSONObject data = new JSONObject();
+		data.put("e", theEmail)
+			.put("d", "")
+			.put("w", thePassword)
+			.put("m", 3);
+		
+		return data;
+	}
+	
+	/**
+	 * Send the login request to the server.
+	 * @param theConnection the connection to write to.
+	 * @param theBody the request body.
+	 * @throws IOException if the request can't be written.
+	 */
+	private void sendLoginRequest(HttpURLConnection theConnection, byte[] theBody) throws IOException {
+		try (OutputStream output = theConnection.getOutputStream()) {
+			output.write(theBody);
+		}
+	}
+	
+	/**
+	 * Read the login response data from the server. The response
+	 * is decompressed straight into the parser, and whatever is
+	 * left is drained so the connection can be reused.
+	 * @param theConnection the connection to read from.
+	 * @return the read data.
+	 * @throws IOException if the response can't be read.
+	 */
+	private JSONObject readLoginResponse(HttpURLConnection theConnection) throws IOException {
+		try (InputStream raw = theConnection.getInputStream()) {
+			InputStream input = raw;
+			if ("gzip".equalsIgnoreCase(theConnection.getContentEncoding())) {
+				input = new GZIPInputStream(raw);
+			}
+			
+			JSONObject responseData = new JSONObject(
+					new JSONTokener(new InputStreamReader(input, StandardCharsets.UTF_8)));
+			
+			byte[] rest = new byte[DRAIN_BUFFER_SIZE];
+			while (raw.read(rest) >= 0) {
+				// Drain so the connection goes back to the keep-alive cache.
+			}
+			
+			return responseData;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package model;
+
+/**
+ * Acts on one kind of message read by a monitor.
+ * @author Damiene Stewart
+ * @param <M> the type of monitor that read the message.
+ * @param <D> the type of the decoded message.
+ */
+@FunctionalInterface
+public interface MessageHandler<M extends Monitor, D> {
+	
+	/**
+	 * Act on a message.
+	 * @param theMonitor the monitor that read the message.
+	 * @param theData the message.
+	 */
+	void handle(M theMonitor, D theData);
+}
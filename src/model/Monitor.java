@@ -1,11 +1,18 @@
 package model;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -13,139 +20,633 @@ import org.json.JSONObject;
 /**
  * Abstract class containing core methods
  * that a data stream monitor must implement.
+ * Monitors do not own a thread; once started they
+ * are driven by one of the network engine's event loops.
  * @author Damiene Stewart
  */
-public abstract class Monitor implements Runnable {
+public abstract class Monitor {
 
 	/**
-	 * The socket to communicate with and monitor.
+	 * The channel to communicate with and monitor.
 	 */
-	protected Socket mySocket;
-	
+	protected SocketChannel myChannel;
+
 	/**
 	 * The client object.
 	 */
 	protected Client myClient;
-	
+
 	/**
-	 * Flag indicating whether or not the run loop should
+	 * Flag indicating whether or not the monitor should
 	 * continue.
 	 */
-	private boolean myContinue;
-	
+	private volatile boolean myContinue;
+
+	/**
+	 * Buffer that incoming data is read into.
+	 */
+	private ByteBuffer myReadBuffer;
+
+	/**
+	 * Buffers outgoing data for the channel.
+	 */
+	private ChannelWriter myChannelWriter;
+
+	/**
+	 * The writer handed to processSocketData. It does not flush
+	 * on its own; everything written while processing a read is
+	 * flushed together once the read has been processed.
+	 */
+	private PrintWriter myWriter;
+
+	/**
+	 * The channel's selection key.
+	 */
+	private SelectionKey myKey;
+
 	/**
-	 * Constructs a new Monitor object.
+	 * The event loop driving this monitor.
+	 */
+	private volatile EventLoop myLoop;
+
+	/**
+	 * When the data being processed was read, from System.nanoTime().
+	 */
+	private long myReadTime;
+
+	/**
+	 * True if the monitor has no socket and is fed data directly.
+	 */
+	private boolean myDetached;
+
+	/**
+	 * Records the monitor's traffic, or null.
+	 */
+	private TrafficCapture myCapture;
+
+	/**
+	 * The session the traffic is recorded under.
+	 */
+	private int myCaptureSession;
+
+	/**
+	 * The session the monitor's events are logged under.
+	 */
+	private int myLogSession;
+
+	/**
+	 * True while the channel is a spare connection nothing has
+	 * been read from yet, which is replaced by a fresh connection
+	 * if it fails.
+	 */
+	private boolean mySpare;
+
+	/**
+	 * The address a spare connection was made to, or null.
+	 */
+	private InetSocketAddress mySpareAddress;
+
+	/**
+	 * Constructs a new Monitor object. The connection is only
+	 * started here, without blocking; it is finished by the event
+	 * loop once the monitor is started, and anything written in
+	 * the meantime is sent as soon as it is connected. A spare
+	 * connection to the host is used if there is one. The host is
+	 * looked up if it isn't an address, blocking the calling thread.
 	 * @param theClient the client object.
 	 * @param theHost the host to connect the socket to.
 	 * @param thePort the port to connect the socket to.
 	 */
 	public Monitor(Client theClient, String theHost, int thePort) {
-		try {
-			mySocket = new Socket(theHost, thePort);
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		Connector connector = Connector.getInstance();
+		SocketChannel spare = connector.takeSpare(theHost, thePort);
+		initialize(theClient, spare != null ? spare : connector.connect(theHost, thePort));
+		myDetached = false;
+		mySpare = spare != null && myChannel != null;
+		if (mySpare) {
+			mySpareAddress = new InetSocketAddress(theHost, thePort);
+			myChannelWriter.setFailover(this::replaceSpare);
 		}
-		
-		myClient = theClient;
-		myContinue = true;
 	}
-	
+
 	/**
-	 * Run the thread process.
+	 * Constructs a Monitor for a connected or connecting channel.
+	 * If the channel is null the monitor isn't connected to a server:
+	 * data is handed to it with feed(), anything it writes is
+	 * discarded when flushed, and tasks it schedules run on the
+	 * scheduler's thread, never at the same time as feed(). That is
+	 * used for benchmarks, tests and replaying captured traffic.
+	 * @param theClient the client object.
+	 * @param theChannel the connected or connecting channel, or null.
 	 */
-	@Override
-	public void run() {
-		BufferedReader dataSocketInput = null;
-		PrintWriter writer = getWriter();
-		
-		try {
-			dataSocketInput = new BufferedReader(new InputStreamReader(mySocket.getInputStream()));
-		} catch (IOException e) {
+	public Monitor(Client theClient, SocketChannel theChannel) {
+		initialize(theClient, theChannel);
+		myDetached = theChannel == null;
+	}
 
-			e.printStackTrace();
-		}
-		
-		while(myContinue && !mySocket.isClosed()) {
+	/**
+	 * Set up the monitor's state.
+	 * @param theClient the client object.
+	 * @param theChannel the connected or connecting channel, or null.
+	 */
+	private void initialize(Client theClient, SocketChannel theChannel) {
+		myChannel = theChannel;
+		myLogSession = EventLog.getInstance().newSession();
+		if (myChannel != null) {
 			try {
-				Object data = readSocketData(dataSocketInput);
-				
-				if (data == null) {
-					break;
-				}
-				
-				processSocketData(data, writer);
-			} catch (IllegalStateException e) {
-				break;
+				myChannel.configureBlocking(false);
+			} catch (IOException e) {
+				log(LogLevel.WARN, "Could not configure the socket", null, e);
+				myChannel = null;
 			}
 		}
+
+		myChannelWriter = new ChannelWriter(myChannel);
+		myChannelWriter.setOverflow(this::writeBufferFull);
+		myWriter = new PrintWriter(myChannelWriter, false);
+		myClient = theClient;
+		myReadBuffer = ByteBuffer.allocate(Config.READ_BUFFER_SIZE);
+		myContinue = true;
+
+		// Detached monitors replay or benchmark traffic; they aren't captured.
+		myCapture = myChannel == null ? null : TrafficCapture.getInstance();
+		if (myCapture != null) {
+			myCaptureSession = myCapture.open(this instanceof GameLobbyMonitor
+					? TrafficCapture.LOBBY_SESSION : TrafficCapture.DATA_SESSION);
+			myChannelWriter.capture(myCapture, myCaptureSession);
+		}
 	}
-	
+
+	/**
+	 * Start monitoring by handing the channel to the
+	 * network engine.
+	 */
+	public void start() {
+		if (myChannel != null && myContinue) {
+			NetworkEngine.getInstance().register(this);
+		} else if (!myDetached && myContinue) {
+			stopMonitor();
+			connectFailed();
+		}
+	}
+
 	/**
 	 * Signal that the data monitor/processing should stop.
 	 */
 	public void stopMonitor() {
+		if (myContinue && myCapture != null) {
+			myCapture.end(myCaptureSession);
+		}
 		myContinue = false;
+
+		if (myChannel == null) {
+			return;
+		}
+
 		try {
-			mySocket.close();
+			myChannel.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			log(LogLevel.WARN, "Could not close the socket", null, e);
 		}
 	}
-	
+
 	/**
 	 * Process the data being read from the socket.
 	 * @param theData the the data being processed.
 	 * @param theWriter the writer to send the response with.
 	 */
 	protected abstract void processSocketData(Object theData, PrintWriter theWriter);
-	
+
+	/**
+	 * Called on the event loop when the other end closes the
+	 * connection. Does nothing by default.
+	 */
+	protected void connectionClosed() {
+	}
+
+	/**
+	 * Called on the event loop once the connection has been
+	 * made, before anything is read or written. Does nothing by
+	 * default.
+	 */
+	protected void connected() {
+	}
+
+	/**
+	 * Give up on the connection after an error handling it: log
+	 * the error, stop the monitor and go through the same path
+	 * as when the other end closes the connection. Called on the
+	 * event loop thread.
+	 * @param theError the error.
+	 */
+	void connectionFailed(RuntimeException theError) {
+		log(LogLevel.ERROR, "Could not handle socket data", null, theError);
+		stopMonitor();
+		connectionClosed();
+	}
+
+	/**
+	 * Give up on a connection whose other end has stopped reading,
+	 * once Config.WRITE_BUFFER_MAX bytes are waiting for it: stop
+	 * the monitor and go through the same path as when the other
+	 * end closes the connection. Called by the writer, on any
+	 * thread and with the writer's lock held, so the work is done
+	 * on the event loop, or on the scheduler's thread if there is
+	 * no loop yet.
+	 */
+	private void writeBufferFull() {
+		log(LogLevel.WARN, "The write buffer is full; closing the connection", Config.WRITE_BUFFER_MAX, null);
+		Runnable close = () -> {
+			if (myContinue) {
+				stopMonitor();
+				connectionClosed();
+			}
+		};
+
+		EventLoop loop = myLoop;
+		if (loop != null) {
+			loop.execute(close);
+		} else {
+			Scheduler.getInstance().schedule(close, 0, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Called when the connection could not be made, or took
+	 * longer than Config.CONNECT_TIMEOUT; usually on the event
+	 * loop, but on the caller of start() if the connection could
+	 * not even be started. The monitor has already been stopped.
+	 * Does nothing by default.
+	 */
+	protected void connectFailed() {
+	}
+
 	/**
-	 * Read the socket data.
+	 * Decode one line of socket data straight from the read
+	 * buffer. By default the line is turned into a String and
+	 * handed to readSocketData(String).
+	 * @param theBytes the buffer holding the line.
+	 * @param theStart index of the line's first byte.
+	 * @param theEnd index one past the line's last byte.
 	 * @return socket data as an Object. Need to recast.
-	 * @throws IllegalStateException if no data received.
 	 */
-	protected Object readSocketData(BufferedReader theInput) {
-		String data = null;
-		try {
-			data = theInput.readLine();
-		} catch (IOException e) {
-			return null;
-		}
-		
-		if (data == null)
-			throw new IllegalStateException("No data retrieved from data socket.");
-		
-		if (data.charAt(0) == '{') {
-			return new JSONObject(data);
+	protected Object readSocketData(byte[] theBytes, int theStart, int theEnd) {
+		return readSocketData(new String(theBytes, theStart, theEnd - theStart, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decode one line of socket data.
+	 * @param theLine the line read from the socket.
+	 * @return socket data as an Object. Need to recast.
+	 */
+	protected Object readSocketData(String theLine) {
+		if (theLine.charAt(0) == '{') {
+			return new JSONObject(theLine);
 		} else {
-			return new JSONArray(data);
+			return new JSONArray(theLine);
 		}
 	}
-	
+
+	/**
+	 * Run a task on this monitor's event loop after a delay,
+	 * without blocking the loop in the meantime. The task is
+	 * skipped if the monitor has stopped, and anything it
+	 * writes is flushed once it has run.
+	 * @param theTask the task.
+	 * @param theDelay the delay in milliseconds.
+	 * @return a future that can be used to cancel the task.
+	 */
+	protected ScheduledFuture<?> schedule(Runnable theTask, long theDelay) {
+		return Scheduler.getInstance().schedule(() -> runOnLoop(theTask), theDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run a task on this monitor's event loop repeatedly, in the
+	 * same way as schedule(). The task keeps being scheduled until
+	 * the returned future is cancelled, but is skipped once the
+	 * monitor has stopped.
+	 * @param theTask the task.
+	 * @param thePeriod the time between runs in milliseconds.
+	 * @return a future that can be used to cancel the task.
+	 */
+	protected ScheduledFuture<?> scheduleAtFixedRate(Runnable theTask, long thePeriod) {
+		return Scheduler.getInstance().scheduleAtFixedRate(() -> runOnLoop(theTask),
+				thePeriod, thePeriod, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Log an event under this monitor's session.
+	 * @param theLevel how serious the event is.
+	 * @param theMessage what happened; a constant string.
+	 * @param theDetail more about what happened, or null.
+	 * @param theError the error, or null.
+	 */
+	protected void log(LogLevel theLevel, String theMessage, Object theDetail, Throwable theError) {
+		EventLog.getInstance().log(theLevel, this instanceof GameLobbyMonitor ? "lobby" : "data",
+				myLogSession, theMessage, theDetail, theError);
+	}
+
 	/**
 	 * Get the writer to write data to the socket.
 	 * @return PrintWriter to write data.
 	 */
 	protected PrintWriter getWriter() {
-		PrintWriter writer = null;
-		try {
-			writer = new PrintWriter(mySocket.getOutputStream(), true);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-		return writer;
+		return myWriter;
 	}
-	
+
+	/**
+	 * Get the channel writer for writing pre-encoded messages.
+	 * Writes made outside of processSocketData must be flushed
+	 * by the caller.
+	 * @return the channel's writer.
+	 */
+	protected ChannelWriter getChannelWriter() {
+		return myChannelWriter;
+	}
+
+	/**
+	 * Return when the data being processed was read from the
+	 * socket. Only meaningful inside processSocketData.
+	 * @return the time, from System.nanoTime().
+	 */
+	protected long getReadTime() {
+		return myReadTime;
+	}
+
 	/**
 	 * Return the socket being monitored.
 	 * @return the socket.
 	 */
 	protected Socket getSocket() {
-		return mySocket;
+		return myChannel.socket();
+	}
+
+	/**
+	 * Returns true if the monitor's connection has been started
+	 * but not finished.
+	 * @return true while connecting.
+	 */
+	public boolean isConnecting() {
+		return isRunning() && myChannel.isConnectionPending();
+	}
+
+	/**
+	 * Returns true if the monitor is still running.
+	 * @return true if the channel is open.
+	 */
+	public boolean isRunning() {
+		if (myDetached) {
+			return myContinue;
+		}
+		return myContinue && myChannel != null && myChannel.isOpen();
+	}
+
+	/**
+	 * Process data as if it had just been read from the socket.
+	 * Complete lines are processed right away; a trailing partial
+	 * line is kept until the rest of it is fed. Must not be
+	 * called while the monitor is registered with an event loop.
+	 * @param theBytes the data.
+	 * @param theOffset index of the first byte.
+	 * @param theLength number of bytes.
+	 */
+	public synchronized void feed(byte[] theBytes, int theOffset, int theLength) {
+		int offset = theOffset;
+		int remaining = theLength;
+
+		while (remaining > 0 && myContinue) {
+			int count = Math.min(remaining, myReadBuffer.remaining());
+			myReadBuffer.put(theBytes, offset, count);
+			offset += count;
+			remaining -= count;
+
+			myReadTime = System.nanoTime();
+			processReadBuffer();
+		}
+	}
+
+	/**
+	 * Register the channel with an event loop's selector.
+	 * Called on the event loop thread.
+	 * @param theLoop the event loop.
+	 * @param theSelector the loop's selector.
+	 * @throws ClosedChannelException if the channel was closed first.
+	 */
+	void attach(EventLoop theLoop, Selector theSelector) throws ClosedChannelException {
+		if (!myContinue) {
+			throw new ClosedChannelException();
+		}
+
+		myLoop = theLoop;
+		if (!myChannel.isConnectionPending()) {
+			myKey = myChannel.register(theSelector, SelectionKey.OP_READ, this);
+			connected();
+			myChannelWriter.attach(theLoop, myKey);
+			return;
+		}
+
+		myKey = myChannel.register(theSelector, SelectionKey.OP_CONNECT, this);
+		handleConnect();
+		if (myContinue && myChannel.isConnectionPending()) {
+			Scheduler.getInstance().schedule(() -> theLoop.execute(this::connectTimedOut),
+					Config.CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Try to finish connecting, and start reading once connected.
+	 * Called on the event loop thread.
+	 */
+	void handleConnect() {
+		try {
+			if (!myChannel.finishConnect()) {
+				return;
+			}
+		} catch (IOException e) {
+			if (replaceSpare()) {
+				return;
+			}
+			log(LogLevel.WARN, "Could not connect", null, e);
+			stopMonitor();
+			connectFailed();
+			return;
+		}
+
+		try {
+			myKey.interestOps(SelectionKey.OP_READ);
+		} catch (CancelledKeyException e) {
+			// The monitor was stopped from another thread meanwhile.
+			return;
+		}
+		connected();
+		myChannelWriter.attach(myLoop, myKey);
+	}
+
+	/**
+	 * Give up on a connection that is still being made.
+	 * Called on the event loop thread.
+	 */
+	private void connectTimedOut() {
+		if (myContinue && myChannel.isConnectionPending()) {
+			log(LogLevel.WARN, "Could not connect: timed out", null, null);
+			stopMonitor();
+			connectFailed();
+		}
+	}
+
+	/**
+	 * Read whatever data is available and process every
+	 * complete line. Called on the event loop thread.
+	 */
+	void handleRead() {
+		int read;
+		try {
+			read = myChannel.read(myReadBuffer);
+		} catch (IOException e) {
+			read = -1;
+		}
+
+		if (read < 0) {
+			if (replaceSpare()) {
+				return;
+			}
+			stopMonitor();
+			connectionClosed();
+			return;
+		}
+		if (read > 0) {
+			mySpare = false;
+		}
+
+		myReadTime = System.nanoTime();
+		processReadBuffer();
+	}
+
+	/**
+	 * Replace a spare connection that failed before anything was
+	 * read from it, which usually means the server had closed it,
+	 * with a fresh connection to the same address. Anything not yet
+	 * sent is kept for the new connection. Called on the event loop
+	 * thread.
+	 * @return true if a fresh connection was started.
+	 */
+	private boolean replaceSpare() {
+		if (!mySpare || !myContinue) {
+			return false;
+		}
+		mySpare = false;
+
+		SocketChannel channel = Connector.getInstance().connect(mySpareAddress);
+		if (channel == null) {
+			return false;
+		}
+
+		log(LogLevel.INFO, "Spare connection failed; connecting again", mySpareAddress, null);
+		Selector selector = myKey.selector();
+		try {
+			myChannel.close();
+		} catch (IOException e) {
+			log(LogLevel.WARN, "Could not close the socket", null, e);
+		}
+
+		myChannel = channel;
+		myChannelWriter.reconnect(channel);
+		try {
+			attach(myLoop, selector);
+		} catch (ClosedChannelException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Process every complete line in the read buffer, flush what
+	 * was written in response, and keep any partial line. A line
+	 * that can't be decoded or handled is logged and dropped, and
+	 * the lines after it are still processed.
+	 */
+	private void processReadBuffer() {
+		myReadBuffer.flip();
+		byte[] bytes = myReadBuffer.array();
+		int start = 0;
+		int end = myReadBuffer.limit();
+
+		for (int i = 0; i < end && myContinue; i++) {
+			if (bytes[i] == '\n') {
+				int lineEnd = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+				if (lineEnd > start) {
+					if (myCapture != null) {
+						myCapture.record(TrafficCapture.INBOUND, myCaptureSession, myReadTime,
+								bytes, start, lineEnd - start);
+					}
+					try {
+						processSocketData(readSocketData(bytes, start, lineEnd), myWriter);
+					} catch (RuntimeException e) {
+						log(LogLevel.WARN, "Dropped a message that could not be handled", null, e);
+					}
+				}
+				start = i + 1;
+			}
+		}
+
+		myChannelWriter.flush();
+		myReadBuffer.position(start);
+		myReadBuffer.compact();
+
+		if (!myReadBuffer.hasRemaining()) {
+			growReadBuffer();
+		}
+	}
+
+	/**
+	 * Continue writing buffered data once the channel
+	 * becomes writable. Called on the event loop thread.
+	 */
+	void handleWrite() {
+		myChannelWriter.writeToChannel();
+	}
+
+	/**
+	 * Run a task on the event loop if the monitor is still running,
+	 * or right away if the monitor is detached.
+	 * @param theTask the task.
+	 */
+	private void runOnLoop(Runnable theTask) {
+		if (myDetached) {
+			// There is no loop; take turns with feed() instead.
+			synchronized (this) {
+				if (isRunning()) {
+					theTask.run();
+					myChannelWriter.flush();
+				}
+			}
+			return;
+		}
+
+		EventLoop loop = myLoop;
+		if (loop == null || !isRunning()) {
+			return;
+		}
+
+		loop.execute(() -> {
+			if (isRunning()) {
+				theTask.run();
+				myChannelWriter.flush();
+			}
+		});
+	}
+
+	/**
+	 * Make room for a line longer than the read buffer.
+	 */
+	private void growReadBuffer() {
+		if (myReadBuffer.capacity() >= Config.MAX_LINE_LENGTH) {
+			throw new IllegalStateException("Line exceeds " + Config.MAX_LINE_LENGTH + " bytes.");
+		}
+
+		ByteBuffer bigger = ByteBuffer.allocate(myReadBuffer.capacity() * 2);
+		myReadBuffer.flip();
+		bigger.put(myReadBuffer);
+		myReadBuffer = bigger;
 	}
 }
@@ -0,0 +1,99 @@
+package model;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared network engine. Owns a small, fixed set of
+ * event loops and spreads every data and game lobby monitor
+ * across them.
+ * @author Damiene Stewart
+ */
+public class NetworkEngine {
+
+	/**
+	 * The engine shared by every client in this process.
+	 */
+	private static NetworkEngine ourInstance;
+
+	/**
+	 * The event loops.
+	 */
+	private final EventLoop[] myLoops;
+
+	/**
+	 * Index used to hand out loops round robin.
+	 */
+	private final AtomicInteger myNext;
+
+	/**
+	 * Construct a new network engine and start its loops.
+	 * @param theLoopCount the number of event loops to run.
+	 * @throws IOException if a selector could not be opened.
+	 */
+	public NetworkEngine(int theLoopCount) throws IOException {
+		if (theLoopCount < 1)
+			throw new IllegalArgumentException("The loop count: " + theLoopCount + " is invalid.");
+
+		myLoops = new EventLoop[theLoopCount];
+		myNext = new AtomicInteger();
+
+		for (int i = 0; i < theLoopCount; i++) {
+			myLoops[i] = new EventLoop("EventLoop-" + i);
+			myLoops[i].start();
+		}
+	}
+
+	/**
+	 * Return the shared engine, creating it on first use.
+	 * @return the shared network engine.
+	 */
+	public static synchronized NetworkEngine getInstance() {
+		if (ourInstance == null) {
+			try {
+				ourInstance = new NetworkEngine(Config.EVENT_LOOP_THREADS);
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to start the network engine.", e);
+			}
+		}
+
+		return ourInstance;
+	}
+
+	/**
+	 * Register a monitor with the next event loop.
+	 * @param theMonitor the monitor to register.
+	 */
+	public void register(Monitor theMonitor) {
+		next().register(theMonitor);
+	}
+
+	/**
+	 * Return the number of tasks waiting to run on every loop.
+	 * @return the waiting tasks.
+	 */
+	public int getPendingTasks() {
+		int tasks = 0;
+		for (EventLoop loop : myLoops) {
+			tasks += loop.getPendingTasks();
+		}
+		return tasks;
+	}
+
+	/**
+	 * Stop every event loop.
+	 */
+	public void shutdown() {
+		for (EventLoop loop : myLoops) {
+			loop.shutdown();
+		}
+	}
+
+	/**
+	 * Return the next event loop, round robin.
+	 * @return an event loop.
+	 */
+	private EventLoop next() {
+		return myLoops[Math.floorMod(myNext.getAndIncrement(), myLoops.length)];
+	}
+}
@@ -0,0 +1,130 @@
+package model;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps message opcodes to their handlers. Handlers are kept in
+ * an array indexed by opcode, so dispatching a message is one
+ * array read. The array is replaced, never changed, when a
+ * handler is registered, so dispatch needs no locking and
+ * handlers can be added or replaced while monitors are running.
+ * Every dispatched message is counted by opcode, handled or not.
+ * @author Damiene Stewart
+ * @param <M> the type of monitor that reads the messages.
+ * @param <D> the type of the decoded messages.
+ */
+public class OpcodeRegistry<M extends Monitor, D> {
+	
+	/**
+	 * Largest opcode that can be registered.
+	 */
+	public static final int MAX_OPCODE = 1023;
+	
+	/**
+	 * The handlers, by opcode. Never modified once published.
+	 */
+	private volatile MessageHandler<M, D>[] myHandlers;
+	
+	/**
+	 * Messages dispatched, by opcode. The last counts opcodes
+	 * out of range.
+	 */
+	private final LongAdder[] myCounts;
+	
+	/**
+	 * Construct a new, empty registry.
+	 */
+	public OpcodeRegistry() {
+		myHandlers = newArray(0);
+		myCounts = new LongAdder[MAX_OPCODE + 2];
+		for (int i = 0; i < myCounts.length; i++) {
+			myCounts[i] = new LongAdder();
+		}
+	}
+	
+	/**
+	 * Handle an opcode, replacing any handler it already has.
+	 * @param theOpcode the opcode.
+	 * @param theHandler the handler.
+	 * @return the handler that was replaced, or null.
+	 */
+	public synchronized MessageHandler<M, D> register(int theOpcode, MessageHandler<M, D> theHandler) {
+		if (theOpcode < 0 || theOpcode > MAX_OPCODE)
+			throw new IllegalArgumentException("The opcode: " + theOpcode + " is invalid.");
+		if (theHandler == null)
+			throw new IllegalArgumentException("The handler: null is invalid.");
+		
+		MessageHandler<M, D>[] handlers = Arrays.copyOf(myHandlers, Math.max(myHandlers.length, theOpcode + 1));
+		MessageHandler<M, D> previous = handlers[theOpcode];
+		handlers[theOpcode] = theHandler;
+		myHandlers = handlers;
+		return previous;
+	}
+	
+	/**
+	 * Stop handling an opcode.
+	 * @param theOpcode the opcode.
+	 * @return the handler that was removed, or null.
+	 */
+	public synchronized MessageHandler<M, D> unregister(int theOpcode) {
+		MessageHandler<M, D> previous = get(theOpcode);
+		if (previous != null) {
+			MessageHandler<M, D>[] handlers = myHandlers.clone();
+			handlers[theOpcode] = null;
+			myHandlers = handlers;
+		}
+		return previous;
+	}
+	
+	/**
+	 * Return an opcode's handler.
+	 * @param theOpcode the opcode.
+	 * @return the handler, or null if the opcode isn't handled.
+	 */
+	public MessageHandler<M, D> get(int theOpcode) {
+		MessageHandler<M, D>[] handlers = myHandlers;
+		return theOpcode >= 0 && theOpcode < handlers.length ? handlers[theOpcode] : null;
+	}
+	
+	/**
+	 * Hand a message to its opcode's handler.
+	 * @param theOpcode the message's opcode.
+	 * @param theMonitor the monitor that read the message.
+	 * @param theData the message.
+	 * @return false if the opcode isn't handled.
+	 */
+	public boolean dispatch(int theOpcode, M theMonitor, D theData) {
+		myCounts[theOpcode >= 0 && theOpcode <= MAX_OPCODE ? theOpcode : MAX_OPCODE + 1].increment();
+		MessageHandler<M, D> handler = get(theOpcode);
+		if (handler == null) {
+			return false;
+		}
+		
+		handler.handle(theMonitor, theData);
+		return true;
+	}
+	
+	/**
+	 * Return the number of messages dispatched with each opcode.
+	 * @return the counts by opcode; the element after MAX_OPCODE
+	 * counts opcodes out of range.
+	 */
+	public long[] getCounts() {
+		long[] counts = new long[myCounts.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = myCounts[i].sum();
+		}
+		return counts;
+	}
+	
+	/**
+	 * Create an array of handlers.
+	 * @param theLength the array's length.
+	 * @return the array.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <M extends Monitor, D> MessageHandler<M, D>[] newArray(int theLength) {
+		return (MessageHandler<M, D>[]) new MessageHandler<?, ?>[theLength];
+	}
+}
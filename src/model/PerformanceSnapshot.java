@@ -0,0 +1,439 @@
+package model;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How a client is performing at one moment: the state of its
+ * sockets, message rates, echo latency, its estimate of the
+ * server's clock, how much is queued and the JVM's heap and
+ * garbage collection. Rates are over the time since the
+ * previous snapshot. A snapshot never changes once taken, so it
+ * can be handed to any thread.
+ * @author Damiene Stewart
+ */
+public class PerformanceSnapshot {
+
+	/**
+	 * When the snapshot was taken, from System.nanoTime().
+	 */
+	private final long myTime;
+
+	/**
+	 * Seconds since the previous snapshot, or 0 for the first.
+	 */
+	private final double myInterval;
+
+	/**
+	 * The data monitor at the time, kept to tell when a new
+	 * monitor's counts start over.
+	 */
+	private final DataMonitor myDataMonitor;
+
+	/**
+	 * The lobby monitor at the time, kept to tell when a new
+	 * lobby's counts start over.
+	 */
+	private final GameLobbyMonitor myLobbyMonitor;
+
+	/**
+	 * Data messages read so far, by opcode.
+	 */
+	private final long[] myDataCounts;
+
+	/**
+	 * Lobby messages read so far, by opcode.
+	 */
+	private final long[] myLobbyCounts;
+
+	/**
+	 * Data messages written so far, by the current monitor.
+	 */
+	private final long myDataWritten;
+
+	/**
+	 * Lobby messages written so far, by the current lobby.
+	 */
+	private final long myLobbyWritten;
+
+	/**
+	 * Data messages read per second, by opcode.
+	 */
+	private final Map<Integer, Double> myDataRates;
+
+	/**
+	 * Lobby messages read per second, by opcode.
+	 */
+	private final Map<Integer, Double> myLobbyRates;
+
+	/**
+	 * Data messages written per second.
+	 */
+	private final double myDataWriteRate;
+
+	/**
+	 * Lobby messages written per second.
+	 */
+	private final double myLobbyWriteRate;
+
+	/**
+	 * State of the data socket.
+	 */
+	private final String myDataState;
+
+	/**
+	 * State of the lobby socket.
+	 */
+	private final String myLobbyState;
+
+	/**
+	 * Bytes waiting to be written to the data socket.
+	 */
+	private final int myDataQueued;
+
+	/**
+	 * Bytes waiting to be written to the lobby socket.
+	 */
+	private final int myLobbyQueued;
+
+	/**
+	 * Tasks waiting to run on the event loops.
+	 */
+	private final int myLoopTasks;
+
+	/**
+	 * Median echo latency in nanoseconds.
+	 */
+	private final long myEchoMedian;
+
+	/**
+	 * 99th percentile echo latency in nanoseconds.
+	 */
+	private final long myEchoP99;
+
+	/**
+	 * Largest echo latency in nanoseconds.
+	 */
+	private final long myEchoMax;
+
+	/**
+	 * True if the lobby's clock has been synchronized.
+	 */
+	private final boolean myClockSynchronized;
+
+	/**
+	 * Milliseconds the server's clock is ahead of the local wall clock.
+	 */
+	private final long myClockOffset;
+
+	/**
+	 * Jitter measured by the lobby's clock, in nanoseconds.
+	 */
+	private final long myClockJitter;
+
+	/**
+	 * Heap in use, in bytes.
+	 */
+	private final long myHeapUsed;
+
+	/**
+	 * Most heap the JVM may use, in bytes, or -1 if unlimited.
+	 */
+	private final long myHeapMax;
+
+	/**
+	 * Garbage collections so far.
+	 */
+	private final long myGcCount;
+
+	/**
+	 * Milliseconds spent collecting garbage so far.
+	 */
+	private final long myGcTime;
+
+	/**
+	 * Garbage collections since the previous snapshot.
+	 */
+	private final long myGcCountDelta;
+
+	/**
+	 * Milliseconds spent collecting garbage since the previous snapshot.
+	 */
+	private final long myGcTimeDelta;
+
+	/**
+	 * Take a snapshot.
+	 * @param theClient the client.
+	 * @param thePrevious the previous snapshot, or null.
+	 */
+	private PerformanceSnapshot(Client theClient, PerformanceSnapshot thePrevious) {
+		myTime = System.nanoTime();
+		myInterval = thePrevious == null ? 0 : (myTime - thePrevious.myTime) / 1e9;
+
+		DataMonitor data = theClient.getDataMonitor();
+		GameLobbyMonitor lobby = theClient.getGameLobbyMonitor();
+		myDataMonitor = data;
+		myLobbyMonitor = lobby;
+
+		myDataCounts = DataMonitor.HANDLERS.getCounts();
+		myLobbyCounts = GameLobbyMonitor.HANDLERS.getCounts();
+		myDataWritten = data == null ? 0 : data.getChannelWriter().getMessageCount();
+		myLobbyWritten = lobby == null ? 0 : lobby.getChannelWriter().getMessageCount();
+
+		boolean sameData = thePrevious != null && thePrevious.myDataMonitor == data;
+		boolean sameLobby = thePrevious != null && thePrevious.myLobbyMonitor == lobby;
+		myDataRates = rates(myDataCounts, thePrevious == null ? null : thePrevious.myDataCounts);
+		myLobbyRates = rates(myLobbyCounts, thePrevious == null ? null : thePrevious.myLobbyCounts);
+		myDataWriteRate = rate(myDataWritten, sameData ? thePrevious.myDataWritten : 0);
+		myLobbyWriteRate = rate(myLobbyWritten, sameLobby ? thePrevious.myLobbyWritten : 0);
+
+		myDataState = stateOf(data);
+		myLobbyState = stateOf(lobby);
+		myDataQueued = data == null ? 0 : data.getChannelWriter().getQueuedBytes();
+		myLobbyQueued = lobby == null ? 0 : lobby.getChannelWriter().getQueuedBytes();
+		myLoopTasks = NetworkEngine.getInstance().getPendingTasks();
+
+		LatencyHistogram echoes = LatencyStats.ECHO.getTotal();
+		myEchoMedian = echoes.getValueAtPercentile(50);
+		myEchoP99 = echoes.getValueAtPercentile(99);
+		myEchoMax = echoes.getMax();
+
+		ClockSync clock = lobby == null ? null : lobby.getClock();
+		myClockSynchronized = clock != null && clock.isSynchronized();
+		myClockOffset = myClockSynchronized ? clock.getServerMillis() - System.currentTimeMillis() : 0;
+		myClockJitter = clock == null ? 0 : clock.getJitter();
+
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		myHeapUsed = heap.getUsed();
+		myHeapMax = heap.getMax();
+
+		long gcCount = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, collector.getCollectionCount());
+			gcTime += Math.max(0, collector.getCollectionTime());
+		}
+		myGcCount = gcCount;
+		myGcTime = gcTime;
+		myGcCountDelta = thePrevious == null ? 0 : gcCount - thePrevious.myGcCount;
+		myGcTimeDelta = thePrevious == null ? 0 : gcTime - thePrevious.myGcTime;
+	}
+
+	/**
+	 * Take a snapshot of a client's performance.
+	 * @param theClient the client.
+	 * @param thePrevious the previous snapshot, which rates are
+	 * measured from, or null for the first.
+	 * @return the snapshot.
+	 */
+	public static PerformanceSnapshot take(Client theClient, PerformanceSnapshot thePrevious) {
+		return new PerformanceSnapshot(theClient, thePrevious);
+	}
+
+	/**
+	 * Return the seconds since the previous snapshot.
+	 * @return the interval, or 0 for the first snapshot.
+	 */
+	public double getInterval() {
+		return myInterval;
+	}
+
+	/**
+	 * Return the state of the data socket.
+	 * @return the state, for showing to the user.
+	 */
+	public String getDataState() {
+		return myDataState;
+	}
+
+	/**
+	 * Return the state of the lobby socket.
+	 * @return the state, for showing to the user.
+	 */
+	public String getLobbyState() {
+		return myLobbyState;
+	}
+
+	/**
+	 * Return the data messages read per second.
+	 * @return the rates by opcode, leaving out opcodes not seen.
+	 */
+	public Map<Integer, Double> getDataRates() {
+		return myDataRates;
+	}
+
+	/**
+	 * Return the lobby messages read per second.
+	 * @return the rates by opcode, leaving out opcodes not seen.
+	 */
+	public Map<Integer, Double> getLobbyRates() {
+		return myLobbyRates;
+	}
+
+	/**
+	 * Return the data messages written per second.
+	 * @return the rate.
+	 */
+	public double getDataWriteRate() {
+		return myDataWriteRate;
+	}
+
+	/**
+	 * Return the lobby messages written per second.
+	 * @return the rate.
+	 */
+	public double getLobbyWriteRate() {
+		return myLobbyWriteRate;
+	}
+
+	/**
+	 * Return the bytes waiting to be written to the data socket.
+	 * @return the queued bytes.
+	 */
+	public int getDataQueued() {
+		return myDataQueued;
+	}
+
+	/**
+	 * Return the bytes waiting to be written to the lobby socket.
+	 * @return the queued bytes.
+	 */
+	public int getLobbyQueued() {
+		return myLobbyQueued;
+	}
+
+	/**
+	 * Return the tasks waiting to run on the event loops.
+	 * @return the waiting tasks.
+	 */
+	public int getLoopTasks() {
+		return myLoopTasks;
+	}
+
+	/**
+	 * Return the median echo latency.
+	 * @return the latency in nanoseconds.
+	 */
+	public long getEchoMedian() {
+		return myEchoMedian;
+	}
+
+	/**
+	 * Return the 99th percentile echo latency.
+	 * @return the latency in nanoseconds.
+	 */
+	public long getEchoP99() {
+		return myEchoP99;
+	}
+
+	/**
+	 * Return the largest echo latency.
+	 * @return the latency in nanoseconds.
+	 */
+	public long getEchoMax() {
+		return myEchoMax;
+	}
+
+	/**
+	 * Returns true if the lobby's clock follows the server.
+	 * @return true once a clock frame has arrived.
+	 */
+	public boolean isClockSynchronized() {
+		return myClockSynchronized;
+	}
+
+	/**
+	 * Return how far the server's clock is ahead of the local wall clock.
+	 * @return the offset in milliseconds.
+	 */
+	public long getClockOffset() {
+		return myClockOffset;
+	}
+
+	/**
+	 * Return the jitter measured by the lobby's clock.
+	 * @return the jitter in nanoseconds.
+	 */
+	public long getClockJitter() {
+		return myClockJitter;
+	}
+
+	/**
+	 * Return the heap in use.
+	 * @return the heap used in bytes.
+	 */
+	public long getHeapUsed() {
+		return myHeapUsed;
+	}
+
+	/**
+	 * Return the most heap the JVM may use.
+	 * @return the heap limit in bytes, or -1 if there is none.
+	 */
+	public long getHeapMax() {
+		return myHeapMax;
+	}
+
+	/**
+	 * Return the garbage collections since the previous snapshot.
+	 * @return the collections.
+	 */
+	public long getGcCount() {
+		return myGcCountDelta;
+	}
+
+	/**
+	 * Return the time spent collecting garbage since the previous snapshot.
+	 * @return the time in milliseconds.
+	 */
+	public long getGcTime() {
+		return myGcTimeDelta;
+	}
+
+	/**
+	 * Return the rates of the opcodes that were seen.
+	 * @param theCounts the counts now.
+	 * @param thePrevious the counts at the previous snapshot, or null.
+	 * @return the rates by opcode.
+	 */
+	private Map<Integer, Double> rates(long[] theCounts, long[] thePrevious) {
+		Map<Integer, Double> rates = new TreeMap<Integer, Double>();
+		if (thePrevious != null) {
+			for (int i = 0; i < theCounts.length; i++) {
+				if (theCounts[i] != thePrevious[i]) {
+					rates.put(i, rate(theCounts[i], thePrevious[i]));
+				}
+			}
+		}
+		return Collections.unmodifiableMap(rates);
+	}
+
+	/**
+	 * Return a rate over the interval.
+	 * @param theCount the count now.
+	 * @param thePrevious the count at the previous snapshot.
+	 * @return the count's increase per second.
+	 */
+	private double rate(long theCount, long thePrevious) {
+		return myInterval == 0 ? 0 : (theCount - thePrevious) / myInterval;
+	}
+
+	/**
+	 * Describe a monitor's socket.
+	 * @param theMonitor the monitor, or null.
+	 * @return the socket's state.
+	 */
+	private static String stateOf(Monitor theMonitor) {
+		if (theMonitor == null) {
+			return "Not connected";
+		}
+		if (theMonitor.isConnecting()) {
+			return "Connecting";
+		}
+		return theMonitor.isRunning() ? "Connected" : "Closed";
+	}
+}
@@ -0,0 +1,96 @@
+package model;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared timer for delayed and repeated work. A single timer
+ * thread serves every monitor in the process. Tasks should be
+ * short; monitors hand them on to their event loop rather
+ * than running them on the timer thread.
+ * @author Damiene Stewart
+ */
+public class Scheduler {
+
+	/**
+	 * The scheduler shared by every client in this process.
+	 */
+	private static Scheduler ourInstance;
+
+	/**
+	 * The executor driving the timer.
+	 */
+	private final ScheduledExecutorService myExecutor;
+
+	/**
+	 * Construct a new scheduler with its own timer thread.
+	 */
+	public Scheduler() {
+		myExecutor = Executors.newSingleThreadScheduledExecutor(theTask -> {
+			Thread thread = new Thread(theTask, "Scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Return the shared scheduler, creating it on first use.
+	 * @return the shared scheduler.
+	 */
+	public static synchronized Scheduler getInstance() {
+		if (ourInstance == null) {
+			ourInstance = new Scheduler();
+		}
+
+		return ourInstance;
+	}
+
+	/**
+	 * Run a task once after a delay.
+	 * @param theTask the task.
+	 * @param theDelay the delay.
+	 * @param theUnit the delay's unit.
+	 * @return a future that can be used to cancel the task.
+	 */
+	public ScheduledFuture<?> schedule(Runnable theTask, long theDelay, TimeUnit theUnit) {
+		return myExecutor.schedule(guard(theTask), theDelay, theUnit);
+	}
+
+	/**
+	 * Run a task repeatedly until it is cancelled.
+	 * @param theTask the task.
+	 * @param theInitialDelay the delay before the first run.
+	 * @param thePeriod the time between runs.
+	 * @param theUnit the unit of both times.
+	 * @return a future that can be used to cancel the task.
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable theTask, long theInitialDelay,
+			long thePeriod, TimeUnit theUnit) {
+		return myExecutor.scheduleAtFixedRate(guard(theTask), theInitialDelay, thePeriod, theUnit);
+	}
+
+	/**
+	 * Stop the timer. Pending tasks are dropped.
+	 */
+	public void shutdown() {
+		myExecutor.shutdownNow();
+	}
+
+	/**
+	 * Wrap a task so an exception doesn't silently cancel a
+	 * repeating task.
+	 * @param theTask the task.
+	 * @return the wrapped task.
+	 */
+	private static Runnable guard(Runnable theTask) {
+		return () -> {
+			try {
+				theTask.run();
+			} catch (RuntimeException e) {
+				EventLog.getInstance().log(LogLevel.ERROR, "A scheduled task failed", e);
+			}
+		};
+	}
+}
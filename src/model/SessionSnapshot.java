@@ -0,0 +1,189 @@
+package model;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * What a bot needs to skip the HTTPS login on its next start:
+ * its ID, its login token and the last friend list received.
+ * A salted hash of the password goes with them, so that the
+ * session is only restored for someone who knows the password.
+ * @author Damiene Stewart
+ */
+public class SessionSnapshot {
+	
+	/**
+	 * Length, in bytes, of a password's salt.
+	 */
+	private static final int SALT_LENGTH = 16;
+	
+	/**
+	 * Length, in bits, of a password's hash.
+	 */
+	private static final int HASH_LENGTH = 256;
+	
+	/**
+	 * Number of PBKDF2 iterations used to hash a password.
+	 */
+	private static final int ITERATIONS = 20000;
+	
+	/**
+	 * Source of salts.
+	 */
+	private static final SecureRandom ourRandom = new SecureRandom();
+	
+	/**
+	 * The bot's email address.
+	 */
+	private String myEmail;
+	
+	/**
+	 * The bot's ID.
+	 */
+	private String myID;
+	
+	/**
+	 * The bot's login token.
+	 */
+	private String myToken;
+	
+	/**
+	 * The salt the password was hashed with.
+	 */
+	private byte[] mySalt;
+	
+	/**
+	 * The salted hash of the bot's password.
+	 */
+	private byte[] myPasswordHash;
+	
+	/**
+	 * The last friend list received.
+	 */
+	private List<Friend> myFriends;
+	
+	/**
+	 * When the snapshot was taken, in milliseconds since the epoch.
+	 */
+	private long mySavedAt;
+	
+	/**
+	 * Construct a new session snapshot.
+	 * @param theEmail the bot's email address.
+	 * @param theID the bot's ID.
+	 * @param theToken the bot's login token.
+	 * @param theSalt the salt the password was hashed with.
+	 * @param thePasswordHash the password, hashed by hashPassword().
+	 * @param theFriends the last friend list received.
+	 * @param theSavedAt when the snapshot was taken.
+	 */
+	public SessionSnapshot(String theEmail, String theID, String theToken, byte[] theSalt,
+			byte[] thePasswordHash, List<Friend> theFriends, long theSavedAt) {
+		myEmail = theEmail;
+		myID = theID;
+		myToken = theToken;
+		mySalt = theSalt;
+		myPasswordHash = thePasswordHash;
+		myFriends = theFriends;
+		mySavedAt = theSavedAt;
+	}
+	
+	/**
+	 * Return the bot's email address.
+	 * @return the email address.
+	 */
+	public String getEmail() {
+		return myEmail;
+	}
+	
+	/**
+	 * Retrieves the bot's id.
+	 * @return the bot's id.
+	 */
+	public String getID() {
+		return myID;
+	}
+	
+	/**
+	 * Retrieves the bot's login token.
+	 * @return the bot's login token.
+	 */
+	public String getToken() {
+		return myToken;
+	}
+	
+	/**
+	 * Return the salt the password was hashed with.
+	 * @return the salt.
+	 */
+	public byte[] getSalt() {
+		return mySalt;
+	}
+	
+	/**
+	 * Return the salted hash of the bot's password.
+	 * @return the hash.
+	 */
+	public byte[] getPasswordHash() {
+		return myPasswordHash;
+	}
+	
+	/**
+	 * Returns true if a password is the one the snapshot was
+	 * saved with.
+	 * @param thePassword the password.
+	 * @return true if the password matches.
+	 */
+	public boolean matchesPassword(String thePassword) {
+		return MessageDigest.isEqual(myPasswordHash, hashPassword(thePassword, mySalt));
+	}
+	
+	/**
+	 * Return a new random salt for hashing a password.
+	 * @return the salt.
+	 */
+	public static byte[] newSalt() {
+		byte[] salt = new byte[SALT_LENGTH];
+		ourRandom.nextBytes(salt);
+		return salt;
+	}
+	
+	/**
+	 * Hash a password with PBKDF2. Deliberately slow, so call it
+	 * away from the event loops.
+	 * @param thePassword the password.
+	 * @param theSalt the salt.
+	 * @return the hash.
+	 */
+	public static byte[] hashPassword(String thePassword, byte[] theSalt) {
+		PBEKeySpec spec = new PBEKeySpec(thePassword.toCharArray(), theSalt, ITERATIONS, HASH_LENGTH);
+		try {
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("PBKDF2 is not available", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+	
+	/**
+	 * Return the last friend list received.
+	 * @return the friend list.
+	 */
+	public List<Friend> getFriends() {
+		return myFriends;
+	}
+	
+	/**
+	 * Return when the snapshot was taken.
+	 * @return milliseconds since the epoch.
+	 */
+	public long getSavedAt() {
+		return mySavedAt;
+	}
+}
@@ -0,0 +1,255 @@
+package model;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Stores session snapshots on disk so a restart can reuse a
+ * still valid login token. Each account gets one small file,
+ * written and read through a memory mapping:
+ *
+ * magic, version, saved at, email, ID, token, password salt,
+ * password hash, friend count, then the ID and username of
+ * every friend. Strings are written as a length followed by
+ * their UTF-8 bytes, and the salt and hash as a length followed
+ * by the bytes.
+ *
+ * A snapshot holds a login token, so where the file system has
+ * POSIX permissions the files, and the directory if the store
+ * creates it, are only readable by their owner.
+ * @author Damiene Stewart
+ */
+public class SessionStore {
+	
+	/**
+	 * Marks a session file.
+	 */
+	private static final int MAGIC = 0x45425331;
+	
+	/**
+	 * Version of the file layout.
+	 */
+	private static final int VERSION = 2;
+	
+	/**
+	 * Permissions of the session directory, where supported.
+	 */
+	private static final FileAttribute<Set<PosixFilePermission>> DIRECTORY_PERMISSIONS =
+			PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"));
+	
+	/**
+	 * Permissions of a session file, where supported.
+	 */
+	private static final FileAttribute<Set<PosixFilePermission>> FILE_PERMISSIONS =
+			PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+	
+	/**
+	 * The store shared by every client in this process.
+	 */
+	private static SessionStore ourInstance;
+	
+	/**
+	 * Directory holding the session files.
+	 */
+	private Path myDirectory;
+	
+	/**
+	 * Construct a new session store.
+	 * @param theDirectory directory holding the session files.
+	 */
+	public SessionStore(Path theDirectory) {
+		myDirectory = theDirectory;
+	}
+	
+	/**
+	 * Return the shared store, creating it on first use.
+	 * @return the shared session store.
+	 */
+	public static synchronized SessionStore getInstance() {
+		if (ourInstance == null) {
+			ourInstance = new SessionStore(Paths.get(Config.SESSION_DIRECTORY));
+		}
+		
+		return ourInstance;
+	}
+	
+	/**
+	 * Save a snapshot, replacing any earlier one for the account.
+	 * The file is written beside the old one and moved into place,
+	 * so a crash never leaves a half written snapshot. The new
+	 * file is created readable by its owner only.
+	 * @param theSnapshot the snapshot.
+	 * @throws IOException if the snapshot can't be written.
+	 */
+	public void save(SessionSnapshot theSnapshot) throws IOException {
+		List<byte[]> strings = new ArrayList<byte[]>();
+		strings.add(encode(theSnapshot.getEmail()));
+		strings.add(encode(theSnapshot.getID()));
+		strings.add(encode(theSnapshot.getToken()));
+		strings.add(theSnapshot.getSalt());
+		strings.add(theSnapshot.getPasswordHash());
+		for (Friend friend : theSnapshot.getFriends()) {
+			strings.add(encode(friend.getPlayerID()));
+			strings.add(encode(friend.getUserName()));
+		}
+		
+		// Magic, version, saved at and friend count.
+		int size = 4 + 4 + 8 + 4;
+		for (byte[] string : strings) {
+			size += 4 + string.length;
+		}
+		
+		boolean posix = myDirectory.getFileSystem().supportedFileAttributeViews().contains("posix");
+		if (posix) {
+			Files.createDirectories(myDirectory, DIRECTORY_PERMISSIONS);
+		} else {
+			Files.createDirectories(myDirectory);
+		}
+		Path file = fileFor(theSnapshot.getEmail());
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		
+		// Permissions only apply to a new file, so never reuse a leftover one.
+		Files.deleteIfExists(temporary);
+		FileAttribute<?>[] attributes = posix ? new FileAttribute<?>[] { FILE_PERMISSIONS } : new FileAttribute<?>[0];
+		try (FileChannel channel = FileChannel.open(temporary, EnumSet.of(StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE), attributes)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putLong(theSnapshot.getSavedAt());
+			
+			for (int i = 0; i < 5; i++) {
+				putString(buffer, strings.get(i));
+			}
+			
+			buffer.putInt(theSnapshot.getFriends().size());
+			for (int i = 5; i < strings.size(); i++) {
+				putString(buffer, strings.get(i));
+			}
+			
+			buffer.force();
+		}
+		
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Load the snapshot for an account.
+	 * @param theEmail the bot's email address.
+	 * @return the snapshot, or null if there is no usable one.
+	 */
+	public SessionSnapshot load(String theEmail) {
+		try (FileChannel channel = FileChannel.open(fileFor(theEmail), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			
+			long savedAt = buffer.getLong();
+			String email = getString(buffer);
+			if (!email.equalsIgnoreCase(theEmail)) {
+				return null;
+			}
+			
+			String id = getString(buffer);
+			String token = getString(buffer);
+			byte[] salt = getBytes(buffer);
+			byte[] hash = getBytes(buffer);
+			int count = buffer.getInt();
+			
+			List<Friend> friends = new ArrayList<Friend>(count);
+			for (int i = 0; i < count; i++) {
+				friends.add(new Friend(getString(buffer), getString(buffer)));
+			}
+			
+			return new SessionSnapshot(email, id, token, salt, hash, friends, savedAt);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			EventLog.getInstance().log(LogLevel.WARN, "Could not load a saved session", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Forget the snapshot for an account, for example after
+	 * the server rejected its token.
+	 * @param theEmail the bot's email address.
+	 */
+	public void delete(String theEmail) {
+		try {
+			Files.deleteIfExists(fileFor(theEmail));
+		} catch (IOException e) {
+			EventLog.getInstance().log(LogLevel.WARN, "Could not delete a saved session", e);
+		}
+	}
+	
+	/**
+	 * Return the file holding an account's snapshot.
+	 * @param theEmail the bot's email address.
+	 * @return the snapshot file.
+	 */
+	private Path fileFor(String theEmail) {
+		return myDirectory.resolve(Integer.toHexString(theEmail.toLowerCase().hashCode()) + ".session");
+	}
+	
+	/**
+	 * Encode a string as UTF-8.
+	 * @param theString the string.
+	 * @return the encoded string.
+	 */
+	private static byte[] encode(String theString) {
+		return theString.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Write a length prefixed string.
+	 * @param theBuffer the buffer to write to.
+	 * @param theString the encoded string.
+	 */
+	private static void putString(MappedByteBuffer theBuffer, byte[] theString) {
+		theBuffer.putInt(theString.length);
+		theBuffer.put(theString);
+	}
+	
+	/**
+	 * Read a length prefixed string.
+	 * @param theBuffer the buffer to read from.
+	 * @return the string.
+	 */
+	private static String getString(MappedByteBuffer theBuffer) {
+		return new String(getBytes(theBuffer), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Read length prefixed bytes.
+	 * @param theBuffer the buffer to read from.
+	 * @return the bytes.
+	 */
+	private static byte[] getBytes(MappedByteBuffer theBuffer) {
+		int length = theBuffer.getInt();
+		if (length < 0 || length > theBuffer.remaining())
+			throw new IllegalArgumentException("The string length: " + length + " is invalid.");
+		
+		byte[] bytes = new byte[length];
+		theBuffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,298 @@
+package model;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Appends every line a monitor reads and every chunk it writes
+ * to a binary log, so that a session can be replayed offline
+ * with TrafficReplayer. The log is written through a memory
+ * mapped window on the file, so recording a message is a copy
+ * into memory under a short lock; the operating system writes
+ * the pages out in the background.
+ *
+ * The log starts with a header: magic, version, the wall clock
+ * time in milliseconds and the System.nanoTime() the capture
+ * started at. Each record is its total length (int), its type
+ * (byte), the session (int), nanoseconds since the capture
+ * started (long) and the message bytes. A length of 0 marks
+ * the end of the log.
+ * @author Damiene Stewart
+ */
+public class TrafficCapture {
+
+	/**
+	 * First int of every capture file, "EBC1".
+	 */
+	public static final int MAGIC = 0x45424331;
+
+	/**
+	 * Version of the file layout.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Size of the file header in bytes.
+	 */
+	public static final int HEADER_SIZE = 24;
+
+	/**
+	 * Size of a record's header in bytes.
+	 */
+	public static final int RECORD_HEADER_SIZE = 17;
+
+	/**
+	 * A monitor was created. The message is the session's kind.
+	 */
+	public static final byte OPEN = 1;
+
+	/**
+	 * A line was read, without its line break.
+	 */
+	public static final byte INBOUND = 2;
+
+	/**
+	 * Bytes were written to the socket.
+	 */
+	public static final byte OUTBOUND = 3;
+
+	/**
+	 * The monitor stopped.
+	 */
+	public static final byte CLOSE = 4;
+
+	/**
+	 * Kind of a data connection's session.
+	 */
+	public static final byte DATA_SESSION = 'D';
+
+	/**
+	 * Kind of a game lobby connection's session.
+	 */
+	public static final byte LOBBY_SESSION = 'L';
+
+	/**
+	 * Size of the window mapped onto the file at a time.
+	 */
+	private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The message of a record that has none.
+	 */
+	private static final byte[] NO_BYTES = new byte[0];
+
+	/**
+	 * The capture shared by every monitor in this process.
+	 */
+	private static TrafficCapture ourInstance;
+
+	/**
+	 * True once the shared capture has been looked up.
+	 */
+	private static boolean ourInitialized;
+
+	/**
+	 * The log file.
+	 */
+	private final FileChannel myChannel;
+
+	/**
+	 * Most bytes the log may grow to.
+	 */
+	private final long myMaxSize;
+
+	/**
+	 * When the capture started, from System.nanoTime().
+	 */
+	private final long myStartTime;
+
+	/**
+	 * The next session number.
+	 */
+	private final AtomicInteger myNextSession;
+
+	/**
+	 * The mapped window records are written to.
+	 */
+	private MappedByteBuffer mySegment;
+
+	/**
+	 * File offset of the window's first byte.
+	 */
+	private long mySegmentStart;
+
+	/**
+	 * File offset of the next record.
+	 */
+	private long myPosition;
+
+	/**
+	 * Number of records dropped because the log was full or closed.
+	 */
+	private long myDropped;
+
+	/**
+	 * True once the log has been closed.
+	 */
+	private boolean myClosed;
+
+	/**
+	 * Start a capture, replacing any existing file.
+	 * @param theFile the log file.
+	 * @param theMaxSize most bytes the log may grow to.
+	 * @throws IOException if the file can't be created.
+	 */
+	public TrafficCapture(Path theFile, long theMaxSize) throws IOException {
+		if (theMaxSize < HEADER_SIZE || theMaxSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The capture size: " + theMaxSize + " is invalid.");
+
+		myChannel = FileChannel.open(theFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		myMaxSize = theMaxSize;
+		myStartTime = System.nanoTime();
+		myNextSession = new AtomicInteger(1);
+		myDropped = 0;
+		myClosed = false;
+
+		map(0, HEADER_SIZE);
+		mySegment.putInt(0, MAGIC);
+		mySegment.putInt(4, VERSION);
+		mySegment.putLong(8, System.currentTimeMillis());
+		mySegment.putLong(16, myStartTime);
+		myPosition = HEADER_SIZE;
+	}
+
+	/**
+	 * Return the shared capture, starting it on first use if a
+	 * capture file is configured. The capture is closed when the
+	 * process exits.
+	 * @return the shared capture, or null if capture is off.
+	 */
+	public static synchronized TrafficCapture getInstance() {
+		if (!ourInitialized) {
+			ourInitialized = true;
+
+			if (Config.CAPTURE_FILE != null) {
+				try {
+					ourInstance = new TrafficCapture(Paths.get(Config.CAPTURE_FILE), Config.CAPTURE_MAX_SIZE);
+					Runtime.getRuntime().addShutdownHook(new Thread(ourInstance::close));
+				} catch (IOException e) {
+					EventLog.getInstance().log(LogLevel.ERROR, "Could not open the traffic capture", e);
+				}
+			}
+		}
+
+		return ourInstance;
+	}
+
+	/**
+	 * Start recording a new session.
+	 * @param theKind DATA_SESSION or LOBBY_SESSION.
+	 * @return the session's number.
+	 */
+	public int open(byte theKind) {
+		int session = myNextSession.getAndIncrement();
+		record(OPEN, session, System.nanoTime(), new byte[] {theKind}, 0, 1);
+		return session;
+	}
+
+	/**
+	 * Stop recording a session.
+	 * @param theSession the session's number.
+	 */
+	public void end(int theSession) {
+		record(CLOSE, theSession, System.nanoTime(), NO_BYTES, 0, 0);
+	}
+
+	/**
+	 * Append a record.
+	 * @param theType the record's type.
+	 * @param theSession the session's number.
+	 * @param theTime when it happened, from System.nanoTime().
+	 * @param theBytes the buffer holding the message.
+	 * @param theOffset index of the message's first byte.
+	 * @param theLength the message's length.
+	 */
+	public synchronized void record(byte theType, int theSession, long theTime,
+			byte[] theBytes, int theOffset, int theLength) {
+		int length = RECORD_HEADER_SIZE + theLength;
+
+		// Leave room for the end marker.
+		if (myClosed || myPosition + length + 4 > myMaxSize) {
+			myDropped++;
+			return;
+		}
+
+		if (myPosition + length + 4 > mySegmentStart + mySegment.capacity()) {
+			try {
+				map(myPosition, Math.max(SEGMENT_SIZE, length + 4));
+			} catch (IOException e) {
+				EventLog.getInstance().log(LogLevel.ERROR, "Could not extend the traffic capture", e);
+				myClosed = true;
+				myDropped++;
+				return;
+			}
+		}
+
+		int start = (int) (myPosition - mySegmentStart);
+		mySegment.position(start + 4);
+		mySegment.put(theType);
+		mySegment.putInt(theSession);
+		mySegment.putLong(theTime - myStartTime);
+		mySegment.put(theBytes, theOffset, theLength);
+
+		// The length goes in last, so a reader never sees half a record.
+		mySegment.putInt(start, length);
+		myPosition += length;
+	}
+
+	/**
+	 * Return the number of records that could not be written.
+	 * @return the dropped records.
+	 */
+	public synchronized long getDropped() {
+		return myDropped;
+	}
+
+	/**
+	 * Stop capturing and trim the file to the records written.
+	 * Safe to call more than once.
+	 */
+	public synchronized void close() {
+		if (myClosed && !myChannel.isOpen()) {
+			return;
+		}
+
+		myClosed = true;
+		try {
+			mySegment.force();
+			myChannel.truncate(myPosition);
+			myChannel.close();
+		} catch (IOException e) {
+			EventLog.getInstance().log(LogLevel.ERROR, "Could not close the traffic capture", e);
+		}
+
+		if (myDropped > 0) {
+			EventLog.getInstance().log(LogLevel.WARN, null, 0, "Traffic capture dropped records", myDropped, null);
+		}
+	}
+
+	/**
+	 * Map a new window onto the file.
+	 * @param theStart file offset of the window.
+	 * @param theSize size of the window.
+	 * @throws IOException if the file can't be mapped.
+	 */
+	private void map(long theStart, int theSize) throws IOException {
+		// The old window is written out by the operating system;
+		// forcing it here would stall the event loops.
+		long size = Math.min(theSize, myMaxSize - theStart);
+		mySegment = myChannel.map(FileChannel.MapMode.READ_WRITE, theStart, size);
+		mySegmentStart = theStart;
+	}
+}
@@ -0,0 +1,221 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a log written by TrafficCapture back through detached
+ * data and game lobby monitors, either as fast as possible or
+ * at the speed it was recorded. Every captured session gets its
+ * own monitor and client, and every line the session read goes
+ * through the same decoding and processSocketData path it took
+ * when it was captured, so a lag spike can be reproduced and
+ * profiled offline. Replies are encoded and then discarded.
+ *
+ * Usage: TrafficReplayer capture-file [--speed 1] [--session n]
+ * @author Damiene Stewart
+ */
+public class TrafficReplayer {
+
+	/**
+	 * The capture, mapped into memory.
+	 */
+	private final ByteBuffer myLog;
+
+	/**
+	 * Number of lines fed to monitors by the last replay.
+	 */
+	private long myLinesFed;
+
+	/**
+	 * Number of sessions created by the last replay.
+	 */
+	private int mySessions;
+
+	/**
+	 * Open a capture for replay.
+	 * @param theFile the capture file.
+	 * @throws IOException if the file can't be read or isn't a capture.
+	 */
+	public TrafficReplayer(Path theFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ)) {
+			MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (log.limit() < TrafficCapture.HEADER_SIZE || log.getInt(0) != TrafficCapture.MAGIC
+					|| log.getInt(4) != TrafficCapture.VERSION) {
+				throw new IOException(theFile + " is not a traffic capture.");
+			}
+			myLog = log;
+		}
+	}
+
+	/**
+	 * Replay a capture from the command line and report how long
+	 * it took and how quickly the monitors replied.
+	 * @param theArgs the capture file, then options.
+	 * @throws IOException if the capture can't be read.
+	 */
+	public static void main(String... theArgs) throws IOException {
+		if (theArgs.length == 0 || theArgs.length % 2 == 0) {
+			System.err.println("Usage: TrafficReplayer <capture file> [--speed 1] [--session n]");
+			return;
+		}
+
+		double speed = 0;
+		int session = 0;
+		for (int i = 1; i < theArgs.length; i += 2) {
+			switch (theArgs[i]) {
+			case "--speed":
+				speed = Double.parseDouble(theArgs[i + 1]);
+				break;
+			case "--session":
+				session = Integer.parseInt(theArgs[i + 1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + theArgs[i]);
+			}
+		}
+
+		TrafficReplayer replayer = new TrafficReplayer(Paths.get(theArgs[0]));
+		long start = System.nanoTime();
+		replayer.replay(speed, session);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("Replayed " + replayer.getLinesFed() + " lines in " + replayer.getSessions()
+				+ " sessions in " + elapsed / 1000000 + " ms ("
+				+ (long) (replayer.getLinesFed() * 1e9 / Math.max(1, elapsed)) + " lines/s).");
+		System.out.println("Echo latency: " + LatencyStats.ECHO.getTotal());
+		System.out.println("Pong latency: " + LatencyStats.PONG.getTotal());
+	}
+
+	/**
+	 * Replay the capture on the calling thread.
+	 * @param theSpeed 1 to replay at the recorded speed, 2 for
+	 * twice as fast and so on, or 0 for as fast as possible.
+	 * @param theSession the only session to replay, or 0 for all.
+	 */
+	public void replay(double theSpeed, int theSession) {
+		if (theSpeed < 0)
+			throw new IllegalArgumentException("The speed: " + theSpeed + " is invalid.");
+
+		Map<Integer, Monitor> monitors = new HashMap<Integer, Monitor>();
+		byte[] line = new byte[Config.READ_BUFFER_SIZE];
+		ByteBuffer log = myLog.duplicate();
+		long firstTime = -1;
+		long startTime = System.nanoTime();
+		int position = TrafficCapture.HEADER_SIZE;
+
+		myLinesFed = 0;
+		mySessions = 0;
+
+		while (position + 4 <= log.limit()) {
+			int length = log.getInt(position);
+			if (length < TrafficCapture.RECORD_HEADER_SIZE || position + length > log.limit()) {
+				break;
+			}
+
+			byte type = log.get(position + 4);
+			int session = log.getInt(position + 5);
+			long time = log.getLong(position + 9);
+			int messageStart = position + TrafficCapture.RECORD_HEADER_SIZE;
+			int messageLength = length - TrafficCapture.RECORD_HEADER_SIZE;
+			position += length;
+
+			if (theSession != 0 && session != theSession) {
+				continue;
+			}
+
+			if (theSpeed > 0) {
+				if (firstTime < 0) {
+					firstTime = time;
+				}
+				waitUntil(startTime + (long) ((time - firstTime) / theSpeed));
+			}
+
+			switch (type) {
+			case TrafficCapture.OPEN:
+				monitors.put(session, createMonitor(log.get(messageStart)));
+				mySessions++;
+				break;
+
+			case TrafficCapture.INBOUND:
+				Monitor monitor = monitors.get(session);
+				if (monitor != null) {
+					if (line.length < messageLength + 1) {
+						line = new byte[messageLength + 1];
+					}
+					log.position(messageStart);
+					log.get(line, 0, messageLength);
+					line[messageLength] = '\n';
+					monitor.feed(line, 0, messageLength + 1);
+					myLinesFed++;
+				}
+				break;
+
+			case TrafficCapture.CLOSE:
+				Monitor closed = monitors.remove(session);
+				if (closed != null) {
+					closed.stopMonitor();
+				}
+				break;
+
+			default:
+				// What was written is in the log for reading, not replaying.
+				break;
+			}
+		}
+
+		for (Monitor monitor : monitors.values()) {
+			monitor.stopMonitor();
+		}
+	}
+
+	/**
+	 * Return the number of lines fed by the last replay.
+	 * @return the lines fed.
+	 */
+	public long getLinesFed() {
+		return myLinesFed;
+	}
+
+	/**
+	 * Return the number of sessions created by the last replay.
+	 * @return the sessions.
+	 */
+	public int getSessions() {
+		return mySessions;
+	}
+
+	/**
+	 * Create a detached monitor for a captured session.
+	 * @param theKind the session's kind.
+	 * @return the monitor.
+	 */
+	private static Monitor createMonitor(byte theKind) {
+		Client client = new Client(theLoggedIn -> { });
+
+		if (theKind == TrafficCapture.LOBBY_SESSION) {
+			return new GameLobbyMonitor(client, (SocketChannel) null, 0);
+		}
+		return new DataMonitor(client, (SocketChannel) null);
+	}
+
+	/**
+	 * Wait until the given time.
+	 * @param theTime the time, from System.nanoTime().
+	 */
+	private static void waitUntil(long theTime) {
+		long remaining;
+		while ((remaining = theTime - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+}
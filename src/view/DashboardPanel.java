@@ -0,0 +1,189 @@
+package view;
+
+import java.util.Locale;
+import java.util.Map;
+
+import controller.UpdateBus;
+import javafx.geometry.Insets;
+import javafx.scene.control.Label;
+import javafx.scene.layout.GridPane;
+import model.PerformanceSnapshot;
+
+/**
+ * Shows how the bot is performing: the state of its sockets,
+ * message rates by opcode, echo latency, the server clock,
+ * queue depths and the JVM's heap and garbage collection. The
+ * panel only shows the snapshots it is handed; it never reads
+ * the model itself.
+ * @author Damiene Stewart
+ */
+public class DashboardPanel extends GridPane {
+
+	/**
+	 * Most opcodes listed for each socket.
+	 */
+	private static final int MAX_OPCODES = 8;
+
+	/**
+	 * State of the data socket.
+	 */
+	private Label myDataState;
+
+	/**
+	 * State of the lobby socket.
+	 */
+	private Label myLobbyState;
+
+	/**
+	 * Data messages read per second, by opcode.
+	 */
+	private Label myDataRates;
+
+	/**
+	 * Lobby messages read per second, by opcode.
+	 */
+	private Label myLobbyRates;
+
+	/**
+	 * Messages written per second.
+	 */
+	private Label myWriteRates;
+
+	/**
+	 * Echo latency percentiles.
+	 */
+	private Label myEchoLatency;
+
+	/**
+	 * The lobby's estimate of the server's clock.
+	 */
+	private Label myClock;
+
+	/**
+	 * Queue depths.
+	 */
+	private Label myQueues;
+
+	/**
+	 * Updates carried to the view.
+	 */
+	private Label myUpdates;
+
+	/**
+	 * Heap use.
+	 */
+	private Label myHeap;
+
+	/**
+	 * Garbage collection.
+	 */
+	private Label myGc;
+
+	/**
+	 * Number of rows added so far.
+	 */
+	private int myRows;
+
+	/**
+	 * Construct a new, empty dashboard.
+	 */
+	public DashboardPanel() {
+		setHgap(10);
+		setVgap(4);
+		setPadding(new Insets(10, 10, 10, 10));
+
+		myRows = 0;
+		myDataState = addRow("Data socket:");
+		myLobbyState = addRow("Lobby socket:");
+		myDataRates = addRow("Data in (per opcode):");
+		myLobbyRates = addRow("Lobby in (per opcode):");
+		myWriteRates = addRow("Written:");
+		myEchoLatency = addRow("Echo latency:");
+		myClock = addRow("Server clock:");
+		myQueues = addRow("Queued:");
+		myUpdates = addRow("GUI updates:");
+		myHeap = addRow("Heap:");
+		myGc = addRow("Garbage collection:");
+	}
+
+	/**
+	 * Show a snapshot. Must be called on the Java FX application thread.
+	 * @param theSnapshot the snapshot.
+	 * @param theUpdates the bus carrying updates to the view.
+	 */
+	public void show(PerformanceSnapshot theSnapshot, UpdateBus theUpdates) {
+		myDataState.setText(theSnapshot.getDataState());
+		myLobbyState.setText(theSnapshot.getLobbyState());
+		myDataRates.setText(formatRates(theSnapshot.getDataRates()));
+		myLobbyRates.setText(formatRates(theSnapshot.getLobbyRates()));
+		myWriteRates.setText(String.format(Locale.ROOT, "data %.1f/s, lobby %.1f/s",
+				theSnapshot.getDataWriteRate(), theSnapshot.getLobbyWriteRate()));
+		myEchoLatency.setText(String.format(Locale.ROOT, "p50 %s, p99 %s, max %s",
+				formatNanos(theSnapshot.getEchoMedian()), formatNanos(theSnapshot.getEchoP99()),
+				formatNanos(theSnapshot.getEchoMax())));
+		myClock.setText(theSnapshot.isClockSynchronized()
+				? String.format(Locale.ROOT, "%+d ms from local, jitter %s",
+						theSnapshot.getClockOffset(), formatNanos(theSnapshot.getClockJitter()))
+				: "Not synchronized");
+		myQueues.setText(String.format(Locale.ROOT, "data %d B, lobby %d B, loop tasks %d, GUI updates %d",
+				theSnapshot.getDataQueued(), theSnapshot.getLobbyQueued(), theSnapshot.getLoopTasks(),
+				theUpdates.getPending()));
+		myUpdates.setText(String.format(Locale.ROOT, "%d applied in %d batches, %d merged, %d dropped",
+				theUpdates.getApplied(), theUpdates.getBatches(), theUpdates.getMerged(),
+				theUpdates.getDropped()));
+		myHeap.setText(theSnapshot.getHeapMax() < 0
+				? String.format(Locale.ROOT, "%d MB used", theSnapshot.getHeapUsed() >> 20)
+				: String.format(Locale.ROOT, "%d of %d MB used", theSnapshot.getHeapUsed() >> 20,
+						theSnapshot.getHeapMax() >> 20));
+		myGc.setText(String.format(Locale.ROOT, "%d collections, %d ms in %.0f s",
+				theSnapshot.getGcCount(), theSnapshot.getGcTime(), theSnapshot.getInterval()));
+	}
+
+	/**
+	 * Add a row with a name and an empty value.
+	 * @param theName the row's name.
+	 * @return the label showing the row's value.
+	 */
+	private Label addRow(String theName) {
+		Label value = new Label("-");
+		add(new Label(theName), 0, myRows);
+		add(value, 1, myRows);
+		myRows++;
+		return value;
+	}
+
+	/**
+	 * Describe message rates, busiest opcodes first.
+	 * @param theRates the rates by opcode.
+	 * @return the description.
+	 */
+	private static String formatRates(Map<Integer, Double> theRates) {
+		if (theRates.isEmpty()) {
+			return "none";
+		}
+
+		StringBuilder sb = new StringBuilder();
+		theRates.entrySet().stream()
+				.sorted((theFirst, theSecond) -> Double.compare(theSecond.getValue(), theFirst.getValue()))
+				.limit(MAX_OPCODES)
+				.forEach(theEntry -> {
+					if (sb.length() > 0) {
+						sb.append(", ");
+					}
+					sb.append(String.format(Locale.ROOT, "%d: %.1f/s", theEntry.getKey(), theEntry.getValue()));
+				});
+		return sb.toString();
+	}
+
+	/**
+	 * Describe a duration briefly.
+	 * @param theNanos the duration in nanoseconds.
+	 * @return the duration in microseconds or milliseconds.
+	 */
+	private static String formatNanos(long theNanos) {
+		if (theNanos < 1000000) {
+			return (theNanos / 1000) + " us";
+		}
+		return String.format(Locale.ROOT, "%.1f ms", theNanos / 1e6);
+	}
+}
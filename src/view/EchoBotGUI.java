@@ -1,23 +1,27 @@
 package view;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.sun.glass.events.KeyEvent;
 
 import controller.Controller;
+import controller.UpdateBus;
 import javafx.application.Application;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
 import javafx.geometry.HPos;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
-import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.PasswordField;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.image.Image;
@@ -28,6 +32,7 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Priority;
 import javafx.stage.Stage;
 import model.Friend;
+import model.PerformanceSnapshot;
 
 /**
  * GUI class for application. This is a Java FX
@@ -37,6 +42,18 @@ import model.Friend;
  */
 public class EchoBotGUI extends Application {
 	
+	/**
+	 * Height of a row in the friend list. A fixed height lets the
+	 * list lay out only the rows in view, however many friends
+	 * there are.
+	 */
+	private static final double FRIEND_CELL_HEIGHT = 24;
+	
+	/**
+	 * Number of friends shown at once.
+	 */
+	private static final int VISIBLE_FRIENDS = 12;
+	
 	/**
 	 * A reference to the controller class that will work with the
 	 * model to get things done.
@@ -67,6 +84,11 @@ public class EchoBotGUI extends Application {
 	 */
 	private BooleanProperty myShowLoadingImage;
 	
+	/**
+	 * Shows how the bot is performing, once the main scene exists.
+	 */
+	private DashboardPanel myDashboard;
+	
 	/**
 	 * Create an instance of the GUI class, initializing the
 	 * instance variables.
@@ -77,6 +99,7 @@ public class EchoBotGUI extends Application {
 		myStage = null;
 		myLoginScene = null;
 		myMainScene = null;
+		myDashboard = null;
 	}
 	
 	/**
@@ -234,36 +257,90 @@ public class EchoBotGUI extends Application {
 		// Create labels.
 		Label acceptRequestsFrom = new Label("Accepting requests from:");
 		
-		// Create list.
-		ObservableList<Friend> potentialRequesters = FXCollections.observableArrayList(myController.getFriendList());
+		// Create search field.
+		TextField searchField = new TextField();
+		searchField.setPromptText("Search friends by name or ID.");
 		
-		// Create list view.
-		ComboBox<Friend> potentialRequestersView = new ComboBox<Friend>(potentialRequesters);
+		// Create list. It stays bound to the controller's friends,
+		// so later changes show up without rebuilding the scene.
+		FilteredList<Friend> potentialRequesters = new FilteredList<Friend>(myController.getFriends());
+		searchField.textProperty().addListener((observable, oldText, newText) -> {
+			String query = newText.trim();
+			potentialRequesters.setPredicate(query.isEmpty() ? null : f -> matches(f, query));
+		});
+		
+		// Create list view. Only the rows in view get cells.
+		ListView<Friend> potentialRequestersView = new ListView<Friend>(potentialRequesters);
+		potentialRequestersView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+		potentialRequestersView.setFixedCellSize(FRIEND_CELL_HEIGHT);
+		potentialRequestersView.setPrefHeight(FRIEND_CELL_HEIGHT * VISIBLE_FRIENDS + 2);
+		potentialRequestersView.setCellFactory(view -> new ListCell<Friend>() {
+			@Override
+			protected void updateItem(Friend theFriend, boolean theEmpty) {
+				super.updateItem(theFriend, theEmpty);
+				setText(theEmpty || theFriend == null ? null : theFriend.getUserName());
+			}
+		});
 		
 		// Create set button.
 		Button goButton = new Button("Go");
 		goButton.setOnAction(event -> {
-			Friend f = potentialRequestersView.getValue();
-			if (f != null) {
-				myController.setFriend(f);
+			List<Friend> selected = new ArrayList<Friend>(potentialRequestersView.getSelectionModel().getSelectedItems());
+			if (!selected.isEmpty()) {
+				// One friend or many, the same way, so the bot keeps its lobby either way.
+				myController.setFriends(selected);
 				Alert info = new Alert(AlertType.INFORMATION);
 				info.setHeaderText(null);
-				info.setContentText("Bot will accept requests from " + f.getUserName() + ".");
+				info.setContentText("Bot will accept requests from " + (selected.size() == 1
+						? selected.get(0).getUserName() : selected.size() + " friends") + ".");
 				info.show();
 			}
 		});
 		
 		// Set alignment.
 		GridPane.setHalignment(acceptRequestsFrom, HPos.LEFT);
+		GridPane.setHalignment(searchField, HPos.RIGHT);
 		GridPane.setHalignment(potentialRequestersView, HPos.RIGHT);
 		GridPane.setHalignment(goButton, HPos.RIGHT);
 		
 		// Add elements.
 		grid.add(acceptRequestsFrom, 0, 0);
-		grid.add(potentialRequestersView, 1, 0);
-		grid.add(goButton, 1, 1);
+		grid.add(searchField, 1, 0);
+		grid.add(potentialRequestersView, 1, 1);
+		grid.add(goButton, 1, 2);
+		
+		// Create dashboard.
+		myDashboard = new DashboardPanel();
 		
 		root.setCenter(grid);
+		root.setBottom(myDashboard);
+	}
+	
+	/**
+	 * Returns true if a friend's name or ID contains the search
+	 * text, ignoring case. Nothing is allocated, so filtering
+	 * thousands of friends on every key stroke stays quick.
+	 * @param theFriend the friend.
+	 * @param theQuery the search text.
+	 * @return true if the friend should be shown.
+	 */
+	private static boolean matches(Friend theFriend, String theQuery) {
+		return contains(theFriend.getUserName(), theQuery) || contains(theFriend.getPlayerID(), theQuery);
+	}
+	
+	/**
+	 * Returns true if some text contains another, ignoring case.
+	 * @param theText the text to search.
+	 * @param theQuery the text to find.
+	 * @return true if the query is found.
+	 */
+	private static boolean contains(String theText, String theQuery) {
+		for (int i = 0; i <= theText.length() - theQuery.length(); i++) {
+			if (theText.regionMatches(true, i, theQuery, 0, theQuery.length())) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	/**
@@ -289,6 +366,17 @@ public class EchoBotGUI extends Application {
 		myLoginScene = null;
 	}
 	
+	/**
+	 * Show a performance snapshot on the dashboard.
+	 * @param theSnapshot the snapshot.
+	 * @param theUpdates the bus carrying updates to the view.
+	 */
+	public void showPerformance(PerformanceSnapshot theSnapshot, UpdateBus theUpdates) {
+		if (myDashboard != null) {
+			myDashboard.show(theSnapshot, theUpdates);
+		}
+	}
+	
 	/**
 	 * Show the alert if the user has neglected to enter
 	 * correct details.
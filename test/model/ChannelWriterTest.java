@@ -0,0 +1,146 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ChannelWriter's conflated messages and largest size,
+ * using a writer without a channel.
+ * @author Damiene Stewart
+ */
+public class ChannelWriterTest {
+
+	/**
+	 * The writer.
+	 */
+	private ChannelWriter myWriter;
+
+	/**
+	 * What the writer flushed.
+	 */
+	private ByteArrayOutputStream myOutput;
+
+	/**
+	 * Create the writer.
+	 */
+	@Before
+	public void setUp() {
+		myWriter = new ChannelWriter(null);
+		myOutput = new ByteArrayOutputStream();
+		myWriter.copyDiscardedTo(myOutput);
+	}
+
+	/**
+	 * A newer conflated message replaces one that hasn't been sent.
+	 */
+	@Test
+	public void testConflatedMessageReplaced() {
+		myWriter.writeConflatedArray(0, 0, 3, 1, 10, 20, 0, 0);
+		myWriter.writeConflatedArray(0, 0, 3, 2, 11, 21, 0, 0);
+		myWriter.flush();
+
+		assertEquals("[3,2,11,21,0,0]\n", output());
+		assertEquals(1, myWriter.getConflatedCount());
+	}
+
+	/**
+	 * A message written after a conflated one is sent after it.
+	 */
+	@Test
+	public void testConflatedMessageKeepsOrder() {
+		myWriter.writeArray(4, 7);
+		myWriter.writeConflatedArray(0, 0, 3, 1, 10, 20, 0, 0);
+		myWriter.writeArray(9, 100, 2, 1, 0, 4);
+		myWriter.writeConflatedArray(0, 0, 3, 2, 11, 21, 0, 0);
+		myWriter.flush();
+
+		assertEquals("[4,7]\n[3,1,10,20,0,0]\n[9,100,2,1,0,4]\n[3,2,11,21,0,0]\n", output());
+		assertEquals(0, myWriter.getConflatedCount());
+	}
+
+	/**
+	 * Latency is recorded once per message that joins the buffer,
+	 * from when the latest message's answer was read.
+	 */
+	@Test
+	public void testConflatedLatencyRecordedWhenAppended() {
+		LatencyHistogram latency = new LatencyHistogram();
+		myWriter.measureConflated(0, latency);
+
+		long readTime = System.nanoTime();
+		myWriter.writeConflatedArray(0, readTime - 5000000, 3, 1, 10, 20, 0, 0);
+		myWriter.writeConflatedArray(0, readTime, 3, 2, 11, 21, 0, 0);
+		assertEquals(0, latency.getCount());
+
+		myWriter.flush();
+		assertEquals(1, latency.getCount());
+		assertTrue(latency.getMax() < 5000000);
+	}
+
+	/**
+	 * Near the buffer's largest size, a waiting conflated message
+	 * is dropped to make room for one that isn't conflated.
+	 */
+	@Test
+	public void testConflatedDroppedNearLimit() {
+		long dropped = ChannelWriter.getTotalDropped();
+		myWriter.writeBytes(filler(Config.WRITE_BUFFER_MAX - 200));
+		myWriter.writeConflatedArray(0, 0, 3, 1, 10, 20, 0, 0);
+		myWriter.writeArray(4, 7);
+		myWriter.flush();
+
+		assertTrue(output().endsWith("x\n[4,7]\n"));
+		assertEquals(Config.WRITE_BUFFER_MAX - 200 + 6, myOutput.size());
+		assertEquals(dropped + 1, ChannelWriter.getTotalDropped());
+		assertEquals(2, myWriter.getMessageCount());
+	}
+
+	/**
+	 * A message that doesn't fit even at the buffer's largest
+	 * size discards everything unsent, and everything written
+	 * after it, and tells the owner once.
+	 */
+	@Test
+	public void testOverflowDiscards() {
+		AtomicInteger overflows = new AtomicInteger();
+		myWriter.setOverflow(overflows::incrementAndGet);
+		myWriter.writeBytes(filler(Config.WRITE_BUFFER_MAX - 2));
+		myWriter.writeArray(4, 7);
+		assertEquals(1, overflows.get());
+		assertEquals(0, myWriter.getQueuedBytes());
+
+		myWriter.writeArray(4, 8);
+		myWriter.writeConflatedArray(0, 0, 3, 1, 10, 20, 0, 0);
+		myWriter.flush();
+		assertEquals("", output());
+		assertEquals(1, overflows.get());
+		assertEquals(1, myWriter.getMessageCount());
+	}
+
+	/**
+	 * Return a message of x's.
+	 * @param theLength the message's length, line break included.
+	 * @return the encoded message.
+	 */
+	private static byte[] filler(int theLength) {
+		char[] chars = new char[theLength - 1];
+		Arrays.fill(chars, 'x');
+		return ChannelWriter.encode(new String(chars));
+	}
+
+	/**
+	 * Return what the writer has flushed.
+	 * @return the output as text.
+	 */
+	private String output() {
+		return new String(myOutput.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,147 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for Client, with lobbies that are detached monitors
+ * and no spare connections.
+ * @author Damiene Stewart
+ */
+public class ClientTest {
+
+	/**
+	 * Number of threads sending invites each round.
+	 */
+	private static final int INVITERS = 4;
+
+	/**
+	 * Number of rounds of invites and lobby ends.
+	 */
+	private static final int ROUNDS = 2000;
+
+	/**
+	 * Each round the bot joins a lobby of the lowest priority,
+	 * which then ends while invites that outrank it arrive on
+	 * other threads. Every round has to leave the bot in exactly
+	 * one active lobby, the one for the highest priority invite:
+	 * none of them may be lost.
+	 * @throws Exception if a thread fails or times out.
+	 */
+	@Test
+	public void testConcurrentInvitesAndEnds() throws Exception {
+		Queue<GameLobbyMonitor> created = new ConcurrentLinkedQueue<GameLobbyMonitor>();
+		Client client = new Client(theLoggedIn -> { }) {
+			@Override
+			protected GameLobbyMonitor createLobby(String theIP, int theToken, int thePriority) {
+				GameLobbyMonitor lobby = new GameLobbyMonitor(this, (SocketChannel) null, theToken, thePriority);
+				created.add(lobby);
+				return lobby;
+			}
+
+			@Override
+			protected void preconnect(String theIP) {
+				// Leave the shared connector alone.
+			}
+		};
+		AtomicReference<GameLobbyMonitor> ending = new AtomicReference<GameLobbyMonitor>();
+		CyclicBarrier start = new CyclicBarrier(INVITERS + 2);
+		CyclicBarrier end = new CyclicBarrier(INVITERS + 2);
+		List<Thread> threads = new ArrayList<Thread>();
+		Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+		threads.add(new Thread(() -> {
+			try {
+				for (int round = 0; round < ROUNDS; round++) {
+					start.await(10, TimeUnit.SECONDS);
+					ending.get().stopMonitor();
+					end.await(10, TimeUnit.SECONDS);
+				}
+			} catch (Exception e) {
+				failures.add(e);
+			}
+		}));
+		for (int i = 0; i < INVITERS; i++) {
+			int inviter = i;
+			threads.add(new Thread(() -> {
+				try {
+					for (int round = 0; round < ROUNDS; round++) {
+						start.await(10, TimeUnit.SECONDS);
+						client.joinCustomRace("127.0.0.1", round, priority(round, inviter));
+						end.await(10, TimeUnit.SECONDS);
+					}
+				} catch (Exception e) {
+					failures.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		for (int round = 0; round < ROUNDS && failures.isEmpty(); round++) {
+			GameLobbyMonitor previous = client.getGameLobbyMonitor();
+			if (previous != null) {
+				previous.stopMonitor();
+			}
+			client.joinCustomRace("127.0.0.1", -1, 0);
+			ending.set(client.getGameLobbyMonitor());
+			start.await(10, TimeUnit.SECONDS);
+			end.await(10, TimeUnit.SECONDS);
+
+			GameLobbyMonitor lobby = client.getGameLobbyMonitor();
+			List<GameLobbyMonitor> active = new ArrayList<GameLobbyMonitor>();
+			for (GameLobbyMonitor each : created) {
+				if (each.isActive()) {
+					active.add(each);
+				}
+			}
+			assertEquals("active lobbies after round " + round, 1, active.size());
+			assertSame("lobby after round " + round, active.get(0), lobby);
+			assertTrue("lobby status after round " + round, client.getLobbyStatus());
+			assertEquals("priority after round " + round, maxPriority(round), lobby.getPriority());
+			created.retainAll(active);
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+		assertTrue("failures " + failures, failures.isEmpty());
+		client.getGameLobbyMonitor().stopMonitor();
+	}
+
+	/**
+	 * Return the priority of an inviter's invite in a round.
+	 * Some rounds every invite has the same priority; all of
+	 * them outrank the lobby that ends.
+	 * @param theRound the round.
+	 * @param theInviter the inviter.
+	 * @return the priority.
+	 */
+	private static int priority(int theRound, int theInviter) {
+		return theRound % 2 == 0 ? 1 : 1 + (theInviter * 7 + theRound) % INVITERS;
+	}
+
+	/**
+	 * Return the highest priority of the invites in a round.
+	 * @param theRound the round.
+	 * @return the priority.
+	 */
+	private static int maxPriority(int theRound) {
+		int max = Integer.MIN_VALUE;
+		for (int i = 0; i < INVITERS; i++) {
+			max = Math.max(max, priority(theRound, i));
+		}
+		return max;
+	}
+}
@@ -0,0 +1,178 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for ClockSync, against a synthetic server clock that is
+ * skewed and drifts, with frames that take a jittery time to
+ * arrive, some delayed far longer, and a reset.
+ * @author Damiene Stewart
+ */
+public class ClockSyncTest {
+
+	/**
+	 * Local time, in nanoseconds, the first frame is sent.
+	 */
+	private static final long START = 1000000000000L;
+
+	/**
+	 * Time, in nanoseconds, between clock frames. Long enough
+	 * that the window spans the time needed to measure drift.
+	 */
+	private static final long PERIOD = 2000000000L;
+
+	/**
+	 * How far, in nanoseconds, the server's clock is ahead.
+	 */
+	private static final long SKEW = 5000000000L;
+
+	/**
+	 * How much faster the server's clock runs.
+	 */
+	private static final double DRIFT = 100e-6;
+
+	/**
+	 * Least time, in nanoseconds, a frame takes to arrive. The
+	 * estimate can't see it, so it lags the server by this much.
+	 */
+	private static final long TRANSIT = 20000000L;
+
+	/**
+	 * Most extra time, in nanoseconds, a frame takes to arrive.
+	 */
+	private static final long JITTER = 500000L;
+
+	/**
+	 * Extra time, in nanoseconds, an outlier takes to arrive.
+	 */
+	private static final long OUTLIER = 50000000L;
+
+	/**
+	 * Most error, in nanoseconds, allowed in the estimate.
+	 */
+	private static final long MAX_ERROR = 3000000L;
+
+	/**
+	 * How far, in nanoseconds, the reset sets the server's clock back.
+	 */
+	private static final long RESET = 30000000000L;
+
+	/**
+	 * Samples rejected in a row before the clock is taken to be
+	 * reset: one less than ClockSync's window.
+	 */
+	private static final int RESET_REJECTIONS = 7;
+
+	/**
+	 * Number of frames before the reset, and after it.
+	 */
+	private static final int FRAMES = 60;
+
+	/**
+	 * Draws the jitter, the same every run.
+	 */
+	private final Random myRandom = new Random(42);
+
+	/**
+	 * The server clock's skew; set back by a reset.
+	 */
+	private long mySkew = SKEW;
+
+	/**
+	 * The estimate stays within a few milliseconds of the server,
+	 * less the transit time, and follows its drift, while every
+	 * frame delayed far longer than the jitter is rejected.
+	 */
+	@Test
+	public void testFollowsServer() {
+		ClockSync clock = new ClockSync();
+		int outliers = 0;
+		for (int i = 0; i < FRAMES; i++) {
+			boolean outlier = i % 7 == 3;
+			long received = frame(clock, i, outlier ? OUTLIER : 0);
+			if (outlier) {
+				outliers++;
+			}
+			assertClose(clock, received + PERIOD / 2, "frame " + i);
+		}
+
+		assertTrue(clock.isSynchronized());
+		assertEquals(outliers, clock.getRejected());
+		assertEquals(DRIFT, clock.getDrift(), 50e-6);
+		assertTrue("jitter " + clock.getJitter(), clock.getJitter() > 0 && clock.getJitter() < JITTER);
+	}
+
+	/**
+	 * After the server's clock is set back, a run of samples is
+	 * rejected before the estimate starts over from the new
+	 * clock, and then it is as close as before.
+	 */
+	@Test
+	public void testRecoversFromReset() {
+		ClockSync clock = new ClockSync();
+		for (int i = 0; i < FRAMES; i++) {
+			frame(clock, i, 0);
+		}
+		assertEquals(0, clock.getRejected());
+
+		mySkew -= RESET;
+		for (int i = FRAMES; i < 2 * FRAMES; i++) {
+			long received = frame(clock, i, 0);
+			if (i - FRAMES < RESET_REJECTIONS) {
+				assertEquals(i - FRAMES + 1, clock.getRejected());
+			} else {
+				assertClose(clock, received + PERIOD / 2, "frame " + i);
+			}
+		}
+		assertEquals(RESET_REJECTIONS, clock.getRejected());
+	}
+
+	/**
+	 * Send a clock frame, and a ping half a period later.
+	 * @param theClock the clock the frame is added to.
+	 * @param theFrame the frame's number.
+	 * @param theDelay extra time the frame takes to arrive.
+	 * @return the local time the frame arrived.
+	 */
+	private long frame(ClockSync theClock, int theFrame, long theDelay) {
+		long sent = START + theFrame * PERIOD;
+		long received = sent + TRANSIT + jitter() + theDelay;
+		theClock.addSample(server(sent), received);
+		theClock.ping(sent + PERIOD / 2 + TRANSIT + jitter());
+		return received;
+	}
+
+	/**
+	 * Assert that the estimate of the server's time, less the
+	 * transit time, is close at a local time.
+	 * @param theClock the clock.
+	 * @param theTime the local time.
+	 * @param theMessage what is being checked.
+	 */
+	private void assertClose(ClockSync theClock, long theTime, String theMessage) {
+		long error = theClock.getServerTime(theTime) - (server(theTime) - TRANSIT);
+		assertTrue(theMessage + ": error " + error + " ns", Math.abs(error) <= MAX_ERROR);
+	}
+
+	/**
+	 * Return the server's time at a local time.
+	 * @param theTime the local time.
+	 * @return the server's time.
+	 */
+	private long server(long theTime) {
+		return mySkew + theTime + (long) (DRIFT * (theTime - START));
+	}
+
+	/**
+	 * Return a frame's extra transit time.
+	 * @return the jitter in nanoseconds.
+	 */
+	private long jitter() {
+		return (long) (myRandom.nextDouble() * JITTER);
+	}
+}
@@ -0,0 +1,138 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for Connector's spare connections, against a local
+ * server. The build turns Config.PRECONNECT on for the tests.
+ * @author Damiene Stewart
+ */
+public class ConnectorTest {
+
+	/**
+	 * Time, in seconds, to wait for the server or the monitor.
+	 */
+	private static final long TIMEOUT = 5;
+
+	/**
+	 * The local server.
+	 */
+	private ServerSocketChannel myServer;
+
+	/**
+	 * The server's port.
+	 */
+	private int myPort;
+
+	/**
+	 * Drop spares left by other tests, and start the local server.
+	 * @throws Exception if it can't be started.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Connector.getInstance().shutdown();
+		myServer = ServerSocketChannel.open();
+		myServer.bind(new InetSocketAddress("127.0.0.1", 0));
+		myPort = myServer.socket().getLocalPort();
+		myServer.socket().setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT));
+	}
+
+	/**
+	 * Stop the local server and drop any spare.
+	 * @throws Exception if it can't be closed.
+	 */
+	@After
+	public void tearDown() throws Exception {
+		Connector.getInstance().shutdown();
+		myServer.close();
+	}
+
+	/**
+	 * A spare is handed out once, then a new connection is needed.
+	 * @throws Exception if the server fails.
+	 */
+	@Test
+	public void testSpareTakenOnce() throws Exception {
+		assertTrue(Config.PRECONNECT);
+		Connector.getInstance().preconnect("127.0.0.1", myPort);
+		assertEquals(1, Connector.getInstance().getSpareCount());
+
+		SocketChannel spare = Connector.getInstance().takeSpare("127.0.0.1", myPort);
+		assertNotNull(spare);
+		assertNull(Connector.getInstance().takeSpare("127.0.0.1", myPort));
+		spare.close();
+	}
+
+	/**
+	 * A monitor given a spare the server has closed connects
+	 * again and reads from the new connection.
+	 * @throws Exception if the server fails.
+	 */
+	@Test
+	public void testClosedSpareReplaced() throws Exception {
+		Connector.getInstance().preconnect("127.0.0.1", myPort);
+		accept().close();
+
+		LineMonitor monitor = new LineMonitor("127.0.0.1", myPort);
+		monitor.start();
+		try (SocketChannel fresh = accept()) {
+			fresh.write(ByteBuffer.wrap(ChannelWriter.encode("[1]")));
+			assertEquals("[1]", monitor.myLines.poll(TIMEOUT, TimeUnit.SECONDS).toString());
+			assertTrue(monitor.isRunning());
+		} finally {
+			monitor.stopMonitor();
+		}
+	}
+
+	/**
+	 * Accept a connection to the local server, failing the test if
+	 * none is made in time.
+	 * @return the server's end of the connection.
+	 * @throws Exception if no connection is made.
+	 */
+	private SocketChannel accept() throws Exception {
+		return myServer.socket().accept().getChannel();
+	}
+
+	/**
+	 * A monitor that keeps every line it reads.
+	 */
+	private static final class LineMonitor extends Monitor {
+
+		/**
+		 * The lines read.
+		 */
+		private final BlockingQueue<Object> myLines;
+
+		/**
+		 * Construct a new monitor.
+		 * @param theHost the host to connect to.
+		 * @param thePort the port to connect to.
+		 */
+		private LineMonitor(String theHost, int thePort) {
+			super(null, theHost, thePort);
+			myLines = new LinkedBlockingQueue<Object>();
+		}
+
+		@Override
+		protected void processSocketData(Object theData, PrintWriter theWriter) {
+			myLines.add(theData);
+		}
+	}
+}
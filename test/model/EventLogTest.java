@@ -0,0 +1,170 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for EventLog, drained on the test's thread instead of
+ * by a writer thread.
+ * @author Damiene Stewart
+ */
+public class EventLogTest {
+
+	/**
+	 * A repeat interval longer than any test.
+	 */
+	private static final long LONG_INTERVAL = 3600000;
+
+	/**
+	 * Directory the logs write their files to.
+	 */
+	@Rule
+	public TemporaryFolder myFolder = new TemporaryFolder();
+
+	/**
+	 * With a file size small enough that every event starts a
+	 * new file, only the configured number of files are kept,
+	 * the current one included, and they hold the latest events.
+	 * @throws IOException if the files can't be read.
+	 */
+	@Test
+	public void testRotationKeepsFiles() throws IOException {
+		Path directory = myFolder.getRoot().toPath();
+		EventLog log = new EventLog(LogLevel.INFO, 16, directory, 1, 3, 0);
+		for (int i = 0; i < 10; i++) {
+			log.log(LogLevel.INFO, "test", 1, "event", i, null);
+			log.drain();
+		}
+
+		assertEquals(3, files(directory).size());
+		assertTrue(read(directory, EventLog.FILE_NAME).endsWith("event: 9"));
+		assertTrue(read(directory, EventLog.FILE_NAME + ".1").endsWith("event: 8"));
+		assertTrue(read(directory, EventLog.FILE_NAME + ".2").endsWith("event: 7"));
+	}
+
+	/**
+	 * With a single file, rolling over replaces it.
+	 * @throws IOException if the files can't be read.
+	 */
+	@Test
+	public void testRotationWithOneFile() throws IOException {
+		Path directory = myFolder.getRoot().toPath();
+		EventLog log = new EventLog(LogLevel.INFO, 16, directory, 1, 1, 0);
+		for (int i = 0; i < 3; i++) {
+			log.log(LogLevel.INFO, "test", 1, "event", i, null);
+			log.drain();
+		}
+
+		assertEquals(1, files(directory).size());
+		assertTrue(read(directory, EventLog.FILE_NAME).endsWith("event: 2"));
+	}
+
+	/**
+	 * Repeats of an event within the repeat interval are held
+	 * back and counted. The count goes with the event if it is
+	 * still waiting to be written, and on a line of its own once
+	 * drained otherwise.
+	 * @throws IOException if the files can't be read.
+	 */
+	@Test
+	public void testRepeatsHeldBack() throws IOException {
+		Path directory = myFolder.getRoot().toPath();
+		EventLog log = new EventLog(LogLevel.INFO, 16, directory, 1 << 20, 2, LONG_INTERVAL);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(log.log(LogLevel.WARN, "test", 1, "repeated", i, null));
+		}
+		log.drain();
+		for (int i = 10; i < 100; i++) {
+			assertTrue(log.log(LogLevel.WARN, "test", 1, "repeated", i, null));
+		}
+		log.drain();
+
+		assertEquals(99, log.getSuppressed());
+		assertEquals(0, log.getDropped());
+		assertEquals(0, log.getPending());
+		List<String> lines = lines(directory, EventLog.FILE_NAME);
+		assertEquals(lines.toString(), 2, lines.size());
+		assertTrue(lines.get(0).endsWith("repeated: 0 [9 more like this held back]"));
+		assertTrue(lines.get(1).endsWith("90 more held back like: [test] repeated"));
+	}
+
+	/**
+	 * Once the buffer is full, events are dropped and counted
+	 * instead of waiting, and the count is written once drained.
+	 * @throws IOException if the files can't be read.
+	 */
+	@Test
+	public void testOverflowDrops() throws IOException {
+		Path directory = myFolder.getRoot().toPath();
+		EventLog log = new EventLog(LogLevel.INFO, 4, directory, 1 << 20, 2, LONG_INTERVAL);
+		int logged = 0;
+		for (int i = 0; i < 10; i++) {
+			// Distinct messages, so that none are held back as repeats.
+			if (log.log(LogLevel.WARN, "test", 1, new String("event"), i, null)) {
+				logged++;
+			}
+		}
+
+		assertEquals(4, logged);
+		assertEquals(6, log.getDropped());
+		assertEquals(4, log.getPending());
+		log.drain();
+
+		assertEquals(0, log.getPending());
+		List<String> lines = lines(directory, EventLog.FILE_NAME);
+		assertEquals(lines.toString(), 5, lines.size());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(lines.get(i).endsWith("event: " + i));
+		}
+		assertTrue(lines.get(4).endsWith("6 events dropped; the log buffer was full"));
+
+		assertTrue(log.log(LogLevel.WARN, "test", 1, "after", null, null));
+		assertEquals(1, log.getPending());
+	}
+
+	/**
+	 * Return the files in a directory.
+	 * @param theDirectory the directory.
+	 * @return the files.
+	 * @throws IOException if the directory can't be listed.
+	 */
+	private static List<Path> files(Path theDirectory) throws IOException {
+		try (Stream<Path> files = Files.list(theDirectory)) {
+			return files.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Return a log file's contents without trailing line breaks.
+	 * @param theDirectory the directory.
+	 * @param theName the file's name.
+	 * @return the contents.
+	 * @throws IOException if the file can't be read.
+	 */
+	private static String read(Path theDirectory, String theName) throws IOException {
+		return String.join("\n", lines(theDirectory, theName));
+	}
+
+	/**
+	 * Return a log file's lines.
+	 * @param theDirectory the directory.
+	 * @param theName the file's name.
+	 * @return the lines.
+	 * @throws IOException if the file can't be read.
+	 */
+	private static List<String> lines(Path theDirectory, String theName) throws IOException {
+		return Files.readAllLines(theDirectory.resolve(theName), StandardCharsets.UTF_8);
+	}
+}
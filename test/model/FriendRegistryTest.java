@@ -0,0 +1,216 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for FriendRegistry's reloads and removals.
+ * @author Damiene Stewart
+ */
+public class FriendRegistryTest {
+
+	/**
+	 * The registry.
+	 */
+	private FriendRegistry myRegistry;
+
+	/**
+	 * Number of times listeners were told the friends were replaced.
+	 */
+	private AtomicInteger myReplaced;
+
+	/**
+	 * Create the registry and count its reloads.
+	 */
+	@Before
+	public void setUp() {
+		myRegistry = new FriendRegistry();
+		myReplaced = new AtomicInteger();
+		myRegistry.addListener(new FriendListener() {
+			@Override
+			public void friendsReplaced(FriendRegistry theRegistry) {
+				myReplaced.incrementAndGet();
+			}
+
+			@Override
+			public void friendUpdated(Friend theFriend) {
+			}
+
+			@Override
+			public void friendRemoved(Friend theFriend) {
+			}
+		});
+	}
+
+	/**
+	 * Loading the same friends again tells no listener.
+	 */
+	@Test
+	public void testSameFriendsUnchanged() {
+		String[] ids = {"a", "b", "c"};
+		String[] names = {"Ann", "Bob", "Cid"};
+
+		assertTrue(myRegistry.load(ids, names, 3));
+		assertFalse(myRegistry.load(ids.clone(), names.clone(), 3));
+		assertEquals(1, myReplaced.get());
+	}
+
+	/**
+	 * A list with duplicate IDs loads as its first appearances,
+	 * with the last names, and loading it again tells no listener.
+	 */
+	@Test
+	public void testDuplicatesUnchanged() {
+		String[] ids = {"a", "b", "a", "c", "b"};
+		String[] names = {"Ann", "Bob", "Anna", "Cid", "Bob"};
+
+		assertTrue(myRegistry.load(ids, names, 5));
+		assertEquals(3, myRegistry.size());
+		assertEquals("Anna", myRegistry.get("a").getUserName());
+
+		assertFalse(myRegistry.load(ids, names, 5));
+		assertFalse(myRegistry.load(new String[] {"a", "b", "c"}, new String[] {"Anna", "Bob", "Cid"}, 3));
+		assertEquals(1, myReplaced.get());
+	}
+
+	/**
+	 * A changed name, order or member is a change.
+	 */
+	@Test
+	public void testChangesDetected() {
+		myRegistry.load(new String[] {"a", "b"}, new String[] {"Ann", "Bob"}, 2);
+
+		assertTrue(myRegistry.load(new String[] {"a", "b", "a"}, new String[] {"Ann", "Bob", "Anna"}, 3));
+		assertTrue(myRegistry.load(new String[] {"b", "a"}, new String[] {"Bob", "Anna"}, 2));
+		assertTrue(myRegistry.load(new String[] {"b", "a", "c"}, new String[] {"Bob", "Anna", "Cid"}, 3));
+		assertTrue(myRegistry.load(new String[] {"b", "a"}, new String[] {"Bob", "Anna"}, 2));
+		assertEquals(5, myReplaced.get());
+	}
+
+	/**
+	 * Every change, and only a change, moves the version on.
+	 */
+	@Test
+	public void testVersionCountsChanges() {
+		long version = myRegistry.getVersion();
+		myRegistry.load(new String[] {"a", "b"}, new String[] {"Ann", "Bob"}, 2);
+		assertEquals(version + 1, myRegistry.getVersion());
+
+		myRegistry.load(new String[] {"a", "b"}, new String[] {"Ann", "Bob"}, 2);
+		myRegistry.update("a", "Ann");
+		myRegistry.remove("z");
+		assertEquals(version + 1, myRegistry.getVersion());
+
+		myRegistry.update("a", "Anna");
+		myRegistry.update("c", "Cid");
+		myRegistry.remove("b");
+		assertEquals(version + 4, myRegistry.getVersion());
+	}
+
+	/**
+	 * Friends whose IDs all hash alike share one run of index
+	 * slots. Removing one from the middle, the one last added and
+	 * the one at the run's start leaves every other one found
+	 * under its own name, until none are left.
+	 */
+	@Test
+	public void testRemoveColliding() {
+		List<String> ids = collidingIDs(3);
+		for (String id : ids) {
+			myRegistry.update(id, "name " + id);
+		}
+		assertEquals(8, myRegistry.size());
+
+		List<String> left = new ArrayList<String>(ids);
+		for (String id : new String[] {ids.get(3), ids.get(7), ids.get(0)}) {
+			assertTrue(myRegistry.remove(id));
+			assertFalse(myRegistry.remove(id));
+			left.remove(id);
+			assertFalse(myRegistry.contains(id));
+			assertNull(myRegistry.get(id));
+			assertFound(left);
+		}
+
+		while (!left.isEmpty()) {
+			assertTrue(myRegistry.remove(left.remove(left.size() / 2)));
+			assertFound(left);
+		}
+		assertEquals(0, myRegistry.size());
+		myRegistry.update(ids.get(5), "again");
+		assertEquals("again", myRegistry.get(ids.get(5)).getUserName());
+	}
+
+	/**
+	 * Random adds, renames and removes, of IDs that collide and
+	 * IDs that don't, leave the registry holding just what a map
+	 * given the same changes holds.
+	 */
+	@Test
+	public void testRemoveMatchesMap() {
+		List<String> ids = collidingIDs(4);
+		for (int i = 0; i < 48; i++) {
+			ids.add("p" + i);
+		}
+		Map<String, String> expected = new HashMap<String, String>();
+		Random random = new Random(7);
+		for (int i = 0; i < 5000; i++) {
+			String id = ids.get(random.nextInt(ids.size()));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(id) != null, myRegistry.remove(id));
+			} else {
+				String name = "n" + random.nextInt(4);
+				assertEquals(!name.equals(expected.put(id, name)), myRegistry.update(id, name));
+			}
+
+			assertEquals(expected.size(), myRegistry.size());
+			for (String each : ids) {
+				Friend friend = myRegistry.get(each);
+				assertEquals(each, expected.get(each), friend == null ? null : friend.getUserName());
+				assertEquals(each, expected.containsKey(each), myRegistry.contains(each));
+			}
+		}
+	}
+
+	/**
+	 * Assert that every one of some friends is found, with the
+	 * name it was added with, and that there are no others.
+	 * @param theIDs the friends' IDs.
+	 */
+	private void assertFound(List<String> theIDs) {
+		assertEquals(theIDs.size(), myRegistry.size());
+		for (String id : theIDs) {
+			assertTrue(id, myRegistry.contains(id));
+			assertEquals("name " + id, myRegistry.get(id).getUserName());
+		}
+	}
+
+	/**
+	 * Return IDs that all have the same hash code, made of pairs
+	 * of characters that do.
+	 * @param thePairs the number of pairs in each ID.
+	 * @return 2 to the power of thePairs IDs.
+	 */
+	private static List<String> collidingIDs(int thePairs) {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 1 << thePairs; i++) {
+			StringBuilder id = new StringBuilder();
+			for (int pair = 0; pair < thePairs; pair++) {
+				id.append((i >> pair & 1) == 0 ? "Aa" : "BB");
+			}
+			ids.add(id.toString());
+		}
+		return ids;
+	}
+}
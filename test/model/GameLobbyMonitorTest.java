@@ -0,0 +1,246 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for GameLobbyMonitor, driven through a detached monitor
+ * whose scheduled tasks run in simulated time.
+ * @author Damiene Stewart
+ */
+public class GameLobbyMonitorTest {
+
+	/**
+	 * Time, in milliseconds, between position frames fed to the monitor.
+	 */
+	private static final long POSITION_INTERVAL = 100;
+
+	/**
+	 * Simulated time, in milliseconds, positions are fed for;
+	 * longer than the count down replies take.
+	 */
+	private static final long FEED_TIME = 5000;
+
+	/**
+	 * Positions keep being echoed while the count down replies
+	 * are waiting to be sent: at least one echo goes out before
+	 * the first [19] and between each pair of them.
+	 */
+	@Test
+	public void testEchoesFlowDuringCountdown() {
+		DrivenMonitor monitor = new DrivenMonitor();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		monitor.getChannelWriter().copyDiscardedTo(output);
+
+		feed(monitor, "[5]");
+		for (int i = 0; i * POSITION_INTERVAL < FEED_TIME; i++) {
+			feed(monitor, "[18,1," + i + ",20,30,40]");
+			monitor.advance(POSITION_INTERVAL);
+		}
+		monitor.stopMonitor();
+
+		List<String> lines = lines(output);
+		List<Integer> replies = new ArrayList<Integer>();
+		for (int i = 0; i < lines.size(); i++) {
+			if (lines.get(i).equals("[19]")) {
+				replies.add(i);
+			}
+		}
+
+		assertEquals("count down replies in " + lines, 4, replies.size());
+		assertTrue("no echo before the first reply", hasEcho(lines, 0, replies.get(0)));
+		for (int i = 1; i < replies.size(); i++) {
+			assertTrue("no echo between replies " + i + " and " + (i + 1),
+					hasEcho(lines, replies.get(i - 1) + 1, replies.get(i)));
+		}
+	}
+
+	/**
+	 * Feed a message to a monitor.
+	 * @param theMonitor the monitor.
+	 * @param theMessage the message, without a line break.
+	 */
+	private static void feed(Monitor theMonitor, String theMessage) {
+		byte[] bytes = ChannelWriter.encode(theMessage);
+		theMonitor.feed(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Split what a monitor wrote into lines.
+	 * @param theOutput the monitor's output.
+	 * @return the lines.
+	 */
+	private static List<String> lines(ByteArrayOutputStream theOutput) {
+		List<String> lines = new ArrayList<String>();
+		for (String line : new String(theOutput.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+			if (!line.isEmpty()) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Returns true if any line in a range is an echo.
+	 * @param theLines the lines.
+	 * @param theStart index of the first line.
+	 * @param theEnd index one past the last line.
+	 * @return true if there is an echo in the range.
+	 */
+	private static boolean hasEcho(List<String> theLines, int theStart, int theEnd) {
+		for (int i = theStart; i < theEnd; i++) {
+			if (theLines.get(i).startsWith("[3,")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A detached monitor whose scheduled tasks wait in a queue
+	 * until the test moves its simulated time past them, instead
+	 * of running on the shared timer.
+	 */
+	private static final class DrivenMonitor extends GameLobbyMonitor {
+
+		/**
+		 * Tasks waiting to run, soonest first, then in the order
+		 * they were scheduled.
+		 */
+		private final PriorityQueue<Task> myTasks;
+
+		/**
+		 * Simulated time in milliseconds.
+		 */
+		private long myTime;
+
+		/**
+		 * Number of tasks scheduled so far.
+		 */
+		private long myScheduled;
+
+		/**
+		 * Construct a new monitor.
+		 */
+		private DrivenMonitor() {
+			super(null, (SocketChannel) null, 1);
+			myTasks = new PriorityQueue<Task>(Comparator.comparingLong((Task theTask) -> theTask.myDue)
+					.thenComparingLong(theTask -> theTask.mySequence));
+			myTime = 0;
+			myScheduled = 0;
+		}
+
+		@Override
+		protected synchronized ScheduledFuture<?> schedule(Runnable theTask, long theDelay) {
+			return add(theTask, theDelay, 0);
+		}
+
+		@Override
+		protected synchronized ScheduledFuture<?> scheduleAtFixedRate(Runnable theTask, long thePeriod) {
+			return add(theTask, thePeriod, thePeriod);
+		}
+
+		/**
+		 * Move simulated time on, running the tasks that fall due
+		 * in turn, as the monitor's loop would.
+		 * @param theTime time, in milliseconds, to move on by.
+		 */
+		private synchronized void advance(long theTime) {
+			long end = myTime + theTime;
+			while (!myTasks.isEmpty() && myTasks.peek().myDue <= end) {
+				Task task = myTasks.poll();
+				myTime = task.myDue;
+				if (isRunning() && task.fire()) {
+					task.myDue += task.myPeriod;
+					myTasks.add(task);
+				}
+				getChannelWriter().flush();
+			}
+			myTime = end;
+		}
+
+		/**
+		 * Queue a task.
+		 * @param theTask the task.
+		 * @param theDelay time, in milliseconds, until it first runs.
+		 * @param thePeriod time between runs, or 0 to run once.
+		 * @return the task's future.
+		 */
+		private Task add(Runnable theTask, long theDelay, long thePeriod) {
+			Task task = new Task(theTask, myTime + theDelay, thePeriod, myScheduled++);
+			myTasks.add(task);
+			return task;
+		}
+
+		/**
+		 * A task waiting for simulated time to reach it.
+		 */
+		private final class Task extends FutureTask<Object> implements ScheduledFuture<Object> {
+
+			/**
+			 * Simulated time the task next runs at.
+			 */
+			private long myDue;
+
+			/**
+			 * Time between runs, or 0 to run once.
+			 */
+			private final long myPeriod;
+
+			/**
+			 * Order the task was scheduled in.
+			 */
+			private final long mySequence;
+
+			/**
+			 * Construct a new task.
+			 * @param theTask what to run.
+			 * @param theDue simulated time it first runs at.
+			 * @param thePeriod time between runs, or 0 to run once.
+			 * @param theSequence order it was scheduled in.
+			 */
+			private Task(Runnable theTask, long theDue, long thePeriod, long theSequence) {
+				super(theTask, null);
+				myDue = theDue;
+				myPeriod = thePeriod;
+				mySequence = theSequence;
+			}
+
+			/**
+			 * Run the task, unless it was cancelled.
+			 * @return true if it is to run again.
+			 */
+			private boolean fire() {
+				if (myPeriod == 0) {
+					run();
+					return false;
+				}
+				return runAndReset();
+			}
+
+			@Override
+			public long getDelay(TimeUnit theUnit) {
+				return theUnit.convert(myDue - myTime, TimeUnit.MILLISECONDS);
+			}
+
+			@Override
+			public int compareTo(Delayed theOther) {
+				return Long.compare(getDelay(TimeUnit.NANOSECONDS), theOther.getDelay(TimeUnit.NANOSECONDS));
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for LoginService, against a local server that sends
+ * replies the game's login server wouldn't.
+ * @author Damiene Stewart
+ */
+public class LoginServiceTest {
+
+	/**
+	 * Time, in seconds, to wait for a login.
+	 */
+	private static final long TIMEOUT = 5;
+
+	/**
+	 * The local server.
+	 */
+	private HttpServer myServer;
+
+	/**
+	 * The reply the server sends.
+	 */
+	private volatile String myReply;
+
+	/**
+	 * The service under test.
+	 */
+	private LoginService myService;
+
+	/**
+	 * Start the local server and a service that logs in there.
+	 * @throws Exception if the server can't be started.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		myServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		myServer.createContext("/", theExchange -> {
+			byte[] reply = myReply.getBytes(StandardCharsets.UTF_8);
+			theExchange.getRequestBody().close();
+			theExchange.sendResponseHeaders(200, reply.length);
+			try (OutputStream output = theExchange.getResponseBody()) {
+				output.write(reply);
+			}
+		});
+		myServer.start();
+		myService = new LoginService("http://127.0.0.1:" + myServer.getAddress().getPort() + "/", 1);
+	}
+
+	/**
+	 * Stop the service and the server.
+	 */
+	@After
+	public void tearDown() {
+		myService.shutdown();
+		myServer.stop(0);
+	}
+
+	/**
+	 * A reply that isn't JSON fails the login with a message
+	 * instead of failing the future.
+	 * @throws Exception if the login doesn't complete.
+	 */
+	@Test
+	public void testReplyNotJson() throws Exception {
+		myReply = "<html>Service unavailable</html>";
+		LoginResult result = myService.login("bot@example.com", "secret").get(TIMEOUT, TimeUnit.SECONDS);
+		assertFalse(result.isSuccessful());
+		assertEquals("The login server sent an unexpected reply.", result.getErrorMessage());
+	}
+
+	/**
+	 * A rejected login says whose login it was, but never
+	 * repeats the password.
+	 * @throws Exception if the login doesn't complete.
+	 */
+	@Test
+	public void testBadPasswordNotEchoed() throws Exception {
+		myReply = "{\"m\":3,\"r\":1}";
+		LoginResult result = myService.login("bot@example.com", "secret").get(TIMEOUT, TimeUnit.SECONDS);
+		assertFalse(result.isSuccessful());
+		assertTrue(result.getErrorMessage().contains("bot@example.com"));
+		assertFalse(result.getErrorMessage().contains("secret"));
+	}
+
+	/**
+	 * A JSON reply without a message type fails the login with
+	 * a message instead of failing the future.
+	 * @throws Exception if the login doesn't complete.
+	 */
+	@Test
+	public void testReplyWithoutType() throws Exception {
+		myReply = "{\"r\":1}";
+		LoginResult result = myService.login("bot@example.com", "secret").get(TIMEOUT, TimeUnit.SECONDS);
+		assertFalse(result.isSuccessful());
+		assertEquals("The login server sent an unexpected reply.", result.getErrorMessage());
+	}
+}
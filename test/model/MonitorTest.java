@@ -0,0 +1,139 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for how a Monitor copes with data it can't handle.
+ * @author Damiene Stewart
+ */
+public class MonitorTest {
+
+	/**
+	 * Time, in seconds, to wait for the server or the monitor.
+	 */
+	private static final long TIMEOUT = 5;
+
+	/**
+	 * A line that fails to be handled is dropped, and the lines
+	 * around it are still handled.
+	 */
+	@Test
+	public void testBadLineDropped() {
+		FailingMonitor monitor = new FailingMonitor(null);
+		byte[] input = "a\nbad\nb\n".getBytes(StandardCharsets.UTF_8);
+		monitor.feed(input, 0, input.length);
+
+		assertEquals(Arrays.asList("a", "b"), monitor.myLines);
+		assertTrue(monitor.isRunning());
+		monitor.stopMonitor();
+	}
+
+	/**
+	 * A failure outside any one line, here a line longer than the
+	 * longest allowed, closes the connection through the same path
+	 * as the other end closing it.
+	 * @throws Exception if the server fails.
+	 */
+	@Test
+	public void testFailureClosesConnection() throws Exception {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress("127.0.0.1", 0));
+			server.socket().setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT));
+
+			SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+			channel.configureBlocking(false);
+			FailingMonitor monitor = new FailingMonitor(channel);
+			monitor.start();
+			try (SocketChannel peer = server.socket().accept().getChannel()) {
+				ByteBuffer line = ByteBuffer.allocate(Config.MAX_LINE_LENGTH + 1);
+				while (line.hasRemaining() && monitor.myClosed.getCount() > 0) {
+					peer.write(line);
+				}
+
+				assertTrue(monitor.myClosed.await(TIMEOUT, TimeUnit.SECONDS));
+				assertFalse(monitor.isRunning());
+			}
+		}
+	}
+
+	/**
+	 * A monitor whose other end stops reading is closed through
+	 * the same path as the other end closing the connection,
+	 * instead of buffering without limit.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	@Test
+	public void testFullWriteBufferCloses() throws InterruptedException {
+		FailingMonitor monitor = new FailingMonitor(null);
+		byte[] message = ChannelWriter.encode("[4,7]");
+		for (int i = 0; i <= Config.WRITE_BUFFER_MAX / message.length; i++) {
+			monitor.getChannelWriter().writeBytes(message);
+		}
+
+		assertTrue(monitor.myClosed.await(TIMEOUT, TimeUnit.SECONDS));
+		assertFalse(monitor.isRunning());
+		assertEquals(0, monitor.getChannelWriter().getQueuedBytes());
+	}
+
+	/**
+	 * A monitor that keeps the lines it reads, fails on the line
+	 * "bad", and notes when its connection closes.
+	 */
+	private static final class FailingMonitor extends Monitor {
+
+		/**
+		 * The lines handled.
+		 */
+		private final List<Object> myLines;
+
+		/**
+		 * Counted down when the connection closes.
+		 */
+		private final CountDownLatch myClosed;
+
+		/**
+		 * Construct a new monitor.
+		 * @param theChannel the connected channel, or null for a
+		 * detached monitor.
+		 */
+		private FailingMonitor(SocketChannel theChannel) {
+			super(null, theChannel);
+			myLines = new ArrayList<Object>();
+			myClosed = new CountDownLatch(1);
+		}
+
+		@Override
+		protected Object readSocketData(String theLine) {
+			return theLine;
+		}
+
+		@Override
+		protected void processSocketData(Object theData, PrintWriter theWriter) {
+			if ("bad".equals(theData)) {
+				throw new IllegalArgumentException("The line: bad is invalid.");
+			}
+			myLines.add(theData);
+		}
+
+		@Override
+		protected void connectionClosed() {
+			myClosed.countDown();
+		}
+	}
+}
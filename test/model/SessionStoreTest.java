@@ -0,0 +1,123 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for SessionStore, in a temporary directory.
+ * @author Damiene Stewart
+ */
+public class SessionStoreTest {
+
+	/**
+	 * Directory the store writes its files to.
+	 */
+	@Rule
+	public TemporaryFolder myFolder = new TemporaryFolder();
+
+	/**
+	 * The store under test.
+	 */
+	private SessionStore myStore;
+
+	/**
+	 * Create the store.
+	 */
+	@Before
+	public void setUp() {
+		myStore = new SessionStore(myFolder.getRoot().toPath());
+	}
+
+	/**
+	 * A saved snapshot loads back whole, and only matches the
+	 * password it was saved with.
+	 * @throws Exception if the snapshot can't be saved.
+	 */
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		byte[] salt = SessionSnapshot.newSalt();
+		myStore.save(new SessionSnapshot("Bot@Example.com", "id1", "token1", salt,
+				SessionSnapshot.hashPassword("secret", salt),
+				Arrays.asList(new Friend("p1", "Runner"), new Friend("p2", "Jumper")), 42));
+
+		SessionSnapshot snapshot = myStore.load("bot@example.com");
+		assertNotNull(snapshot);
+		assertEquals("id1", snapshot.getID());
+		assertEquals("token1", snapshot.getToken());
+		assertEquals(42, snapshot.getSavedAt());
+		assertEquals(2, snapshot.getFriends().size());
+		assertEquals("Jumper", snapshot.getFriends().get(1).getUserName());
+		assertTrue(snapshot.matchesPassword("secret"));
+		assertFalse(snapshot.matchesPassword("Secret"));
+		assertFalse(snapshot.matchesPassword(""));
+	}
+
+	/**
+	 * The same password hashes differently with different salts.
+	 */
+	@Test
+	public void testSaltedHash() {
+		byte[] first = SessionSnapshot.newSalt();
+		byte[] second = SessionSnapshot.newSalt();
+		assertFalse(Arrays.equals(SessionSnapshot.hashPassword("secret", first),
+				SessionSnapshot.hashPassword("secret", second)));
+	}
+
+	/**
+	 * Snapshots, which hold login tokens, are only readable by
+	 * their owner, even over a leftover file from a crash.
+	 * @throws Exception if the snapshot can't be saved.
+	 */
+	@Test
+	public void testOwnerOnly() throws Exception {
+		Path directory = myFolder.getRoot().toPath().resolve("sessions");
+		Assume.assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		myStore = new SessionStore(directory);
+		byte[] salt = SessionSnapshot.newSalt();
+		SessionSnapshot snapshot = new SessionSnapshot("bot@example.com", "id1", "token1", salt,
+				SessionSnapshot.hashPassword("secret", salt), Arrays.<Friend>asList(), 1);
+		myStore.save(snapshot);
+		Path file;
+		try (Stream<Path> files = Files.list(directory)) {
+			file = files.findFirst().get();
+		}
+		Path leftover = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(leftover, new byte[1]);
+		Files.setPosixFilePermissions(leftover, PosixFilePermissions.fromString("rw-rw-rw-"));
+		myStore.save(snapshot);
+
+		assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+		assertNotNull(myStore.load("bot@example.com"));
+	}
+
+	/**
+	 * An account without a saved snapshot, or whose snapshot was
+	 * deleted, has nothing to load.
+	 * @throws Exception if the snapshot can't be saved.
+	 */
+	@Test
+	public void testDelete() throws Exception {
+		assertNull(myStore.load("bot@example.com"));
+		byte[] salt = SessionSnapshot.newSalt();
+		myStore.save(new SessionSnapshot("bot@example.com", "id1", "token1", salt,
+				SessionSnapshot.hashPassword("secret", salt), Arrays.<Friend>asList(), 1));
+		myStore.delete("bot@example.com");
+		assertNull(myStore.load("bot@example.com"));
+	}
+}